@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.util.ArrayList;
+
+/**
+ * Decides when a batch of newly discovered devices should be sent off for
+ * resolution.
+ *
+ * A batch flushes as soon as it holds maxSize items, or once its oldest item
+ * has waited for the current window, whichever comes first. The window
+ * adapts: while devices are turning up faster than the resolver answers,
+ * waiting a little longer fills the batch for free; when they trickle in, we
+ * flush after the minimum window so the first card isn't held back.
+ */
+public class BatchScheduler<T> {
+  private Clock mClock;
+  private int mMaxSize;
+  private long mMinWindow;
+  private long mMaxWindow;
+
+  private ArrayList<T> mBatch;
+  private long mOldestTime;
+
+  // Smoothed time between discoveries and resolve round trip time (ms).
+  private long mLastArrivalTime = -1;
+  private double mInterArrivalTime;
+  private double mResolveRtt;
+  private static double SMOOTHING = 0.2;
+
+  public BatchScheduler(Clock clock, int maxSize, long minWindow, long maxWindow) {
+    mClock = clock;
+    mMaxSize = maxSize;
+    mMinWindow = minWindow;
+    mMaxWindow = maxWindow;
+    mBatch = new ArrayList<T>();
+    // Until we've measured anything, assume nothing else is coming.
+    mInterArrivalTime = maxWindow;
+    mResolveRtt = 2 * maxWindow;
+  }
+
+  /**
+   * Add an item to the current batch. Returns true if the batch is now full
+   * and should be flushed right away.
+   */
+  public boolean add(T item) {
+    long now = mClock.currentTimeMillis();
+    if (mLastArrivalTime >= 0) {
+      mInterArrivalTime = smooth(mInterArrivalTime, now - mLastArrivalTime);
+    }
+    mLastArrivalTime = now;
+
+    if (mBatch.isEmpty()) {
+      mOldestTime = now;
+    }
+    mBatch.add(item);
+    return mBatch.size() >= mMaxSize;
+  }
+
+  public boolean isEmpty() {
+    return mBatch.isEmpty();
+  }
+
+  /**
+   * How long to wait before the current batch should be flushed (ms).
+   */
+  public long getFlushDelay() {
+    if (mBatch.isEmpty()) {
+      return 0;
+    }
+    long age = mClock.currentTimeMillis() - mOldestTime;
+    return Math.max(0, getWindow() - age);
+  }
+
+  /**
+   * The current batching window (ms).
+   */
+  public long getWindow() {
+    // Holding a batch for up to half a round trip costs little compared to
+    // the round trip itself.
+    long budget = (long) Math.min(mMaxWindow, Math.max(mMinWindow, mResolveRtt / 2));
+    // Only wait if another device is likely to show up within the budget.
+    if (mInterArrivalTime >= budget) {
+      return mMinWindow;
+    }
+    return budget;
+  }
+
+  /**
+   * Take the current batch, leaving an empty one behind.
+   */
+  public ArrayList<T> drain() {
+    ArrayList<T> batch = mBatch;
+    mBatch = new ArrayList<T>();
+    return batch;
+  }
+
+  public void onResolveCompleted(long rtt) {
+    mResolveRtt = smooth(mResolveRtt, rtt);
+  }
+
+  private static double smooth(double average, long sample) {
+    return average + SMOOTHING * (sample - average);
+  }
+}
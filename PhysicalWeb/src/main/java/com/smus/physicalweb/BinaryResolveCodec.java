@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The compact binary form of the resolve-scan protocol.
+ *
+ * Both directions start with the magic bytes "PW" and a version byte, then
+ * the number of items as a varint. Strings are a varint byte length followed
+ * by UTF-8.
+ *
+ *   request item:  url, RSSI as a signed byte
+ *   response item: field flags, id, then title, url, description and icon
+ *                  in that order, each only if its flag is set
+ *
+ * Unlike the JSON request, there is no location block. Bodies are normally
+ * gzipped on the wire as well; see gzip() and gunzip().
+ */
+public class BinaryResolveCodec {
+  public static final String CONTENT_TYPE = "application/x-physical-web-resolve";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int MAGIC_0 = 'P';
+  private static final int MAGIC_1 = 'W';
+  private static final int VERSION = 1;
+
+  private static final int HAS_TITLE = 0x01;
+  private static final int HAS_URL = 0x02;
+  private static final int HAS_DESCRIPTION = 0x04;
+  private static final int HAS_ICON = 0x08;
+
+  public interface OnBeaconParsedListener {
+    public void onBeaconParsed(String url, int rssi);
+  }
+
+  public static byte[] createRequestBody(List<? extends ResolveScanCodec.Beacon> devices) {
+    Output out = new Output(8 + devices.size() * 32);
+    out.writeHeader();
+    out.writeVarInt(devices.size());
+    for (int dIdx = 0; dIdx < devices.size(); dIdx++) {
+      ResolveScanCodec.Beacon device = devices.get(dIdx);
+      out.writeString(device.getUrl());
+      out.write(Math.max(-128, Math.min(127, device.getLastRSSI())));
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Decode a request, for servers. Returns the number of beacons.
+   */
+  public static int readRequest(byte[] body, OnBeaconParsedListener listener)
+      throws IOException {
+    Input in = new Input(body);
+    in.readHeader();
+    int count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      String url = in.readString();
+      listener.onBeaconParsed(url, (byte) in.read());
+    }
+    return count;
+  }
+
+  /**
+   * Encode a response, for servers. Metadata fields that are null are left
+   * out, and the client fills in its defaults.
+   */
+  public static byte[] createResponseBody(List<String> ids, List<DeviceMetadata> metadata) {
+    Output out = new Output(8 + ids.size() * 128);
+    out.writeHeader();
+    out.writeVarInt(ids.size());
+    for (int i = 0; i < ids.size(); i++) {
+      DeviceMetadata deviceMetadata = metadata.get(i);
+      int flags = 0;
+      flags |= deviceMetadata.title != null ? HAS_TITLE : 0;
+      flags |= deviceMetadata.siteUrl != null ? HAS_URL : 0;
+      flags |= deviceMetadata.description != null ? HAS_DESCRIPTION : 0;
+      flags |= deviceMetadata.iconUrl != null ? HAS_ICON : 0;
+      out.write(flags);
+      out.writeString(ids.get(i));
+      if ((flags & HAS_TITLE) != 0) {
+        out.writeString(deviceMetadata.title);
+      }
+      if ((flags & HAS_URL) != 0) {
+        out.writeString(deviceMetadata.siteUrl);
+      }
+      if ((flags & HAS_DESCRIPTION) != 0) {
+        out.writeString(deviceMetadata.description);
+      }
+      if ((flags & HAS_ICON) != 0) {
+        out.writeString(deviceMetadata.iconUrl);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Decode a response, calling the listener for each entry as soon as it is
+   * read, the same way ResolveScanCodec.readResponse does for JSON. Returns
+   * the number of entries.
+   */
+  public static int readResponse(byte[] body, ResolveScanCodec.OnMetadataParsedListener listener)
+      throws IOException {
+    Input in = new Input(body);
+    in.readHeader();
+    ResolveScanCodec.IconUrls iconUrls = new ResolveScanCodec.IconUrls();
+    int count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      int flags = in.read();
+      String id = in.readString();
+      String title = (flags & HAS_TITLE) != 0 ? in.readString() : null;
+      String url = (flags & HAS_URL) != 0 ? in.readString() : null;
+      String description = (flags & HAS_DESCRIPTION) != 0 ? in.readString() : null;
+      String iconUrl = (flags & HAS_ICON) != 0 ? in.readString() : null;
+      listener.onMetadataParsed(id,
+          ResolveScanCodec.createMetadata(title, url, description, iconUrl, iconUrls));
+    }
+    return count;
+  }
+
+  public static byte[] gzip(byte[] data) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + 32);
+    try {
+      GZIPOutputStream out = new GZIPOutputStream(bytes);
+      out.write(data);
+      out.close();
+    } catch (IOException e) {
+      // Can't happen when writing to memory.
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  public static byte[] gunzip(byte[] data) throws IOException {
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length * 4);
+    byte[] buffer = new byte[4096];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      bytes.write(buffer, 0, count);
+    }
+    in.close();
+    return bytes.toByteArray();
+  }
+
+  private static class Output extends ByteArrayOutputStream {
+    Output(int size) {
+      super(size);
+    }
+
+    void writeHeader() {
+      write(MAGIC_0);
+      write(MAGIC_1);
+      write(VERSION);
+    }
+
+    void writeVarInt(int value) {
+      while ((value & ~0x7f) != 0) {
+        write((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      write(value);
+    }
+
+    void writeString(String value) {
+      byte[] bytes = value.getBytes(UTF_8);
+      writeVarInt(bytes.length);
+      write(bytes, 0, bytes.length);
+    }
+  }
+
+  private static class Input {
+    private final byte[] mData;
+    private int mPosition;
+
+    Input(byte[] data) {
+      mData = data;
+    }
+
+    void readHeader() throws IOException {
+      if (read() != MAGIC_0 || read() != MAGIC_1) {
+        throw new IOException("Not a binary resolve message.");
+      }
+      int version = read();
+      if (version != VERSION) {
+        throw new IOException("Unsupported binary resolve version " + version);
+      }
+    }
+
+    int read() throws IOException {
+      if (mPosition >= mData.length) {
+        throw new IOException("Truncated binary resolve message.");
+      }
+      return mData[mPosition++] & 0xff;
+    }
+
+    int readVarInt() throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        int b = read();
+        value |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint.");
+    }
+
+    String readString() throws IOException {
+      int length = readVarInt();
+      if (length < 0 || length > mData.length - mPosition) {
+        throw new IOException("Truncated binary resolve message.");
+      }
+      String value = new String(mData, mPosition, length, UTF_8);
+      mPosition += length;
+      return value;
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+/**
+ * Stops calls to a backend that keeps failing, and lets one through now and
+ * then to see whether it has recovered.
+ *
+ * The breaker opens after failureThreshold failures in a row. While open it
+ * refuses everything for a while, then lets a single probe through. A
+ * successful probe closes it again; a failed one reopens it for twice as
+ * long, up to maxOpenTime. A probe that hasn't been heard of after
+ * probeTimeout is taken to be lost, and another is let through.
+ */
+public class CircuitBreaker {
+  public enum State {
+    CLOSED,
+    OPEN,
+    // A probe is on its way.
+    HALF_OPEN
+  }
+
+  private Clock mClock;
+  private int mFailureThreshold;
+  private long mMinOpenTime;
+  private long mMaxOpenTime;
+  private long mProbeTimeout;
+
+  private State mState = State.CLOSED;
+  private int mFailureCount = 0;
+  private long mOpenTime;
+  private long mOpenUntil;
+  private long mProbeUntil;
+
+  public CircuitBreaker(Clock clock, int failureThreshold, long minOpenTime, long maxOpenTime,
+                        long probeTimeout) {
+    mClock = clock;
+    mFailureThreshold = failureThreshold;
+    mMinOpenTime = minOpenTime;
+    mMaxOpenTime = maxOpenTime;
+    mProbeTimeout = probeTimeout;
+    mOpenTime = minOpenTime;
+  }
+
+  /**
+   * Whether a call may go out now. Every call that is let through has to be
+   * followed by onSuccess(), onFailure() or release().
+   */
+  public synchronized boolean allowRequest() {
+    switch (mState) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (mClock.currentTimeMillis() >= mOpenUntil) {
+          mState = State.HALF_OPEN;
+          mProbeUntil = mClock.currentTimeMillis() + mProbeTimeout;
+          return true;
+        }
+        return false;
+      default:
+        if (mClock.currentTimeMillis() >= mProbeUntil) {
+          // The probe was lost; this one takes its place.
+          mProbeUntil = mClock.currentTimeMillis() + mProbeTimeout;
+          return true;
+        }
+        return false;
+    }
+  }
+
+  public synchronized void onSuccess() {
+    mState = State.CLOSED;
+    mFailureCount = 0;
+    mOpenTime = mMinOpenTime;
+  }
+
+  public synchronized void onFailure() {
+    if (mState == State.HALF_OPEN) {
+      mOpenTime = Math.min(mOpenTime * 2, mMaxOpenTime);
+      open();
+    } else if (mState == State.CLOSED && ++mFailureCount >= mFailureThreshold) {
+      open();
+    }
+  }
+
+  /**
+   * A call that was let through ended without an answer either way, such as
+   * one cancelled because nobody wanted it any more. If it was the probe,
+   * another may go out straight away.
+   */
+  public synchronized void release() {
+    if (mState == State.HALF_OPEN) {
+      mState = State.OPEN;
+      mOpenUntil = mClock.currentTimeMillis();
+    }
+  }
+
+  private void open() {
+    mState = State.OPEN;
+    mOpenUntil = mClock.currentTimeMillis() + mOpenTime;
+  }
+
+  public synchronized State getState() {
+    return mState;
+  }
+
+  /**
+   * How long (ms) until the breaker lets a probe through; 0 if it would now.
+   */
+  public synchronized long getTimeUntilProbe() {
+    switch (mState) {
+      case OPEN:
+        return Math.max(0, mOpenUntil - mClock.currentTimeMillis());
+      case HALF_OPEN:
+        return Math.max(0, mProbeUntil - mClock.currentTimeMillis());
+      default:
+        return 0;
+    }
+  }
+}
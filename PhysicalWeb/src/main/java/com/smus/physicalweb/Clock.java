@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+/**
+ * Time source in ms, so schedulers can be driven by a virtual clock.
+ */
+public interface Clock {
+  public long currentTimeMillis();
+
+  // Monotonic, for scheduling; it starts again from about zero on boot.
+  public static final Clock SYSTEM = new Clock() {
+    @Override
+    public long currentTimeMillis() {
+      return System.nanoTime() / 1000000;
+    }
+  };
+
+  // Wall clock time, for anything written to disk.
+  public static final Clock WALL = new Clock() {
+    @Override
+    public long currentTimeMillis() {
+      return System.currentTimeMillis();
+    }
+  };
+}
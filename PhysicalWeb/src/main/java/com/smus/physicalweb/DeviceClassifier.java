@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import android.util.LruCache;
+import android.util.Patterns;
+
+import java.util.Arrays;
+
+/**
+ * Remembers what each Bluetooth address was classified as last time: its
+ * name and the URL it stands for, or that it stands for none.
+ *
+ * Devices advertise many times a second, and most of them (phones,
+ * headphones) aren't beacons at all. Classifying one means walking its
+ * advertisement, maybe matching its name against URL syntax and looking it
+ * up, so the result is kept until the advertisement changes. An entry only
+ * answers for the exact payload it was made from, which covers the
+ * advertised name; a name read from the BluetoothDevice when the payload has
+ * none is not checked again. Only used on the EventLoop.
+ */
+public class DeviceClassifier {
+  private static int MAX_ENTRIES = 256;
+
+  private LruCache<String, Classification> mClassifications;
+
+  public DeviceClassifier() {
+    this(MAX_ENTRIES);
+  }
+
+  public DeviceClassifier(int maxEntries) {
+    mClassifications = new LruCache<String, Classification>(maxEntries);
+  }
+
+  /**
+   * The classification for the address, if it was made from the same
+   * payload. A stale one is dropped and null returned.
+   */
+  public Classification get(String address, byte[] scanRecord) {
+    Classification classification = mClassifications.get(address);
+    if (classification == null) {
+      return null;
+    }
+    if (!Arrays.equals(classification.mScanRecord, scanRecord)) {
+      mClassifications.remove(address);
+      return null;
+    }
+    return classification;
+  }
+
+  /**
+   * Remember how the address was classified with this payload. The URL is
+   * null for devices that aren't beacons.
+   */
+  public Classification put(String address, byte[] scanRecord, String name, String url) {
+    // Copied in case the caller reuses its buffer.
+    Classification classification = new Classification(
+        scanRecord == null ? null : scanRecord.clone(), name, url);
+    mClassifications.put(address, classification);
+    return classification;
+  }
+
+  public int size() {
+    return mClassifications.size();
+  }
+
+  /**
+   * The URL a device name stands for if the name is a web URL itself, with
+   * http:// added when it has no scheme. Otherwise null.
+   */
+  public static String getNameUrl(String name) {
+    if (name == null || !isWebUrl(name)) {
+      return null;
+    }
+    if (!name.startsWith("http://") && !name.startsWith("https://")) {
+      return "http://" + name;
+    }
+    return name;
+  }
+
+  /**
+   * Whether the string matches Patterns.WEB_URL. The pattern is slow, and
+   * most device names ("OLP425-ECF5", "JBL Flip 3") can't match it, so those
+   * are ruled out by hand first: every match has a dot in its host and no
+   * whitespace or control characters anywhere.
+   */
+  public static boolean isWebUrl(String string) {
+    int length = string.length();
+    // The shortest match is a one letter name and a two letter domain.
+    if (length < 4) {
+      return false;
+    }
+    boolean hasDot = false;
+    for (int i = 0; i < length; i++) {
+      char c = string.charAt(i);
+      if (c <= ' ' || c == 0x7f) {
+        return false;
+      }
+      hasDot |= c == '.';
+    }
+    return hasDot && Patterns.WEB_URL.matcher(string).matches();
+  }
+
+  /**
+   * How a device was classified.
+   */
+  public static class Classification {
+    private final byte[] mScanRecord;
+    private final String mName;
+    private final String mUrl;
+
+    Classification(byte[] scanRecord, String name, String url) {
+      mScanRecord = scanRecord;
+      mName = name;
+      mUrl = url;
+    }
+
+    public String getName() { return mName; }
+
+    // Null if the device isn't a beacon.
+    public String getUrl() { return mUrl; }
+
+    public boolean isBeacon() { return mUrl != null; }
+  }
+}
@@ -16,8 +16,6 @@
 
 package com.smus.physicalweb;
 
-import android.graphics.Bitmap;
-
 /**
  * Created by smus on 1/24/14.
  */
@@ -25,6 +23,6 @@ public class DeviceMetadata {
   public String title;
   public String siteUrl;
   public String description;
+  // The decoded icon lives in MetadataResolver's icon cache, keyed by this URL.
   public String iconUrl;
-  public Bitmap icon;
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Index of all the nearby devices we know about, keyed by URL and by
+ * Bluetooth address.
+ *
+ * Lookups are constant time, so a scan result can be checked against the
+ * known devices without walking the adapter's list. Only used on the
+ * EventLoop. The adapter keeps its own ordered list of snapshots of the same
+ * devices for display.
+ */
+public class DeviceRegistry<T extends DeviceRegistry.Device> {
+  public interface Device {
+    public String getUrl();
+    public String getAddress();
+  }
+
+  private HashMap<String, T> mDevicesByUrl;
+  private HashMap<String, T> mDevicesByAddress;
+
+  public DeviceRegistry() {
+    mDevicesByUrl = new HashMap<String, T>();
+    mDevicesByAddress = new HashMap<String, T>();
+  }
+
+  public T getByUrl(String url) {
+    if (url == null) {
+      return null;
+    }
+    return mDevicesByUrl.get(url);
+  }
+
+  public T getByAddress(String address) {
+    if (address == null) {
+      return null;
+    }
+    return mDevicesByAddress.get(address);
+  }
+
+  /**
+   * Find the device we already know about that matches the candidate, first
+   * by Bluetooth address and then by URL.
+   */
+  public T getExistingDevice(Device candidateDevice) {
+    T device = getByAddress(candidateDevice.getAddress());
+    if (device == null) {
+      device = getByUrl(candidateDevice.getUrl());
+    }
+    return device;
+  }
+
+  public void add(T device) {
+    if (device.getUrl() != null) {
+      mDevicesByUrl.put(device.getUrl(), device);
+    }
+    if (device.getAddress() != null) {
+      mDevicesByAddress.put(device.getAddress(), device);
+    }
+  }
+
+  public void remove(T device) {
+    if (device.getUrl() != null) {
+      if (mDevicesByUrl.get(device.getUrl()) == device) {
+        mDevicesByUrl.remove(device.getUrl());
+      }
+    }
+    if (device.getAddress() != null) {
+      if (mDevicesByAddress.get(device.getAddress()) == device) {
+        mDevicesByAddress.remove(device.getAddress());
+      }
+    }
+  }
+
+  public int size() {
+    return mDevicesByUrl.size();
+  }
+
+  public Collection<T> getDevices() {
+    return mDevicesByUrl.values();
+  }
+}
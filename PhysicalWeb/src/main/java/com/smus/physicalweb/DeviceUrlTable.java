@@ -0,0 +1,302 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * Maps the names of beacons that don't advertise a URL to the URL they stand
+ * for, by exact name or by the longest matching name prefix.
+ *
+ * The table is built offline (see Writer) and read in place from a
+ * memory-mapped file, so opening it costs the same however large it is, and
+ * nothing is copied onto the heap. The layout, all big endian:
+ *
+ *   - magic "PWDT", version
+ *   - number of exact names E, number of prefixes P
+ *   - E index entries: name offset, URL offset
+ *   - P index entries: prefix offset, URL offset, parent
+ *   - strings: 2 byte length followed by UTF-8, each URL stored once
+ *
+ * Both indexes are sorted by the names' UTF-8 bytes, so lookups are binary
+ * searches. A prefix's parent is the longest other prefix that is a prefix of
+ * it, or -1. Every prefix of a name that sorts at or below it is a prefix of
+ * the greatest prefix that does, so the longest match is found by walking up
+ * the parents from there.
+ */
+public class DeviceUrlTable {
+  private static final int MAGIC = 0x50574454; // "PWDT"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int EXACT_ENTRY_SIZE = 8;
+  private static final int PREFIX_ENTRY_SIZE = 12;
+  private static final int MAX_STRING_LENGTH = 0xffff;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final ByteBuffer mBuffer;
+  private final int mExactCount;
+  private final int mPrefixCount;
+  private final int mPrefixIndexStart;
+
+  /**
+   * Read a table in place. Only the header and index bounds are checked.
+   */
+  public DeviceUrlTable(ByteBuffer buffer) throws IOException {
+    mBuffer = buffer;
+    if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a device URL table.");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Unsupported device URL table version " + buffer.getInt(4));
+    }
+    mExactCount = buffer.getInt(8);
+    mPrefixCount = buffer.getInt(12);
+    mPrefixIndexStart = HEADER_SIZE + mExactCount * EXACT_ENTRY_SIZE;
+    if (mExactCount < 0 || mPrefixCount < 0
+        || (long) mPrefixIndexStart + (long) mPrefixCount * PREFIX_ENTRY_SIZE > buffer.limit()) {
+      throw new IOException("Truncated device URL table.");
+    }
+  }
+
+  /**
+   * Map length bytes of the channel from offset, for tables inside a larger
+   * file such as an APK. The mapping outlives the channel.
+   */
+  public static DeviceUrlTable map(FileChannel channel, long offset, long length)
+      throws IOException {
+    return new DeviceUrlTable(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+  }
+
+  public static DeviceUrlTable map(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      return map(in.getChannel(), 0, in.length());
+    } finally {
+      in.close();
+    }
+  }
+
+  public int size() {
+    return mExactCount + mPrefixCount;
+  }
+
+  /**
+   * The URL for the exact name if there is one, otherwise for the longest
+   * prefix of the name in the table, otherwise null.
+   */
+  public String lookup(String name) {
+    byte[] key = name.getBytes(UTF_8);
+
+    int low = 0;
+    int high = mExactCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int entry = HEADER_SIZE + mid * EXACT_ENTRY_SIZE;
+      int order = compare(mBuffer.getInt(entry), key);
+      if (order < 0) {
+        low = mid + 1;
+      } else if (order > 0) {
+        high = mid - 1;
+      } else {
+        return readString(mBuffer.getInt(entry + 4));
+      }
+    }
+
+    // The greatest prefix that sorts at or below the key.
+    low = 0;
+    high = mPrefixCount - 1;
+    int floor = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (compare(mBuffer.getInt(mPrefixIndexStart + mid * PREFIX_ENTRY_SIZE), key) <= 0) {
+        floor = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    for (int i = floor; i >= 0; ) {
+      int entry = mPrefixIndexStart + i * PREFIX_ENTRY_SIZE;
+      if (isPrefix(mBuffer.getInt(entry), key)) {
+        return readString(mBuffer.getInt(entry + 4));
+      }
+      i = mBuffer.getInt(entry + 8);
+    }
+    return null;
+  }
+
+  // Compare the string stored at offset with key, as unsigned bytes.
+  private int compare(int offset, byte[] key) {
+    int length = mBuffer.getShort(offset) & 0xffff;
+    int start = offset + 2;
+    int common = Math.min(length, key.length);
+    for (int i = 0; i < common; i++) {
+      int order = (mBuffer.get(start + i) & 0xff) - (key[i] & 0xff);
+      if (order != 0) {
+        return order;
+      }
+    }
+    return length - key.length;
+  }
+
+  private boolean isPrefix(int offset, byte[] key) {
+    int length = mBuffer.getShort(offset) & 0xffff;
+    if (length > key.length) {
+      return false;
+    }
+    int start = offset + 2;
+    for (int i = 0; i < length; i++) {
+      if (mBuffer.get(start + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String readString(int offset) {
+    int length = mBuffer.getShort(offset) & 0xffff;
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = mBuffer.get(offset + 2 + i);
+    }
+    return new String(bytes, UTF_8);
+  }
+
+  /**
+   * Collects names and prefixes and writes them out as a table. Adding a
+   * name again replaces its URL.
+   */
+  public static class Writer {
+    private final TreeMap<byte[], String> mExact = new TreeMap<byte[], String>(BYTE_ORDER);
+    private final TreeMap<byte[], String> mPrefixes = new TreeMap<byte[], String>(BYTE_ORDER);
+
+    public void add(String name, String url, boolean isPrefix) {
+      byte[] key = name.getBytes(UTF_8);
+      if (key.length > MAX_STRING_LENGTH || url.getBytes(UTF_8).length > MAX_STRING_LENGTH) {
+        throw new IllegalArgumentException("Name or URL too long: " + name);
+      }
+      (isPrefix ? mPrefixes : mExact).put(key, url);
+    }
+
+    public int size() {
+      return mExact.size() + mPrefixes.size();
+    }
+
+    public void write(OutputStream out) throws IOException {
+      ArrayList<byte[]> exactNames = new ArrayList<byte[]>(mExact.keySet());
+      ArrayList<byte[]> prefixes = new ArrayList<byte[]>(mPrefixes.keySet());
+
+      // Lay out the strings after the indexes, sharing repeated URLs.
+      ArrayList<byte[]> strings = new ArrayList<byte[]>();
+      HashMap<String, Integer> urlOffsets = new HashMap<String, Integer>();
+      int[] offset = {HEADER_SIZE + exactNames.size() * EXACT_ENTRY_SIZE
+          + prefixes.size() * PREFIX_ENTRY_SIZE};
+      int[] exactEntries = new int[exactNames.size() * 2];
+      for (int i = 0; i < exactNames.size(); i++) {
+        exactEntries[i * 2] = addString(strings, exactNames.get(i), offset);
+        exactEntries[i * 2 + 1] = addUrl(strings, urlOffsets, mExact.get(exactNames.get(i)),
+            offset);
+      }
+      int[] prefixEntries = new int[prefixes.size() * 3];
+      // The chain of prefixes of the current one, longest on top.
+      ArrayList<Integer> chain = new ArrayList<Integer>();
+      for (int i = 0; i < prefixes.size(); i++) {
+        byte[] prefix = prefixes.get(i);
+        while (!chain.isEmpty() && !startsWith(prefix, prefixes.get(chain.get(chain.size() - 1)))) {
+          chain.remove(chain.size() - 1);
+        }
+        prefixEntries[i * 3] = addString(strings, prefix, offset);
+        prefixEntries[i * 3 + 1] = addUrl(strings, urlOffsets, mPrefixes.get(prefix), offset);
+        prefixEntries[i * 3 + 2] = chain.isEmpty() ? -1 : chain.get(chain.size() - 1);
+        chain.add(i);
+      }
+
+      DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+      data.writeInt(MAGIC);
+      data.writeInt(VERSION);
+      data.writeInt(exactNames.size());
+      data.writeInt(prefixes.size());
+      for (int value : exactEntries) {
+        data.writeInt(value);
+      }
+      for (int value : prefixEntries) {
+        data.writeInt(value);
+      }
+      for (byte[] string : strings) {
+        data.writeShort(string.length);
+        data.write(string);
+      }
+      data.flush();
+    }
+
+    private static int addString(ArrayList<byte[]> strings, byte[] string, int[] offset) {
+      int stringOffset = offset[0];
+      strings.add(string);
+      offset[0] += 2 + string.length;
+      return stringOffset;
+    }
+
+    private static int addUrl(ArrayList<byte[]> strings, HashMap<String, Integer> urlOffsets,
+                              String url, int[] offset) {
+      Integer urlOffset = urlOffsets.get(url);
+      if (urlOffset == null) {
+        urlOffset = addString(strings, url.getBytes(UTF_8), offset);
+        urlOffsets.put(url, urlOffset);
+      }
+      return urlOffset;
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+      if (prefix.length > bytes.length) {
+        return false;
+      }
+      for (int i = 0; i < prefix.length; i++) {
+        if (bytes[i] != prefix[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>() {
+    @Override
+    public int compare(byte[] lhs, byte[] rhs) {
+      int common = Math.min(lhs.length, rhs.length);
+      for (int i = 0; i < common; i++) {
+        int order = (lhs[i] & 0xff) - (rhs[i] & 0xff);
+        if (order != 0) {
+          return order;
+        }
+      }
+      return lhs.length - rhs.length;
+    }
+  };
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+
+/**
+ * The one background thread that owns device state.
+ *
+ * Ingesting scan results, expiring devices, batching and resolving metadata
+ * all happen here, so none of that state needs locking. The UI thread only
+ * ever sees immutable NearbyDevice.Snapshots. The thread lives as long as the
+ * process, like Volley's.
+ */
+public class EventLoop {
+  private static HandlerThread mThread;
+  private static Handler mHandler;
+  private static Executor mExecutor;
+
+  private EventLoop() {
+  }
+
+  public static synchronized Handler getHandler() {
+    if (mHandler == null) {
+      mThread = new HandlerThread("DeviceEventLoop", Process.THREAD_PRIORITY_BACKGROUND);
+      mThread.start();
+      mHandler = new Handler(mThread.getLooper());
+    }
+    return mHandler;
+  }
+
+  /**
+   * Runs tasks on the loop, for EventQueue and Volley's response delivery.
+   */
+  public static synchronized Executor getExecutor() {
+    if (mExecutor == null) {
+      final Handler handler = getHandler();
+      mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+          handler.post(runnable);
+        }
+      };
+    }
+    return mExecutor;
+  }
+
+  public static boolean isCurrentThread() {
+    return Looper.myLooper() == getHandler().getLooper();
+  }
+}
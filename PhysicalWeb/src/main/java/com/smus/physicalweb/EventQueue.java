@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands events from any number of threads to a single consumer.
+ *
+ * Producers never block or take a lock: an event is appended to a lock-free
+ * queue, and only the producer that finds the queue idle schedules a drain
+ * on the executor. The executor must run tasks one at a time (EventLoop's
+ * handler, for instance), so the listener always sees events on one thread,
+ * in the order each producer offered them.
+ *
+ * A drain handles at most MAX_EVENTS_PER_DRAIN events before rescheduling
+ * itself, so other work on the same thread, like timers, still gets a turn
+ * under a flood of events.
+ */
+public class EventQueue<T> {
+  public interface OnEventListener<T> {
+    public void onEvent(T event);
+  }
+
+  private static final int MAX_EVENTS_PER_DRAIN = 256;
+
+  private final ConcurrentLinkedQueue<T> mQueue = new ConcurrentLinkedQueue<T>();
+  // Set while a drain is scheduled or running.
+  private final AtomicBoolean mIsDrainScheduled = new AtomicBoolean();
+  private final Executor mExecutor;
+  private final OnEventListener<T> mListener;
+
+  public EventQueue(Executor executor, OnEventListener<T> listener) {
+    mExecutor = executor;
+    mListener = listener;
+  }
+
+  /**
+   * Queue the event for the listener. Safe to call from any thread.
+   */
+  public void offer(T event) {
+    mQueue.offer(event);
+    if (mIsDrainScheduled.compareAndSet(false, true)) {
+      mExecutor.execute(mDrainTask);
+    }
+  }
+
+  private final Runnable mDrainTask = new Runnable() {
+    @Override
+    public void run() {
+      for (int i = 0; i < MAX_EVENTS_PER_DRAIN; i++) {
+        T event = mQueue.poll();
+        if (event == null) {
+          break;
+        }
+        mListener.onEvent(event);
+      }
+      mIsDrainScheduled.set(false);
+      // Anything offered after the last poll saw the flag still set and
+      // left it to us.
+      if (!mQueue.isEmpty() && mIsDrainScheduled.compareAndSet(false, true)) {
+        mExecutor.execute(this);
+      }
+    }
+  };
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Hashed timing wheel for expiring items that haven't been seen for a while.
+ *
+ * Each item sits in the slot for its deadline. Pushing a deadline back just
+ * moves the item to another slot, and each tick only looks at one slot, so
+ * items that keep being seen are never scanned. Deadlines further out than
+ * one turn of the wheel stay put until a later turn reaches them.
+ *
+ * Not thread safe.
+ */
+public class ExpiryWheel<T> {
+  private Clock mClock;
+  private long mTickDuration;
+  private Node<T>[] mSlots;
+  private HashMap<T, Node<T>> mNodes;
+  // The last tick we processed.
+  private long mCurrentTick;
+
+  @SuppressWarnings("unchecked")
+  public ExpiryWheel(Clock clock, long tickDuration, int slotCount) {
+    mClock = clock;
+    mTickDuration = tickDuration;
+    mSlots = (Node<T>[]) new Node<?>[slotCount];
+    mNodes = new HashMap<T, Node<T>>();
+    mCurrentTick = clock.currentTimeMillis() / tickDuration;
+  }
+
+  /**
+   * Expire the item at the given time (ms, on this wheel's clock), replacing
+   * any deadline it had before.
+   */
+  public void schedule(T item, long deadline) {
+    Node<T> node = mNodes.get(item);
+    if (node == null) {
+      node = new Node<T>(item);
+      mNodes.put(item, node);
+    } else {
+      unlink(node);
+    }
+    node.deadline = deadline;
+    // The first tick that starts at or after the deadline, so the node has
+    // expired whenever that tick is processed; otherwise it could be missed
+    // by a tick processed just before it and wait a whole turn. Never put a
+    // node behind the tick we've already processed.
+    long tick = Math.max((deadline + mTickDuration - 1) / mTickDuration, mCurrentTick + 1);
+    link(node, (int) (tick % mSlots.length));
+  }
+
+  public void remove(T item) {
+    Node<T> node = mNodes.remove(item);
+    if (node != null) {
+      unlink(node);
+    }
+  }
+
+  public boolean isEmpty() {
+    return mNodes.isEmpty();
+  }
+
+  public int size() {
+    return mNodes.size();
+  }
+
+  public long getTickDuration() {
+    return mTickDuration;
+  }
+
+  /**
+   * Process every slot up to the current time, and return the items whose
+   * deadline has passed. They are no longer on the wheel.
+   */
+  public ArrayList<T> advance() {
+    ArrayList<T> expired = new ArrayList<T>();
+    long now = mClock.currentTimeMillis();
+    long nowTick = now / mTickDuration;
+    // No need to go around more than once.
+    long firstTick = Math.max(mCurrentTick + 1, nowTick - mSlots.length + 1);
+    for (long tick = firstTick; tick <= nowTick; tick++) {
+      int slot = (int) (tick % mSlots.length);
+      Node<T> node = mSlots[slot];
+      while (node != null) {
+        Node<T> next = node.next;
+        if (node.deadline <= now) {
+          unlink(node);
+          mNodes.remove(node.item);
+          expired.add(node.item);
+        }
+        node = next;
+      }
+    }
+    mCurrentTick = Math.max(mCurrentTick, nowTick);
+    return expired;
+  }
+
+  private void link(Node<T> node, int slot) {
+    node.slot = slot;
+    node.prev = null;
+    node.next = mSlots[slot];
+    if (node.next != null) {
+      node.next.prev = node;
+    }
+    mSlots[slot] = node;
+  }
+
+  private void unlink(Node<T> node) {
+    if (node.prev != null) {
+      node.prev.next = node.next;
+    } else {
+      mSlots[node.slot] = node.next;
+    }
+    if (node.next != null) {
+      node.next.prev = node.prev;
+    }
+    node.prev = null;
+    node.next = null;
+  }
+
+  private static class Node<T> {
+    final T item;
+    long deadline;
+    int slot;
+    Node<T> prev;
+    Node<T> next;
+
+    Node(T item) {
+      this.item = item;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+/**
+ * Folds any number of requests to update the UI into at most one update per
+ * display frame.
+ *
+ * Urgent changes, the ones users notice (devices coming and going, cards
+ * filling in), are applied on the next frame. Routine ones, like RSSI
+ * wobbling, wait up to the routine interval so that they can pile up; an
+ * urgent change that comes along meanwhile takes them with it. Either way
+ * the update runs on the frame clock's thread, however fast requests come.
+ *
+ * Requests may come from any thread.
+ */
+public class FrameCoalescer {
+  /**
+   * When displayed frames start, such as a Choreographer's. Whatever the
+   * thread the requests come from, doFrame() is called on the thread that
+   * draws the frames.
+   */
+  public interface FrameClock {
+    // Call doFrame() at the first frame at least delay ms from now, instead
+    // of whenever it was to be called before.
+    public void scheduleFrame(FrameCoalescer coalescer, long delay);
+  }
+
+  public interface OnUpdateListener {
+    // Apply every change made since the last update.
+    public void onUpdate();
+  }
+
+  private FrameClock mFrameClock;
+  private OnUpdateListener mListener;
+  private long mRoutineInterval;
+
+  private boolean mIsPending = false;
+  private boolean mIsUrgent = false;
+
+  /**
+   * Routine changes are applied at most routineInterval ms after they were
+   * requested.
+   */
+  public FrameCoalescer(FrameClock frameClock, long routineInterval, OnUpdateListener listener) {
+    mFrameClock = frameClock;
+    mRoutineInterval = routineInterval;
+    mListener = listener;
+  }
+
+  public synchronized void setRoutineInterval(long routineInterval) {
+    mRoutineInterval = routineInterval;
+  }
+
+  public synchronized void requestUpdate(boolean isUrgent) {
+    if (isUrgent) {
+      if (!mIsUrgent) {
+        // Sooner than any routine update waiting.
+        mIsUrgent = true;
+        mFrameClock.scheduleFrame(this, 0);
+      }
+    } else if (!mIsPending) {
+      mFrameClock.scheduleFrame(this, mRoutineInterval);
+    }
+    mIsPending = true;
+  }
+
+  // Called by the frame clock at the start of a frame.
+  public void doFrame(long frameTimeNanos) {
+    synchronized (this) {
+      if (!mIsPending) {
+        return;
+      }
+      // Requests made during the update are for a later frame.
+      mIsPending = false;
+      mIsUrgent = false;
+    }
+    mListener.onUpdate();
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * Decoded icons, keyed by icon URL and bounded by their total size in bytes.
+ *
+ * Devices only keep the icon URL, so icons that scroll out of use can be
+ * evicted and decoded again later instead of living as long as the device.
+ *
+ * The app keeps Bitmaps; anything else only needs a Sizer, which is how
+ * IconCacheHarness fills one off the device.
+ */
+public class IconCache<T> extends LruCache<String, T> {
+  // Fraction of the heap we are willing to spend on icons.
+  private static int HEAP_FRACTION = 16;
+
+  public interface Sizer<T> {
+    // How many bytes the decoded icon takes up.
+    public int getByteCount(T icon);
+  }
+
+  public static final Sizer<Bitmap> BITMAP_SIZER = new Sizer<Bitmap>() {
+    @Override
+    public int getByteCount(Bitmap icon) {
+      return icon.getByteCount();
+    }
+  };
+
+  private Sizer<T> mSizer;
+
+  // Bitmaps, in a share of the heap.
+  public static IconCache<Bitmap> create() {
+    return new IconCache<Bitmap>(
+        (int) (Runtime.getRuntime().maxMemory() / HEAP_FRACTION), BITMAP_SIZER);
+  }
+
+  public IconCache(int maxBytes, Sizer<T> sizer) {
+    super(maxBytes);
+    mSizer = sizer;
+  }
+
+  @Override
+  protected int sizeOf(String iconUrl, T icon) {
+    return mSizer.getByteCount(icon);
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.io.IOException;
+
+/**
+ * A minimal pull parser over a JSON document held in a String.
+ *
+ * Names are matched against the caller's list in place, so only the values
+ * that are actually read become Strings, and strings without escapes are
+ * taken as substrings of the document. Separators are checked loosely.
+ */
+class JsonPullParser {
+  private final String mJson;
+  private final int mLength;
+  private int mPosition;
+
+  JsonPullParser(String json) {
+    mJson = json;
+    mLength = json.length();
+  }
+
+  void beginObject() throws IOException {
+    expect('{');
+  }
+
+  void endObject() throws IOException {
+    expect('}');
+  }
+
+  void beginArray() throws IOException {
+    expect('[');
+  }
+
+  void endArray() throws IOException {
+    expect(']');
+  }
+
+  /**
+   * Returns true if the current object or array has another member, and
+   * moves past the comma before it.
+   */
+  boolean hasNext() throws IOException {
+    char c = peek();
+    if (c == ',') {
+      mPosition++;
+      c = peek();
+    }
+    return c != '}' && c != ']';
+  }
+
+  /**
+   * Read a member's name and the colon after it, returning the index of the
+   * name in names, or -1 if it isn't one of them.
+   */
+  int nextName(String[] names) throws IOException {
+    expect('"');
+    int start = mPosition;
+    int end = mJson.indexOf('"', start);
+    if (end == -1) {
+      throw syntaxError("Unterminated name");
+    }
+    mPosition = end + 1;
+    expect(':');
+    int length = end - start;
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].length() == length && mJson.regionMatches(start, names[i], 0, length)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Read a string, number or boolean as a String, or return null for null.
+   */
+  String nextString() throws IOException {
+    char c = peek();
+    if (c == '"') {
+      mPosition++;
+      return readQuoted();
+    }
+    if (c == '{' || c == '[') {
+      throw syntaxError("Expected a value");
+    }
+    int start = mPosition;
+    skipLiteral();
+    if (mPosition - start == 4 && mJson.startsWith("null", start)) {
+      return null;
+    }
+    return mJson.substring(start, mPosition);
+  }
+
+  void skipValue() throws IOException {
+    char c = peek();
+    if (c == '{') {
+      beginObject();
+      while (hasNext()) {
+        expect('"');
+        readQuoted();
+        expect(':');
+        skipValue();
+      }
+      endObject();
+    } else if (c == '[') {
+      beginArray();
+      while (hasNext()) {
+        skipValue();
+      }
+      endArray();
+    } else if (c == '"') {
+      mPosition++;
+      readQuoted();
+    } else {
+      skipLiteral();
+    }
+  }
+
+  private String readQuoted() throws IOException {
+    int start = mPosition;
+    int end = mJson.indexOf('"', start);
+    if (end == -1) {
+      throw syntaxError("Unterminated string");
+    }
+    int escape = start;
+    while (escape < end && mJson.charAt(escape) != '\\') {
+      escape++;
+    }
+    if (escape == end) {
+      mPosition = end + 1;
+      return mJson.substring(start, end);
+    }
+
+    StringBuilder value = new StringBuilder(end - start);
+    value.append(mJson, start, escape);
+    mPosition = escape;
+    while (true) {
+      if (mPosition >= mLength) {
+        throw syntaxError("Unterminated string");
+      }
+      char c = mJson.charAt(mPosition++);
+      if (c == '"') {
+        return value.toString();
+      }
+      if (c != '\\') {
+        value.append(c);
+        continue;
+      }
+      if (mPosition >= mLength) {
+        throw syntaxError("Unterminated escape");
+      }
+      c = mJson.charAt(mPosition++);
+      switch (c) {
+        case 'b': value.append('\b'); break;
+        case 'f': value.append('\f'); break;
+        case 'n': value.append('\n'); break;
+        case 'r': value.append('\r'); break;
+        case 't': value.append('\t'); break;
+        case 'u':
+          if (mPosition + 4 > mLength) {
+            throw syntaxError("Unterminated escape");
+          }
+          try {
+            value.append((char) Integer.parseInt(mJson.substring(mPosition, mPosition + 4), 16));
+          } catch (NumberFormatException e) {
+            throw syntaxError("Invalid escape");
+          }
+          mPosition += 4;
+          break;
+        default:
+          // \" \\ \/
+          value.append(c);
+      }
+    }
+  }
+
+  private void skipLiteral() throws IOException {
+    int start = mPosition;
+    while (mPosition < mLength) {
+      char c = mJson.charAt(mPosition);
+      if (c == ',' || c == '}' || c == ']' || c == ':' || isWhitespace(c)) {
+        break;
+      }
+      mPosition++;
+    }
+    if (mPosition == start) {
+      throw syntaxError("Expected a value");
+    }
+  }
+
+  private char peek() throws IOException {
+    while (mPosition < mLength && isWhitespace(mJson.charAt(mPosition))) {
+      mPosition++;
+    }
+    if (mPosition >= mLength) {
+      throw syntaxError("Unexpected end of document");
+    }
+    return mJson.charAt(mPosition);
+  }
+
+  private void expect(char expected) throws IOException {
+    if (peek() != expected) {
+      throw syntaxError("Expected '" + expected + "'");
+    }
+    mPosition++;
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+  }
+
+  private IOException syntaxError(String message) {
+    return new IOException(message + " at offset " + mPosition);
+  }
+}
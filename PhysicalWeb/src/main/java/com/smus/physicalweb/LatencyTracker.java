@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.util.Arrays;
+
+/**
+ * The most recent round trip times of some kind of request, and their
+ * percentiles.
+ *
+ * Samples go into a ring, so the percentiles follow the network as it
+ * changes rather than averaging over the app's lifetime. They are computed
+ * by sorting a copy of the ring, at most once per new sample.
+ */
+public class LatencyTracker {
+  private final long[] mSamples;
+  private int mCount = 0;
+  private int mNext = 0;
+  // The samples in order, or null if one has come in since they were sorted.
+  private long[] mSorted;
+
+  public LatencyTracker(int windowSize) {
+    mSamples = new long[windowSize];
+  }
+
+  public synchronized void record(long latency) {
+    mSamples[mNext] = latency;
+    mNext = (mNext + 1) % mSamples.length;
+    mCount = Math.min(mCount + 1, mSamples.length);
+    mSorted = null;
+  }
+
+  // How many samples the percentiles are based on.
+  public synchronized int getCount() {
+    return mCount;
+  }
+
+  /**
+   * The latency that the fraction (0 to 1) of recent samples are at or
+   * under, or -1 if there are none yet.
+   */
+  public synchronized long getPercentile(double fraction) {
+    if (mCount == 0) {
+      return -1;
+    }
+    if (mSorted == null) {
+      mSorted = Arrays.copyOf(mSamples, mCount);
+      Arrays.sort(mSorted);
+    }
+    int index = (int) Math.ceil(fraction * mCount) - 1;
+    return mSorted[Math.max(0, Math.min(mCount - 1, index))];
+  }
+}
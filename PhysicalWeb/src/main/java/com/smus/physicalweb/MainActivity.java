@@ -17,6 +17,7 @@
 package com.smus.physicalweb;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.Fragment;
 import android.content.Intent;
 import android.net.Uri;
@@ -28,11 +29,27 @@ import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
 public class MainActivity extends Activity implements NearbyDeviceManager.OnNearbyDeviceChangeListener {
 
   private String TAG = "MainActivity";
 
   private NearbyDeviceManager mDeviceManager;
+  private ScanLog.Writer mScanRecorder;
+
+  private static final String SCAN_LOG_NAME = "scans.bin";
+  private static final double REPLAY_SPEED = 10;
+  private static final int SYNTHETIC_BEACON_COUNT = 100;
+  private static final long SYNTHETIC_INTERVAL = 1000;
+  private static final long SYNTHETIC_DURATION = 60000;
+  // The app has no notion of where it is yet, so there is just one region.
+  private static final String SYNC_REGION = "default";
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -53,6 +70,54 @@ public class MainActivity extends Activity implements NearbyDeviceManager.OnNear
   @Override
   protected void onDestroy() {
     mDeviceManager.stopSearchingForDevices();
+    stopRecording();
+  }
+
+  private File getScanLogFile() {
+    File dir = getExternalFilesDir(null);
+    if (dir == null) {
+      dir = getFilesDir();
+    }
+    return new File(dir, SCAN_LOG_NAME);
+  }
+
+  private void toggleRecording() {
+    if (mScanRecorder != null) {
+      stopRecording();
+      Toast.makeText(this, "Stopped recording.", Toast.LENGTH_SHORT).show();
+      return;
+    }
+    File file = getScanLogFile();
+    try {
+      mScanRecorder = new ScanLog.Writer(new FileOutputStream(file));
+      mDeviceManager.setScanRecorder(mScanRecorder);
+      Toast.makeText(this, "Recording to " + file, Toast.LENGTH_SHORT).show();
+    } catch (IOException e) {
+      Log.e(TAG, "Couldn't start recording", e);
+    }
+  }
+
+  private void stopRecording() {
+    if (mScanRecorder == null) {
+      return;
+    }
+    mDeviceManager.setScanRecorder(null);
+    try {
+      mScanRecorder.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Couldn't finish recording", e);
+    }
+    mScanRecorder = null;
+  }
+
+  private void replayRecording() {
+    stopRecording();
+    try {
+      ScanSource source = new ScanLog.Reader(new FileInputStream(getScanLogFile()));
+      mDeviceManager.startReplay(source, REPLAY_SPEED);
+    } catch (IOException e) {
+      Toast.makeText(this, "No recording to replay.", Toast.LENGTH_SHORT).show();
+    }
   }
 
 
@@ -73,6 +138,30 @@ public class MainActivity extends Activity implements NearbyDeviceManager.OnNear
       case R.id.action_scan:
         mDeviceManager.scanDebug();
         return true;
+      case R.id.action_metrics:
+        new AlertDialog.Builder(this)
+            .setTitle(R.string.action_metrics)
+            .setMessage(Metrics.dump())
+            .setPositiveButton(android.R.string.ok, null)
+            .show();
+        return true;
+      case R.id.action_record:
+        toggleRecording();
+        return true;
+      case R.id.action_replay:
+        replayRecording();
+        return true;
+      case R.id.action_replay_synthetic:
+        mDeviceManager.startReplay(new SyntheticScanSource(SYNTHETIC_BEACON_COUNT,
+            SYNTHETIC_INTERVAL, SYNTHETIC_DURATION, System.currentTimeMillis()), 1);
+        return true;
+      case R.id.action_sync_region:
+        syncRegion();
+        return true;
+      case R.id.action_prefetch:
+        item.setChecked(!item.isChecked());
+        mDeviceManager.setPrefetchEnabled(item.isChecked());
+        return true;
       case R.id.action_debug:
         NearbyDevice device = new NearbyDevice("http://z3.ca/1", -60);
         mDeviceManager.foundDeviceDebug(device);
@@ -99,6 +188,31 @@ public class MainActivity extends Activity implements NearbyDeviceManager.OnNear
     return super.onOptionsItemSelected(item);
   }
 
+  private void syncRegion() {
+    Toast.makeText(this, R.string.sync_started, Toast.LENGTH_SHORT).show();
+    MetadataResolver.syncRegion(SYNC_REGION, new MetadataResolver.OnRegionSyncedListener() {
+      @Override
+      public void onRegionSynced(String region, final int changeCount, final boolean isSuccess) {
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            String message = isSuccess
+                ? getString(R.string.sync_finished, changeCount)
+                : getString(R.string.sync_failed);
+            Toast.makeText(MainActivity.this, message, Toast.LENGTH_SHORT).show();
+          }
+        });
+      }
+    });
+  }
+
+  // Lets "adb shell dumpsys activity com.smus.physicalweb" print the metrics.
+  @Override
+  public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+    super.dump(prefix, fd, writer, args);
+    writer.print(Metrics.dump());
+  }
+
   @Override
   public void onDeviceFound(NearbyDevice device) {
     Log.i(TAG, "Found a device: " + device.getName());
@@ -121,18 +235,21 @@ public class MainActivity extends Activity implements NearbyDeviceManager.OnNear
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
       View rootView = inflater.inflate(R.layout.fragment_main, container, false);
-      MainActivity parentActivity = (MainActivity) getActivity();
+      final MainActivity parentActivity = (MainActivity) getActivity();
       ListView list = (ListView) rootView.findViewById(R.id.devices);
-      list.setAdapter(parentActivity.mDeviceManager.getAdapter());
+      NearbyDeviceAdapter adapter = parentActivity.mDeviceManager.getAdapter();
+      list.setAdapter(adapter);
+      adapter.setListView(list);
       list.setOnItemClickListener(new OnItemClickListener() {
         @Override
         public void onItemClick(AdapterView<?> parent, View view, int position,
                                 long id) {
-          NearbyDevice device = (NearbyDevice) parent.getAdapter().getItem(position);
+          NearbyDevice.Snapshot device =
+              (NearbyDevice.Snapshot) parent.getAdapter().getItem(position);
           String url = device.getUrl();
           if (url != null) {
             Intent i = new Intent(Intent.ACTION_VIEW);
-            i.setData(Uri.parse(url));
+            i.setData(Uri.parse(parentActivity.mDeviceManager.getPageUrl(url)));
             startActivity(i);
           } else {
             Toast.makeText(getActivity(), "No URL found.", Toast.LENGTH_SHORT).show();
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import android.util.Log;
+import android.util.LruCache;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Two-tier cache of resolved metadata, keyed by the URL the device broadcasts.
+ *
+ * Entries live in a memory LRU backed by one small file per URL on disk, so
+ * they survive a device going away and coming back, and app restarts. URLs
+ * the resolver had nothing for are cached as negative entries with a shorter
+ * TTL so we don't keep asking about them. Expired metadata is kept for a
+ * while longer, to show while the resolver can't be reached (see
+ * getStale()).
+ *
+ * The disk store holds at most maxDiskEntries files. Past that, the least
+ * recently used are deleted, entries still in memory last.
+ */
+public class MetadataCache {
+  private static String TAG = "MetadataCache";
+
+  private static int MEMORY_ENTRIES = 256;
+  // How long resolved metadata stays fresh (ms).
+  static long POSITIVE_TTL = 24 * 60 * 60 * 1000;
+  // How long we remember that a URL had no metadata (ms).
+  static long NEGATIVE_TTL = 10 * 60 * 1000;
+  // How long expired metadata is kept to fall back on (ms).
+  static long STALE_TTL = 30L * 24 * 60 * 60 * 1000;
+
+  private static int MAX_DISK_ENTRIES = 2000;
+  // Pruning takes the disk store down to this fraction of its limit, so it
+  // doesn't have to happen on every write.
+  private static double PRUNE_FRACTION = 0.9;
+
+  private LruCache<String, Entry> mMemoryCache;
+  private File mDirectory;
+  // Wall clock: expiry times and file times are kept across reboots.
+  private Clock mClock;
+  private int mMaxDiskEntries;
+  // Files in the directory; counted on the first write.
+  private int mDiskEntryCount = -1;
+
+  public MetadataCache(File directory) {
+    this(directory, Clock.WALL, MAX_DISK_ENTRIES);
+  }
+
+  public MetadataCache(File directory, Clock clock, int maxDiskEntries) {
+    mMemoryCache = new LruCache<String, Entry>(MEMORY_ENTRIES);
+    mDirectory = directory;
+    mClock = clock;
+    mMaxDiskEntries = maxDiskEntries;
+    if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+      Log.e(TAG, "Could not create cache directory " + mDirectory);
+    }
+  }
+
+  /**
+   * Look up a URL. Returns null on a miss or an expired entry; otherwise the
+   * returned entry is either positive (has metadata) or negative.
+   */
+  public Entry get(String url) {
+    long now = mClock.currentTimeMillis();
+    Entry entry = load(url);
+    if (entry == null || entry.expiresAt < now) {
+      if (entry != null && (entry.isNegative() || isTooStale(entry, now))) {
+        remove(url);
+      }
+      Metrics.METADATA_CACHE_MISSES.inc();
+      return null;
+    }
+    if (entry.isNegative()) {
+      Metrics.METADATA_CACHE_NEGATIVE_HITS.inc();
+    } else {
+      Metrics.METADATA_CACHE_HITS.inc();
+    }
+    return entry;
+  }
+
+  /**
+   * The metadata last resolved for a URL, even if it has expired, or null.
+   * Metadata more than STALE_TTL past its expiry is gone.
+   */
+  public DeviceMetadata getStale(String url) {
+    Entry entry = load(url);
+    if (entry != null && isTooStale(entry, mClock.currentTimeMillis())) {
+      remove(url);
+      return null;
+    }
+    return entry != null ? entry.metadata : null;
+  }
+
+  private static boolean isTooStale(Entry entry, long now) {
+    return entry.expiresAt + STALE_TTL < now;
+  }
+
+  private Entry load(String url) {
+    Entry entry = mMemoryCache.get(url);
+    if (entry == null) {
+      entry = readFromDisk(url);
+      if (entry != null) {
+        mMemoryCache.put(url, entry);
+      }
+    }
+    return entry;
+  }
+
+  public void put(String url, DeviceMetadata metadata) {
+    store(url, new Entry(metadata, mClock.currentTimeMillis() + POSITIVE_TTL));
+  }
+
+  public void putNegative(String url) {
+    store(url, new Entry(null, mClock.currentTimeMillis() + NEGATIVE_TTL));
+  }
+
+  public void remove(String url) {
+    mMemoryCache.remove(url);
+    deleteFile(getFile(url));
+  }
+
+  // How many entries are on disk.
+  public int getDiskEntryCount() {
+    countDiskEntries();
+    return mDiskEntryCount;
+  }
+
+  private void store(String url, Entry entry) {
+    mMemoryCache.put(url, entry);
+    writeToDisk(url, entry);
+  }
+
+  private File getFile(String url) {
+    // The URL itself is stored in the file, so hash collisions are detected on
+    // read.
+    return new File(mDirectory, Integer.toHexString(url.hashCode()));
+  }
+
+  private Entry readFromDisk(String url) {
+    File file = getFile(url);
+    if (!file.exists()) {
+      return null;
+    }
+    // Used, as far as pruning is concerned.
+    file.setLastModified(mClock.currentTimeMillis());
+    try {
+      JSONObject json = new JSONObject(readFile(file));
+      if (!url.equals(json.getString("key"))) {
+        return null;
+      }
+      DeviceMetadata metadata = null;
+      if (json.has("title")) {
+        metadata = new DeviceMetadata();
+        metadata.title = json.getString("title");
+        metadata.siteUrl = json.getString("url");
+        metadata.description = json.getString("description");
+        metadata.iconUrl = json.getString("icon");
+      }
+      return new Entry(metadata, json.getLong("expires"));
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to read cache entry for " + url, e);
+    } catch (JSONException e) {
+      Log.e(TAG, "Corrupt cache entry for " + url, e);
+      deleteFile(file);
+    }
+    return null;
+  }
+
+  private void writeToDisk(String url, Entry entry) {
+    countDiskEntries();
+    File file = getFile(url);
+    boolean isNew = !file.exists();
+    FileOutputStream out = null;
+    try {
+      JSONObject json = new JSONObject();
+      json.put("key", url);
+      json.put("expires", entry.expiresAt);
+      if (entry.metadata != null) {
+        json.put("title", entry.metadata.title);
+        json.put("url", entry.metadata.siteUrl);
+        json.put("description", entry.metadata.description);
+        json.put("icon", entry.metadata.iconUrl);
+      }
+      out = new FileOutputStream(file);
+      out.write(json.toString().getBytes("UTF-8"));
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write cache entry for " + url, e);
+    } catch (JSONException e) {
+      Log.e(TAG, "Failed to encode cache entry for " + url, e);
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // Nothing more we can do.
+        }
+      }
+    }
+    if (!file.exists()) {
+      return;
+    }
+    file.setLastModified(mClock.currentTimeMillis());
+    if (isNew && ++mDiskEntryCount > mMaxDiskEntries) {
+      prune();
+    }
+  }
+
+  private void countDiskEntries() {
+    if (mDiskEntryCount < 0) {
+      String[] names = mDirectory.list();
+      mDiskEntryCount = names != null ? names.length : 0;
+    }
+  }
+
+  private void deleteFile(File file) {
+    if (file.delete() && mDiskEntryCount > 0) {
+      mDiskEntryCount--;
+    }
+  }
+
+  // Delete the least recently used files until the store is comfortably
+  // under its limit. Files of entries in the memory cache go last, since
+  // using them doesn't touch their files; among each, the oldest go first.
+  private void prune() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    final HashSet<String> inMemory = new HashSet<String>();
+    for (String url : mMemoryCache.snapshot().keySet()) {
+      inMemory.add(getFile(url).getName());
+    }
+    // Read once, as sorting needs the times to hold still.
+    final HashMap<File, Long> lastUsedByFile = new HashMap<File, Long>();
+    for (File file : files) {
+      lastUsedByFile.put(file, file.lastModified());
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        boolean isAInMemory = inMemory.contains(a.getName());
+        if (isAInMemory != inMemory.contains(b.getName())) {
+          return isAInMemory ? 1 : -1;
+        }
+        long aTime = lastUsedByFile.get(a);
+        long bTime = lastUsedByFile.get(b);
+        return aTime < bTime ? -1 : (aTime == bTime ? 0 : 1);
+      }
+    });
+    mDiskEntryCount = files.length;
+    int target = (int) (mMaxDiskEntries * PRUNE_FRACTION);
+    for (int i = 0; i < files.length && mDiskEntryCount > target; i++) {
+      deleteFile(files[i]);
+    }
+  }
+
+  private static String readFile(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      byte[] data = new byte[(int) file.length()];
+      int read = 0;
+      while (read < data.length) {
+        int count = in.read(data, read, data.length - read);
+        if (count < 0) {
+          break;
+        }
+        read += count;
+      }
+      return new String(data, 0, read, "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  public static class Entry {
+    // Null for negative entries.
+    public final DeviceMetadata metadata;
+    public final long expiresAt;
+
+    Entry(DeviceMetadata metadata, long expiresAt) {
+      this.metadata = metadata;
+      this.expiresAt = expiresAt;
+    }
+
+    public boolean isNegative() {
+      return metadata == null;
+    }
+  }
+}
@@ -17,155 +17,617 @@
 package com.smus.physicalweb;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.SQLException;
 import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.Handler;
 import android.util.Log;
-import android.util.Patterns;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.HurlStack;
 import com.android.volley.toolbox.ImageRequest;
-import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.Volley;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * Static class for resolving metadata.
  *
+ * Everything here runs on the EventLoop: batches are resolved from there,
+ * and Volley delivers responses there rather than on the main thread.
+ *
+ * A ResolvePolicy keeps resolution quick when the resolver is slow: it sets
+ * the timeouts, hedges slow requests and spaces out retries. When the
+ * resolver is down, cards get stale or made up metadata rather than none,
+ * and are resolved properly once it is back.
+ *
+ * Beacons wait in a ResolutionQueue for one of a few calls to the resolver,
+ * so in a crowd the nearest beacons and those on screen go first, whatever
+ * order they were found in. Work for beacons that have gone away, or whose
+ * icons have scrolled far out of view, is cancelled.
+ *
+ * A crowd is split into calls of at most a shard's worth of beacons, a few
+ * of which are in flight at once, so that a failure costs only its shard
+ * and the first cards show up after a small request rather than a huge
+ * one. Each call's entries are handed out as they are parsed. With several
+ * resolver endpoints, calls and their hedges and retries take turns
+ * between them.
+ *
  * Created by smus on 1/24/14.
  */
 public class MetadataResolver {
   static String TAG = "MetadataResolver";
-  static String METADATA_URL = "http://url-caster.appspot.com/resolve-scan";
-
-  static Map<String, String> mDeviceUrlMap;
+  // Resolver endpoints, all serving the same data; calls take turns
+  // between them.
+  static ArrayList<String> mMetadataUrls = new ArrayList<String>(
+      Collections.singletonList("http://url-caster.appspot.com/resolve-scan"));
+  static int mNextMetadataUrl = 0;
+  static String SYNC_URL = "http://url-caster.appspot.com/sync-region";
+  private static final int SYNC_PAGE_SIZE = 500;
+
+  private static final int HTTP_BAD_REQUEST = 400;
+  private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+
+  // Names of beacons that advertise no URL, mapped to their URLs. Null if
+  // the table couldn't be loaded.
+  static DeviceUrlTable mDeviceUrlTable;
+  private static final String DEVICE_URL_TABLE = "device_urls.urlmap";
 
   // Only need one request queue for the whole app.
   static RequestQueue mRequestQueue;
+  private static final int NETWORK_THREAD_COUNT = 4;
+
+  static MetadataCache mMetadataCache;
+
+  // Regions synced for offline use; consulted before anything else.
+  static RegionIndex mRegionIndex;
+  // Regions with a sync under way.
+  static HashSet<String> mSyncingRegions = new HashSet<String>();
+
+  static IconCache<Bitmap> mIconCache;
+  // Icons are decoded straight to the size they are shown at in the list.
+  static int mIconSize;
+
+  // Listeners waiting on an in-flight resolve, keyed by device URL, and on an
+  // in-flight icon download, keyed by icon URL. A second request for the same
+  // URL just joins the list instead of going to the network again. Beacons
+  // with different pages often share an icon, so each icon waiter keeps its
+  // own metadata to be handed back; a device gets its current metadata
+  // instead, in case a resolve has replaced it since. Requests are issued
+  // and delivered on the EventLoop, so these need no locking.
+  static HashMap<String, ArrayList<OnMetadataListener>> mPendingMetadata =
+      new HashMap<String, ArrayList<OnMetadataListener>>();
+  static HashMap<String, LinkedHashMap<OnMetadataListener, DeviceMetadata>> mPendingIcons =
+      new HashMap<String, LinkedHashMap<OnMetadataListener, DeviceMetadata>>();
+
+  // Resolved entries are handed out on the EventLoop, where the pending
+  // lists above live.
+  static Handler mHandler;
+
+  // Whether to offer the binary protocol, and whether the server has shown
+  // that it speaks it by answering in binary. Requests only go out in binary
+  // once both are true.
+  static volatile boolean mIsBinaryProtocolEnabled = true;
+  static volatile boolean mIsBinaryProtocolSupported = false;
+
+  // Timeouts, hedging, retries and the circuit breaker for resolve requests.
+  static ResolvePolicy mResolvePolicy = new ResolvePolicy(Clock.SYSTEM, new Random());
+  // Beacons that were given stale or made up metadata because the resolver
+  // couldn't be reached, by URL, to resolve properly once it can. Every
+  // beacon that was waiting on the URL is kept, not just the one whose
+  // call failed, so they all get the real thing.
+  static LinkedHashMap<String, ArrayList<NearbyDevice>> mDegradedDevices =
+      new LinkedHashMap<String, ArrayList<NearbyDevice>>();
+  // URLs, that is.
+  private static final int MAX_DEGRADED_DEVICES = 100;
+  // How long (ms) to wait before trying degraded devices again, at least.
+  private static final long RECOVERY_DELAY = 5000;
+  static boolean mIsRecoveryScheduled = false;
+
+  // Beacons on screen go before all others, and then the strongest. Smoothed
+  // RSSI is always well within this of 0.
+  private static final int ON_SCREEN_PRIORITY = 1000;
+  static final ResolutionQueue.Prioritizer<NearbyDevice> PROXIMITY_PRIORITY =
+      new ResolutionQueue.Prioritizer<NearbyDevice>() {
+    @Override
+    public int getPriority(NearbyDevice device) {
+      int priority = device.getSmoothedRSSI();
+      if (device.isVisible()) {
+        priority += ON_SCREEN_PRIORITY;
+      }
+      return priority;
+    }
+  };
+
+  // One beacon per URL that nobody has asked the resolver about yet, waiting
+  // for one of the mMaxConcurrentCalls calls to free up.
+  static ResolutionQueue<NearbyDevice> mResolutionQueue =
+      new ResolutionQueue<NearbyDevice>(PROXIMITY_PRIORITY);
+  private static HashSet<ResolveCall> mActiveCalls = new HashSet<ResolveCall>();
+  // Against a stand-in resolver, 20 beacons a call gets the first cards back
+  // nearly as soon as single-beacon calls do, at about ten times their
+  // throughput; bigger calls are quicker overall but keep everyone waiting
+  // for the first. See ShardingHarness.
+  static int mShardSize = 20;
+  // Calls in flight per endpoint, and in all. Volley's network threads are
+  // the real limit.
+  private static final int CALLS_PER_ENDPOINT = 2;
+  static int mMaxConcurrentCalls = CALLS_PER_ENDPOINT;
+  // Hears about every call; the last one passed to getBatchMetadata().
+  static OnBatchResolvedListener mBatchListener;
 
   static boolean mIsInitialized = false;
 
 
   public static void initialize(Context context) {
-    mDeviceUrlMap = new HashMap<String, String>();
-    mDeviceUrlMap.put("OLP425-ECF5", "http://z3.ca/light");
-    mDeviceUrlMap.put("OLP425-ECB5", "http://z3.ca/1");
+    if (mDeviceUrlTable == null) {
+      mDeviceUrlTable = loadDeviceUrlTable(context);
+    }
 
+    mHandler = EventLoop.getHandler();
     if (mRequestQueue == null) {
-      mRequestQueue = Volley.newRequestQueue(context);
+      // Volley.newRequestQueue, except that responses are delivered on the
+      // EventLoop.
+      mRequestQueue = new RequestQueue(
+          new DiskBasedCache(new File(context.getCacheDir(), "volley")),
+          new BasicNetwork(new HurlStack()),
+          NETWORK_THREAD_COUNT,
+          new ExecutorDelivery(mHandler));
+      mRequestQueue.start();
+    }
+    if (mMetadataCache == null) {
+      mMetadataCache = new MetadataCache(new File(context.getCacheDir(), "metadata"));
+    }
+    if (mIconCache == null) {
+      mIconCache = IconCache.create();
     }
+    if (mRegionIndex == null) {
+      mRegionIndex = new RegionIndex(context);
+    }
+    mIconSize = context.getResources().getDimensionPixelSize(R.dimen.icon_size);
 
     mIsInitialized = true;
   }
 
+  // Map the table straight out of the APK; aapt leaves it uncompressed so
+  // that this works.
+  private static DeviceUrlTable loadDeviceUrlTable(Context context) {
+    try {
+      AssetFileDescriptor descriptor = context.getAssets().openFd(DEVICE_URL_TABLE);
+      FileInputStream in = descriptor.createInputStream();
+      try {
+        return DeviceUrlTable.map(in.getChannel(), descriptor.getStartOffset(),
+            descriptor.getLength());
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Could not load the device URL table", e);
+      return null;
+    }
+  }
+
+  /**
+   * Point the resolver somewhere else, such as a local reference server.
+   * Protocol negotiation starts over.
+   */
+  public static void setMetadataUrl(String url) {
+    setMetadataUrls(Collections.singletonList(url));
+  }
+
+  /**
+   * Spread calls across several resolver endpoints serving the same data,
+   * and allow CALLS_PER_ENDPOINT calls in flight for each. Protocol
+   * negotiation starts over, and covers all of them.
+   */
+  public static void setMetadataUrls(List<String> urls) {
+    if (urls.isEmpty()) {
+      throw new IllegalArgumentException("No resolver endpoints");
+    }
+    mMetadataUrls = new ArrayList<String>(urls);
+    mNextMetadataUrl = 0;
+    mMaxConcurrentCalls = Math.min(NETWORK_THREAD_COUNT, CALLS_PER_ENDPOINT * urls.size());
+    mIsBinaryProtocolSupported = false;
+  }
+
+  /**
+   * How many beacons go in one call to the resolver, and how many calls may
+   * be in flight at once. Takes effect from the next call.
+   */
+  public static void setSharding(int shardSize, int maxConcurrentCalls) {
+    if (shardSize < 1 || maxConcurrentCalls < 1) {
+      throw new IllegalArgumentException("Shards and calls must be at least 1");
+    }
+    mShardSize = shardSize;
+    mMaxConcurrentCalls = maxConcurrentCalls;
+    if (mIsInitialized) {
+      mHandler.post(mPumpRunnable);
+    }
+  }
+
+  public static void setSyncUrl(String url) {
+    SYNC_URL = url;
+  }
+
+  /**
+   * Whether to offer the compact binary protocol to the server. When off, or
+   * until the server has answered in binary, batches go out as JSON.
+   */
+  public static void setBinaryProtocolEnabled(boolean isEnabled) {
+    mIsBinaryProtocolEnabled = isEnabled;
+  }
+
   public static String getURLForDevice(NearbyDevice device) {
+    return getURLForName(device.getName());
+  }
+
+  /**
+   * The URL a beacon that advertises no URL stands for, going by its name,
+   * or null.
+   */
+  public static String getURLForName(String deviceName) {
     if (!mIsInitialized) {
       Log.e(TAG, "Not initialized.");
       return null;
     }
+    if (deviceName == null) {
+      return null;
+    }
 
     // If the device name is already a URL, use it.
-    String deviceName = device.getName();
-    String url = deviceName;
-    if (Patterns.WEB_URL.matcher(deviceName).matches()) {
-      // TODO(smus): Fix this hack.
-      // For now, if there's no scheme present, add a default http:// scheme.
-      if (!url.startsWith("http://") && !url.startsWith("https://")) {
-        url = "http://" + url;
-      }
-    } else {
+    String url = DeviceClassifier.getNameUrl(deviceName);
+    if (url == null && mDeviceUrlTable != null) {
       // Otherwise, try doing the lookup.
-      url = mDeviceUrlMap.get(deviceName);
+      url = mDeviceUrlTable.lookup(deviceName);
     }
     return url;
   }
 
-  public static void getBatchMetadata(ArrayList<NearbyDevice> mDeviceBatchList) {
+  public static void getBatchMetadata(ArrayList<NearbyDevice> mDeviceBatchList,
+                                      OnBatchResolvedListener batchListener) {
     if (!mIsInitialized) {
       Log.e(TAG, "Not initialized.");
       return;
     }
 
-    JSONObject jsonObj = createRequestObject(mDeviceBatchList);
-
-    HashMap<String, NearbyDevice> deviceMap = new HashMap<String, NearbyDevice>();
+    // Serve what we can from synced regions and then the cache, and only
+    // queue URLs that nobody is already waiting on.
+    ArrayList<String> urls = new ArrayList<String>(mDeviceBatchList.size());
+    for (NearbyDevice nearbyDevice : mDeviceBatchList) {
+      urls.add(nearbyDevice.getUrl());
+    }
+    HashMap<String, DeviceMetadata> indexed = getIndexed(urls);
 
     for (int dIdx = 0; dIdx < mDeviceBatchList.size(); dIdx++) {
       NearbyDevice nearbyDevice = mDeviceBatchList.get(dIdx);
-      deviceMap.put(nearbyDevice.getUrl(), nearbyDevice);
+      String url = nearbyDevice.getUrl();
+      DeviceMetadata indexedMetadata = indexed.get(url);
+      if (indexedMetadata != null) {
+        Metrics.REGION_INDEX_HITS.inc();
+        nearbyDevice.onDeviceInfo(indexedMetadata);
+        requestIcon(indexedMetadata, nearbyDevice);
+        continue;
+      }
+      MetadataCache.Entry entry = mMetadataCache.get(url);
+      if (entry != null) {
+        if (!entry.isNegative()) {
+          nearbyDevice.onDeviceInfo(entry.metadata);
+          requestIcon(entry.metadata, nearbyDevice);
+        }
+        continue;
+      }
+      ArrayList<OnMetadataListener> listeners = mPendingMetadata.get(url);
+      if (listeners == null) {
+        listeners = new ArrayList<OnMetadataListener>();
+        mPendingMetadata.put(url, listeners);
+        mResolutionQueue.add(nearbyDevice);
+      }
+      listeners.add(nearbyDevice);
+    }
+    if (batchListener != null) {
+      mBatchListener = batchListener;
+    }
+    pumpQueue();
+  }
+
+  // Start calls for the most important queued beacons while there are
+  // calls to spare.
+  private static void pumpQueue() {
+    while (mActiveCalls.size() < mMaxConcurrentCalls && !mResolutionQueue.isEmpty()) {
+      ArrayList<NearbyDevice> devices = new ArrayList<NearbyDevice>();
+      ArrayList<String> requestedUrls = new ArrayList<String>();
+      for (NearbyDevice device : mResolutionQueue.poll(mShardSize)) {
+        // Answered while it waited, by a call for another beacon with the
+        // same URL.
+        if (mPendingMetadata.containsKey(device.getUrl())) {
+          devices.add(device);
+          requestedUrls.add(device.getUrl());
+        }
+      }
+      if (devices.isEmpty()) {
+        continue;
+      }
+      ResolveCall call = new ResolveCall(devices, requestedUrls, mBatchListener);
+      mActiveCalls.add(call);
+      if (!allowRequest(call)) {
+        // The resolver is down; don't pile on.
+        degrade(call);
+        continue;
+      }
+      startCall(call);
+    }
+  }
+
+  private static Runnable mPumpRunnable = new Runnable() {
+    @Override
+    public void run() {
+      pumpQueue();
+    }
+  };
+
+  /**
+   * One batch on its way to the resolver. It can have more than one request
+   * in flight at once: a hedge goes out if the first is slow, and whichever
+   * answers first wins. If all of them fail, the batch is retried after a
+   * backoff, and once out of retries it is served degraded.
+   */
+  private static class ResolveCall {
+    final ArrayList<NearbyDevice> devices;
+    final ArrayList<String> requestedUrls;
+    final OnBatchResolvedListener batchListener;
+    final ArrayList<ResolveScanRequest> requests = new ArrayList<ResolveScanRequest>();
+    int failedAttempts = 0;
+    boolean isDone = false;
+    // Whether the policy let the call through and hasn't heard how it went.
+    boolean isAllowed = false;
+
+    final Runnable hedge = new Runnable() {
+      @Override
+      public void run() {
+        if (!isDone && requests.size() == 1 && mResolvePolicy.tryHedge()) {
+          Metrics.RESOLVE_HEDGES.inc();
+          sendAttempt(ResolveCall.this);
+        }
+      }
+    };
+
+    final Runnable retry = new Runnable() {
+      @Override
+      public void run() {
+        if (isDone) {
+          return;
+        }
+        if (!allowRequest(ResolveCall.this)) {
+          degrade(ResolveCall.this);
+          return;
+        }
+        Metrics.RESOLVE_RETRIES.inc();
+        startCall(ResolveCall.this);
+      }
+    };
+
+    ResolveCall(ArrayList<NearbyDevice> devices, ArrayList<String> requestedUrls,
+                OnBatchResolvedListener batchListener) {
+      this.devices = devices;
+      this.requestedUrls = requestedUrls;
+      this.batchListener = batchListener;
+    }
+  }
+
+  private static boolean allowRequest(ResolveCall call) {
+    call.isAllowed = mResolvePolicy.allowRequest();
+    return call.isAllowed;
+  }
+
+  private static void startCall(ResolveCall call) {
+    sendAttempt(call);
+    long hedgeDelay = mResolvePolicy.getHedgeDelay();
+    if (hedgeDelay >= 0) {
+      mHandler.postDelayed(call.hedge, hedgeDelay);
+    }
+  }
+
+  private static void sendAttempt(ResolveCall call) {
+    ResolveScanRequest request = createMetadataRequest(call);
+    // Retries are ours, with a backoff; Volley's would go straight out again.
+    request.setRetryPolicy(new DefaultRetryPolicy((int) mResolvePolicy.getTimeout(), 0, 1));
+    request.setTag(call);
+    request.setPriority(isAnyVisible(call.devices)
+        ? Request.Priority.HIGH : Request.Priority.NORMAL);
+    call.requests.add(request);
+    mRequestQueue.add(request);
+  }
+
+  private static boolean isAnyVisible(ArrayList<NearbyDevice> devices) {
+    for (NearbyDevice device : devices) {
+      if (device.isVisible()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Stop whatever else is in flight for a call that is over, and give its
+  // place to the next in the queue.
+  private static void finishCall(ResolveCall call) {
+    call.isDone = true;
+    mHandler.removeCallbacks(call.hedge);
+    mHandler.removeCallbacks(call.retry);
+    mRequestQueue.cancelAll(call);
+    call.requests.clear();
+    if (mActiveCalls.remove(call)) {
+      // Not straight away: the call's listeners may still be running.
+      mHandler.removeCallbacks(mPumpRunnable);
+      mHandler.post(mPumpRunnable);
+    }
+  }
+
+  /**
+   * Stop working on the devices, which have gone away: take them out of the
+   * queue, and cancel resolves and icon downloads that nobody else is
+   * waiting on.
+   */
+  public static void cancel(List<NearbyDevice> devices) {
+    if (!mIsInitialized) {
+      return;
+    }
+    for (NearbyDevice device : devices) {
+      String url = device.getUrl();
+      boolean wasQueued = mResolutionQueue.remove(device);
+      ArrayList<NearbyDevice> degraded = mDegradedDevices.get(url);
+      if (degraded != null && degraded.remove(device) && degraded.isEmpty()) {
+        mDegradedDevices.remove(url);
+      }
+      ArrayList<OnMetadataListener> listeners = mPendingMetadata.get(url);
+      if (listeners != null && listeners.remove(device)) {
+        if (listeners.isEmpty()) {
+          mPendingMetadata.remove(url);
+        } else if (wasQueued && listeners.get(0) instanceof NearbyDevice) {
+          // Another beacon with the URL is still around; it takes the place.
+          mResolutionQueue.add((NearbyDevice) listeners.get(0));
+        }
+      }
+      Iterator<Map.Entry<String, LinkedHashMap<OnMetadataListener, DeviceMetadata>>> icons =
+          mPendingIcons.entrySet().iterator();
+      while (icons.hasNext()) {
+        LinkedHashMap<OnMetadataListener, DeviceMetadata> iconListeners =
+            icons.next().getValue();
+        if (iconListeners.remove(device) != null && iconListeners.isEmpty()) {
+          mRequestQueue.cancelAll(iconListeners);
+          icons.remove();
+          Metrics.RESOLVE_CANCELLED.inc();
+        }
+      }
+    }
+
+    // Calls whose every URL is now unwanted.
+    for (ResolveCall call : new ArrayList<ResolveCall>(mActiveCalls)) {
+      boolean isWanted = false;
+      for (String url : call.requestedUrls) {
+        if (mPendingMetadata.containsKey(url)) {
+          isWanted = true;
+          break;
+        }
+      }
+      if (!isWanted) {
+        finishCall(call);
+        if (call.isAllowed) {
+          // It may have been the circuit breaker's probe; let another go.
+          call.isAllowed = false;
+          mResolvePolicy.onCancel();
+        }
+        Metrics.RESOLVE_CANCELLED.inc();
+      }
     }
+  }
 
-    JsonObjectRequest jsObjRequest = createMetadataRequest(jsonObj, deviceMap);
+  /**
+   * Cancel icon downloads for all but the given icon URLs, such as those of
+   * beacons that have scrolled far out of view. Binding a row asks for its
+   * icon again.
+   */
+  public static void cancelIconsExcept(Set<String> iconUrls) {
+    if (!mIsInitialized) {
+      return;
+    }
+    Iterator<Map.Entry<String, LinkedHashMap<OnMetadataListener, DeviceMetadata>>> icons =
+        mPendingIcons.entrySet().iterator();
+    while (icons.hasNext()) {
+      Map.Entry<String, LinkedHashMap<OnMetadataListener, DeviceMetadata>> entry = icons.next();
+      if (!iconUrls.contains(entry.getKey())) {
+        mRequestQueue.cancelAll(entry.getValue());
+        icons.remove();
+        Metrics.RESOLVE_CANCELLED.inc();
+      }
+    }
+  }
 
-    // Queue the request
-    mRequestQueue.add(jsObjRequest);
+  // Endpoints take turns, so a hedge or retry goes to a different one from
+  // the request before it.
+  private static String getNextMetadataUrl() {
+    String url = mMetadataUrls.get(mNextMetadataUrl % mMetadataUrls.size());
+    mNextMetadataUrl = (mNextMetadataUrl + 1) % mMetadataUrls.size();
+    return url;
   }
 
-  private static JsonObjectRequest createMetadataRequest(JSONObject jsonObj, final HashMap<String, NearbyDevice> deviceMap) {
-    return new JsonObjectRequest(
-        METADATA_URL,
-        jsonObj,
-        new Response.Listener<JSONObject>() {
+  private static ResolveScanRequest createMetadataRequest(final ResolveCall call) {
+    final boolean isBinaryRequest = mIsBinaryProtocolEnabled && mIsBinaryProtocolSupported;
+    // Timed per attempt: backoffs and hedge delays say nothing about how
+    // quickly the resolver answers, and would feed back into the timeouts.
+    final long startTime = System.nanoTime();
+    final ResolveScanRequest[] request = new ResolveScanRequest[1];
+    request[0] = new ResolveScanRequest(
+        getNextMetadataUrl(),
+        call.devices,
+        isBinaryRequest,
+        mIsBinaryProtocolEnabled,
+        mHandler,
+        new ResolveScanCodec.OnMetadataParsedListener() {
+          @Override
+          public void onMetadataParsed(String id, DeviceMetadata deviceMetadata) {
+            mMetadataCache.put(id, deviceMetadata);
+
+            // Hand the data to everyone waiting on this URL. With a hedge in
+            // flight this can come twice; the second time nobody is waiting.
+            ArrayList<OnMetadataListener> listeners = mPendingMetadata.remove(id);
+            if (listeners == null) {
+              return;
+            }
+            for (OnMetadataListener listener : listeners) {
+              requestIcon(deviceMetadata, listener);
+              listener.onDeviceInfo(deviceMetadata);
+            }
+          }
+        },
+        new Response.Listener<Boolean>() {
           @Override
-          public void onResponse(JSONObject jsonResponse) {
-
-            try {
-              JSONArray foundMetaData = jsonResponse.getJSONArray("metadata");
-
-              int deviceCount = foundMetaData.length();
-              for (int i = 0; i < deviceCount; i++) {
-
-                JSONObject deviceData = foundMetaData.getJSONObject(i);
-
-                String title = "Unknown name";
-                String url = "Unknown url";
-                String description = "Unknown description";
-                String iconUrl = "/favicon.ico";
-                String id = deviceData.getString("id");
-
-                if (deviceData.has("title")) {
-                  title = deviceData.getString("title");
-                }
-                if (deviceData.has("url")) {
-                  url = deviceData.getString("url");
-                }
-                if (deviceData.has("description")) {
-                  description = deviceData.getString("description");
-                }
-                if (deviceData.has("icon")) {
-                  // We might need to do some magic here.
-                  iconUrl = deviceData.getString("icon");
-                }
-
-                // TODO(smus): Eliminate this fallback since we expect the server to always return an icon.
-                // Provisions for a favicon specified as a relative URL.
-                if (!iconUrl.startsWith("http")) {
-                  // Lets just assume we are dealing with a relative path.
-                  Uri fullUri = Uri.parse(url);
-                  Uri.Builder builder = fullUri.buildUpon();
-                  // Append the default favicon path to the URL.
-                  builder.path(iconUrl);
-                  iconUrl = builder.toString();
-                }
-
-                DeviceMetadata deviceMetadata = new DeviceMetadata();
-                deviceMetadata.title = title;
-                deviceMetadata.description = description;
-                deviceMetadata.siteUrl = url;
-                deviceMetadata.iconUrl = iconUrl;
-                downloadIcon(deviceMetadata, deviceMap.get(id));
-
-                // Look up the device from the input and update the data
-                deviceMap.get(id).onDeviceInfo(deviceMetadata);
+          public void onResponse(Boolean isBinaryResponse) {
+            if (isBinaryResponse && !mIsBinaryProtocolSupported) {
+              Log.i(TAG, "Resolver speaks binary; switching to it.");
+              mIsBinaryProtocolSupported = true;
+            }
+            finishCall(call);
+
+            long rtt = (System.nanoTime() - startTime) / 1000000;
+            Metrics.RESOLVE_LATENCY.record(rtt);
+            call.isAllowed = false;
+            mResolvePolicy.onSuccess(rtt);
+            if (call.batchListener != null) {
+              call.batchListener.onBatchResolved(rtt);
+            }
+
+            // Every entry has been handed out by now, so whatever the server
+            // didn't return metadata for has none.
+            for (String id : call.requestedUrls) {
+              if (mPendingMetadata.remove(id) != null) {
+                mMetadataCache.putNegative(id);
               }
-            } catch (JSONException e) {
-              e.printStackTrace();
+            }
+
+            // The resolver is back; catch up on what it missed.
+            if (!mDegradedDevices.isEmpty()) {
+              mHandler.removeCallbacks(mRecoverRunnable);
+              mHandler.post(mRecoverRunnable);
+              mIsRecoveryScheduled = true;
             }
           }
         },
@@ -174,61 +636,292 @@ public class MetadataResolver {
           @Override
           public void onErrorResponse(VolleyError volleyError) {
             Log.i(TAG, "VolleyError: " + volleyError.toString());
+            call.requests.remove(request[0]);
+            NetworkResponse response = volleyError.networkResponse;
+            if (isBinaryRequest && response != null
+                && (response.statusCode == HTTP_BAD_REQUEST
+                    || response.statusCode == HTTP_UNSUPPORTED_MEDIA_TYPE)) {
+              // The server turned the binary request down; stick to JSON and
+              // ask again. The listeners stay pending for the retry.
+              Log.i(TAG, "Resolver rejected binary; falling back to JSON.");
+              mIsBinaryProtocolEnabled = false;
+              sendAttempt(call);
+              return;
+            }
+            if (!call.requests.isEmpty()) {
+              // The hedge or the original may still come through.
+              return;
+            }
+            mHandler.removeCallbacks(call.hedge);
+            call.isAllowed = false;
+            mResolvePolicy.onFailure();
+            long retryDelay = mResolvePolicy.getRetryDelay(++call.failedAttempts);
+            if (retryDelay >= 0) {
+              mHandler.postDelayed(call.retry, retryDelay);
+            } else {
+              degrade(call);
+            }
           }
         }
     );
+    return request[0];
   }
 
-  private static JSONObject createRequestObject(ArrayList<NearbyDevice> devices) {
-    JSONObject jsonObj = new JSONObject();
-
-    try {
-      JSONArray urlArray = new JSONArray();
-
-      for(int dIdx = 0; dIdx < devices.size(); dIdx++) {
-        NearbyDevice device = devices.get(dIdx);
-
-        JSONObject urlObject = new JSONObject();
-
-        urlObject.put("url", device.getUrl());
-        urlObject.put("rssi", device.getLastRSSI());
-        urlArray.put(urlObject);
+  /**
+   * Give up on resolving the call for now: show whatever metadata we last
+   * had for each URL, or failing that some made up from the URL itself, to
+   * every listener waiting on it, and remember the devices among them so
+   * they are resolved once the resolver is back.
+   */
+  private static void degrade(ResolveCall call) {
+    finishCall(call);
+    for (NearbyDevice device : call.devices) {
+      String url = device.getUrl();
+      ArrayList<OnMetadataListener> listeners = mPendingMetadata.remove(url);
+      if (listeners == null) {
+        continue;
+      }
+      Metrics.RESOLVE_DEGRADED.inc();
+      DeviceMetadata metadata = mMetadataCache.getStale(url);
+      if (metadata == null) {
+        metadata = createDegradedMetadata(url);
+      }
+      for (OnMetadataListener listener : listeners) {
+        requestIcon(metadata, listener);
+        listener.onDeviceInfo(metadata);
+      }
+      ArrayList<NearbyDevice> degraded = mDegradedDevices.get(url);
+      if (degraded == null) {
+        if (mDegradedDevices.size() >= MAX_DEGRADED_DEVICES) {
+          continue;
+        }
+        degraded = new ArrayList<NearbyDevice>();
+        mDegradedDevices.put(url, degraded);
+      }
+      for (OnMetadataListener listener : listeners) {
+        if (listener instanceof NearbyDevice && !degraded.contains(listener)) {
+          degraded.add((NearbyDevice) listener);
+        }
       }
+    }
+    if (!mDegradedDevices.isEmpty() && !mIsRecoveryScheduled) {
+      long delay = Math.max(mResolvePolicy.getCircuitBreaker().getTimeUntilProbe(),
+          RECOVERY_DELAY);
+      mHandler.postDelayed(mRecoverRunnable, delay);
+      mIsRecoveryScheduled = true;
+    }
+  }
 
+  // Something to show for a URL the resolver can't tell us about: its host
+  // as the title, and a link to it.
+  private static DeviceMetadata createDegradedMetadata(String url) {
+    DeviceMetadata metadata = new DeviceMetadata();
+    String host = Uri.parse(url).getHost();
+    metadata.title = host != null ? host : url;
+    metadata.siteUrl = url;
+    return metadata;
+  }
 
-      JSONObject location = new JSONObject();
+  private static Runnable mRecoverRunnable = new Runnable() {
+    @Override
+    public void run() {
+      mIsRecoveryScheduled = false;
+      if (mDegradedDevices.isEmpty()) {
+        return;
+      }
+      ArrayList<NearbyDevice> devices = new ArrayList<NearbyDevice>();
+      for (ArrayList<NearbyDevice> degraded : mDegradedDevices.values()) {
+        devices.addAll(degraded);
+      }
+      mDegradedDevices.clear();
+      getBatchMetadata(devices, null);
+    }
+  };
 
-      location.put("lat", 49.129837);
-      location.put("lon", 120.38142);
+  private static HashMap<String, DeviceMetadata> getIndexed(ArrayList<String> urls) {
+    try {
+      return mRegionIndex.getAll(urls);
+    } catch (SQLException e) {
+      // Not worth failing resolution over; the network still works.
+      Log.e(TAG, "Region index lookup failed", e);
+      return new HashMap<String, DeviceMetadata>();
+    }
+  }
 
-      jsonObj.put("location",  location);
-      jsonObj.put("objects", urlArray);
+  /**
+   * Bring the region's metadata in the index up to date, fetching only what
+   * changed since the last sync, a page at a time. The listener is called
+   * on the EventLoop once the region is current, or the sync failed, which
+   * includes the region outgrowing the index. Safe to call from any thread.
+   */
+  public static void syncRegion(final String region, final OnRegionSyncedListener listener) {
+    if (!mIsInitialized) {
+      Log.e(TAG, "Not initialized.");
+      return;
+    }
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (!mSyncingRegions.add(region)) {
+          // Already on its way.
+          return;
+        }
+        requestSyncPage(region, mRegionIndex.getVersion(region), 0, listener);
+      }
+    });
+  }
 
-    } catch (JSONException ex) {
+  private static void requestSyncPage(final String region, long since, final int changeCount,
+                                      final OnRegionSyncedListener listener) {
+    mRequestQueue.add(new RegionSyncRequest(SYNC_URL, region, since, SYNC_PAGE_SIZE,
+        mRegionIndex,
+        new Response.Listener<RegionSyncCodec.Delta>() {
+          @Override
+          public void onResponse(RegionSyncCodec.Delta delta) {
+            Metrics.REGION_SYNC_CHANGES.add(delta.size());
+            int total = changeCount + delta.size();
+            if (delta.hasMore) {
+              requestSyncPage(region, delta.version, total, listener);
+              return;
+            }
+            Log.i(TAG, "Synced region " + region + " to version " + delta.version
+                + ", " + total + " changes");
+            mSyncingRegions.remove(region);
+            if (listener != null) {
+              listener.onRegionSynced(region, total, true);
+            }
+          }
+        },
+        new Response.ErrorListener() {
+          @Override
+          public void onErrorResponse(VolleyError volleyError) {
+            // Pages already applied stay; the next sync picks up from there.
+            Log.i(TAG, "Region sync failed: " + volleyError.toString());
+            mSyncingRegions.remove(region);
+            if (listener != null) {
+              listener.onRegionSynced(region, changeCount, false);
+            }
+          }
+        }));
+  }
 
+  /**
+   * Get the decoded icon for the metadata, or null if it isn't in the icon
+   * cache (either not downloaded yet, or evicted).
+   */
+  public static Bitmap getIcon(DeviceMetadata metadata) {
+    if (!mIsInitialized || metadata.iconUrl == null) {
+      return null;
+    }
+    Bitmap icon = mIconCache.get(metadata.iconUrl);
+    if (icon != null) {
+      Metrics.ICON_CACHE_HITS.inc();
+    } else {
+      Metrics.ICON_CACHE_MISSES.inc();
     }
-    return jsonObj;
+    return icon;
   }
 
+  /**
+   * Make sure the icon for the metadata is in the icon cache, downloading it
+   * again if it was evicted. The listener is called on the EventLoop once it
+   * is available. Safe to call from any thread.
+   */
+  public static void requestIcon(final DeviceMetadata metadata,
+                                 final OnMetadataListener listener) {
+    if (!mIsInitialized || metadata.iconUrl == null) {
+      return;
+    }
+    if (mIconCache.get(metadata.iconUrl) != null) {
+      return;
+    }
+    if (EventLoop.isCurrentThread()) {
+      downloadIcon(metadata, listener);
+    } else {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          requestIcon(metadata, listener);
+        }
+      });
+    }
+  }
 
   /**
    * Asynchronously download the image for the nearby device.
    * @param metadata
    * @param listener
    */
-  private static void downloadIcon(final DeviceMetadata metadata, final OnMetadataListener listener) {
+  private static void downloadIcon(final DeviceMetadata metadata, OnMetadataListener listener) {
+    // Rows being bound are on screen; beacons asking are anywhere.
+    final Request.Priority priority =
+        listener instanceof NearbyDevice && !((NearbyDevice) listener).isVisible()
+            ? Request.Priority.LOW : Request.Priority.NORMAL;
+    // Many beacons often share a favicon, so only download it once.
+    LinkedHashMap<OnMetadataListener, DeviceMetadata> listeners =
+        mPendingIcons.get(metadata.iconUrl);
+    if (listeners != null) {
+      listeners.put(listener, metadata);
+      return;
+    }
+    listeners = new LinkedHashMap<OnMetadataListener, DeviceMetadata>();
+    listeners.put(listener, metadata);
+    mPendingIcons.put(metadata.iconUrl, listeners);
+
+    final long startTime = System.nanoTime();
     ImageRequest imageRequest = new ImageRequest(metadata.iconUrl, new Response.Listener<Bitmap>() {
       @Override
       public void onResponse(Bitmap response) {
-        Log.i(TAG, "Got an image: " + response.toString());
-        metadata.icon = response;
-        listener.onDeviceInfo(metadata);
+        Metrics.ICON_LATENCY.record((System.nanoTime() - startTime) / 1000000);
+        mIconCache.put(metadata.iconUrl, response);
+        LinkedHashMap<OnMetadataListener, DeviceMetadata> listeners =
+            mPendingIcons.remove(metadata.iconUrl);
+        if (listeners != null) {
+          // Each with its own page's metadata; only the icon is shared.
+          for (Map.Entry<OnMetadataListener, DeviceMetadata> waiter : listeners.entrySet()) {
+            OnMetadataListener listener = waiter.getKey();
+            DeviceMetadata waiterMetadata = waiter.getValue();
+            if (listener instanceof NearbyDevice) {
+              // A resolve may have replaced the metadata the icon was asked
+              // for since; keep what the device has now, and only refresh it
+              // if that still shows this icon.
+              DeviceMetadata current = ((NearbyDevice) listener).getInfo();
+              if (current == null || !metadata.iconUrl.equals(current.iconUrl)) {
+                continue;
+              }
+              waiterMetadata = current;
+            }
+            listener.onDeviceInfo(waiterMetadata);
+          }
+        }
+      }
+    }, mIconSize, mIconSize, Bitmap.Config.ARGB_8888, new Response.ErrorListener() {
+      @Override
+      public void onErrorResponse(VolleyError volleyError) {
+        Log.i(TAG, "VolleyError: " + volleyError.toString());
+        mPendingIcons.remove(metadata.iconUrl);
       }
-    }, 0, 0, null, null);
+    }) {
+      @Override
+      public Priority getPriority() {
+        return priority;
+      }
+    };
+    // The listeners map stands for the download until it is cancelled.
+    imageRequest.setTag(listeners);
     mRequestQueue.add(imageRequest);
   }
 
   public interface OnMetadataListener {
     public void onDeviceInfo(DeviceMetadata deviceMetadata);
   }
+
+  public interface OnRegionSyncedListener {
+    public void onRegionSynced(String region, int changeCount, boolean isSuccess);
+  }
+
+  public interface OnBatchResolvedListener {
+    // Called with the round trip time (ms) of a successful resolve request.
+    public void onBatchResolved(long rtt);
+  }
 }
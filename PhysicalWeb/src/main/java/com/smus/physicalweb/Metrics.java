@@ -0,0 +1,348 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms for scanning, resolution and the list UI.
+ *
+ * Recording is cheap enough for scan callbacks: counters are striped across
+ * threads and histograms have fixed buckets, so neither allocates or locks.
+ * snapshot() copies every value at once, and dump() formats the change since
+ * the previous dump as text.
+ */
+public class Metrics {
+  private static ArrayList<Metric> mMetrics = new ArrayList<Metric>();
+  private static Snapshot mLastDump;
+
+  // Latency buckets, in ms.
+  private static final long[] LATENCY_BUCKETS = {
+      25, 50, 100, 200, 500, 1000, 2000, 5000, 10000
+  };
+
+  // Scanning.
+  public static final Counter SCAN_CALLBACKS = register(new Counter("scan.callbacks"));
+  public static final Counter NEW_DEVICES = register(new Counter("scan.new_devices"));
+  public static final Counter REPEAT_DEVICES = register(new Counter("scan.repeat_devices"));
+  public static final Counter CLASSIFICATION_CACHE_HITS = register(new Counter(
+      "classification_cache.hits"));
+  public static final Counter CLASSIFICATION_CACHE_MISSES = register(new Counter(
+      "classification_cache.misses"));
+  public static final Gauge REGISTRY_SIZE = register(new Gauge("registry.size"));
+  // From the scan callback to the event loop picking the result up.
+  public static final Histogram INGEST_DELAY = register(new Histogram("scan.ingest_delay_us",
+      new long[] {50, 100, 200, 500, 1000, 5000, 20000, 100000}));
+
+  // Resolution.
+  public static final Histogram BATCH_SIZE = register(new Histogram("resolve.batch_size",
+      new long[] {1, 2, 5, 10, 20, 50}));
+  public static final Histogram RESOLVE_LATENCY = register(new Histogram(
+      "resolve.latency_ms", LATENCY_BUCKETS));
+  public static final Histogram ICON_LATENCY = register(new Histogram(
+      "icon.latency_ms", LATENCY_BUCKETS));
+  public static final Counter RESOLVE_HEDGES = register(new Counter("resolve.hedges"));
+  public static final Counter RESOLVE_RETRIES = register(new Counter("resolve.retries"));
+  // Beacons shown with stale or made up metadata because resolving failed.
+  public static final Counter RESOLVE_DEGRADED = register(new Counter("resolve.degraded"));
+  // Resolves and icon downloads cancelled because their beacons went away
+  // or scrolled far out of view.
+  public static final Counter RESOLVE_CANCELLED = register(new Counter("resolve.cancelled"));
+  // Pages prefetched for strong beacons, and taps that went straight to one.
+  public static final Counter PREFETCHES = register(new Counter("prefetch.started"));
+  public static final Counter PREFETCH_HITS = register(new Counter("prefetch.hits"));
+  public static final Counter METADATA_CACHE_HITS = register(new Counter("metadata_cache.hits"));
+  public static final Counter METADATA_CACHE_NEGATIVE_HITS = register(new Counter(
+      "metadata_cache.negative_hits"));
+  public static final Counter METADATA_CACHE_MISSES = register(new Counter(
+      "metadata_cache.misses"));
+  public static final Counter ICON_CACHE_HITS = register(new Counter("icon_cache.hits"));
+  public static final Counter ICON_CACHE_MISSES = register(new Counter("icon_cache.misses"));
+  public static final Counter REGION_INDEX_HITS = register(new Counter("region_index.hits"));
+  public static final Counter REGION_SYNC_CHANGES = register(new Counter("region_sync.changes"));
+
+  // List UI.
+  public static final Counter NOTIFIES = register(new Counter("ui.notifies"));
+  public static final Counter SORTS = register(new Counter("ui.sorts"));
+  public static final Counter REBINDS = register(new Counter("ui.rebinds"));
+  public static final Counter INFLATES = register(new Counter("ui.inflates"));
+  public static final Histogram BIND_TIME = register(new Histogram("ui.bind_us",
+      new long[] {10, 20, 50, 100, 200, 500, 1000, 5000}));
+
+  private static synchronized <T extends Metric> T register(T metric) {
+    mMetrics.add(metric);
+    return metric;
+  }
+
+  /**
+   * Copy the current value of every metric.
+   */
+  public static synchronized Snapshot snapshot() {
+    LinkedHashMap<Metric, long[]> values = new LinkedHashMap<Metric, long[]>();
+    for (Metric metric : mMetrics) {
+      values.put(metric, metric.getValues());
+    }
+    return new Snapshot(Clock.SYSTEM.currentTimeMillis(), values);
+  }
+
+  /**
+   * Format every metric as one line of text. Counters also show their rate
+   * since the previous dump.
+   */
+  public static synchronized String dump() {
+    Snapshot snapshot = snapshot();
+    String text = snapshot.format(mLastDump);
+    mLastDump = snapshot;
+    return text;
+  }
+
+  public static abstract class Metric {
+    private final String mName;
+
+    Metric(String name) {
+      mName = name;
+    }
+
+    public String getName() {
+      return mName;
+    }
+
+    abstract long[] getValues();
+
+    abstract void format(StringBuilder out, long[] values, long[] previous, long elapsed);
+  }
+
+  /**
+   * A monotonically increasing count, striped so that threads adding at the
+   * same time don't contend on one cache line.
+   */
+  public static class Counter extends Metric {
+    private static final int STRIPES = 8;
+    // Longs per 64 byte cache line.
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+    Counter(String name) {
+      super(name);
+    }
+
+    public void inc() {
+      add(1);
+    }
+
+    public void add(long delta) {
+      int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+      mCells.getAndAdd(stripe * PADDING, delta);
+    }
+
+    public long get() {
+      long sum = 0;
+      for (int i = 0; i < STRIPES; i++) {
+        sum += mCells.get(i * PADDING);
+      }
+      return sum;
+    }
+
+    @Override
+    long[] getValues() {
+      return new long[] {get()};
+    }
+
+    @Override
+    void format(StringBuilder out, long[] values, long[] previous, long elapsed) {
+      out.append(values[0]);
+      if (previous != null && elapsed > 0) {
+        out.append(String.format(" (%.1f/s)", (values[0] - previous[0]) * 1000.0 / elapsed));
+      }
+    }
+  }
+
+  /**
+   * A value that is set rather than counted, such as a size.
+   */
+  public static class Gauge extends Metric {
+    private final AtomicLong mValue = new AtomicLong();
+
+    Gauge(String name) {
+      super(name);
+    }
+
+    public void set(long value) {
+      mValue.set(value);
+    }
+
+    public long get() {
+      return mValue.get();
+    }
+
+    @Override
+    long[] getValues() {
+      return new long[] {get()};
+    }
+
+    @Override
+    void format(StringBuilder out, long[] values, long[] previous, long elapsed) {
+      out.append(values[0]);
+    }
+  }
+
+  /**
+   * Counts values into fixed buckets. Bucket i holds values up to bounds[i];
+   * the last bucket holds everything larger.
+   */
+  public static class Histogram extends Metric {
+    private final long[] mBounds;
+    // One count per bucket, then the sum of all values.
+    private final AtomicLongArray mCounts;
+
+    Histogram(String name, long[] bounds) {
+      super(name);
+      mBounds = bounds;
+      mCounts = new AtomicLongArray(bounds.length + 2);
+    }
+
+    public void record(long value) {
+      int bucket = 0;
+      while (bucket < mBounds.length && value > mBounds[bucket]) {
+        bucket++;
+      }
+      mCounts.incrementAndGet(bucket);
+      mCounts.addAndGet(mBounds.length + 1, value);
+    }
+
+    @Override
+    long[] getValues() {
+      long[] values = new long[mCounts.length()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = mCounts.get(i);
+      }
+      return values;
+    }
+
+    /**
+     * The upper bound of the bucket holding the pth percentile (0-100) of the
+     * given values, or -1 if there are none. The overflow bucket reports
+     * Long.MAX_VALUE.
+     */
+    public long getPercentile(long[] values, double p) {
+      long count = getCount(values);
+      if (count == 0) {
+        return -1;
+      }
+      long rank = (long) Math.ceil(count * p / 100);
+      long seen = 0;
+      for (int i = 0; i < mBounds.length; i++) {
+        seen += values[i];
+        if (seen >= rank) {
+          return mBounds[i];
+        }
+      }
+      return Long.MAX_VALUE;
+    }
+
+    public long getCount(long[] values) {
+      long count = 0;
+      for (int i = 0; i <= mBounds.length; i++) {
+        count += values[i];
+      }
+      return count;
+    }
+
+    @Override
+    void format(StringBuilder out, long[] values, long[] previous, long elapsed) {
+      long count = getCount(values);
+      out.append("count=").append(count);
+      if (count == 0) {
+        return;
+      }
+      out.append(" mean=").append(values[mBounds.length + 1] / count);
+      appendPercentile(out, " p50", getPercentile(values, 50));
+      appendPercentile(out, " p95", getPercentile(values, 95));
+      appendPercentile(out, " p99", getPercentile(values, 99));
+    }
+
+    private void appendPercentile(StringBuilder out, String label, long bound) {
+      out.append(label);
+      if (bound == Long.MAX_VALUE) {
+        out.append(">").append(mBounds[mBounds.length - 1]);
+      } else {
+        out.append("<=").append(bound);
+      }
+    }
+  }
+
+  /**
+   * Every metric's values at one moment.
+   */
+  public static class Snapshot {
+    public final long time;
+    private final LinkedHashMap<Metric, long[]> mValues;
+
+    Snapshot(long time, LinkedHashMap<Metric, long[]> values) {
+      this.time = time;
+      mValues = values;
+    }
+
+    /**
+     * The raw values recorded for the metric: the count for counters and
+     * gauges, or bucket counts followed by the sum for histograms.
+     */
+    public long[] getValues(Metric metric) {
+      return mValues.get(metric);
+    }
+
+    /**
+     * Format as text, with rates relative to previous if it isn't null.
+     */
+    public String format(Snapshot previous) {
+      StringBuilder out = new StringBuilder();
+      long elapsed = previous == null ? 0 : time - previous.time;
+      for (Map.Entry<Metric, long[]> entry : mValues.entrySet()) {
+        Metric metric = entry.getKey();
+        out.append(metric.getName()).append(' ');
+        metric.format(out, entry.getValue(),
+            previous == null ? null : previous.getValues(metric), elapsed);
+        out.append('\n');
+      }
+      appendHitRate(out, "metadata_cache.hit_rate", METADATA_CACHE_HITS,
+          METADATA_CACHE_NEGATIVE_HITS, METADATA_CACHE_MISSES);
+      appendHitRate(out, "icon_cache.hit_rate", ICON_CACHE_HITS, null, ICON_CACHE_MISSES);
+      return out.toString();
+    }
+
+    private void appendHitRate(StringBuilder out, String name, Counter hits,
+                               Counter negativeHits, Counter misses) {
+      long hitCount = getValues(hits)[0];
+      if (negativeHits != null) {
+        hitCount += getValues(negativeHits)[0];
+      }
+      long total = hitCount + getValues(misses)[0];
+      out.append(name).append(' ');
+      if (total == 0) {
+        out.append('-');
+      } else {
+        out.append(String.format("%.1f%%", hitCount * 100.0 / total));
+      }
+      out.append('\n');
+    }
+  }
+}
@@ -16,34 +16,48 @@
 
 package com.smus.physicalweb;
 
-import android.bluetooth.BluetoothDevice;
-import android.util.Log;
-
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents a nearby device.
  *
+ * Devices are owned by the EventLoop, which is the only thread that changes
+ * them. The UI is handed immutable Snapshots instead.
+ *
  * Created by smus on 1/24/14.
  */
-public class NearbyDevice implements MetadataResolver.OnMetadataListener {
+public class NearbyDevice implements MetadataResolver.OnMetadataListener, ResolveScanCodec.Beacon,
+    DeviceRegistry.Device {
 
   String TAG = "NearbyDevice";
 
-  private BluetoothDevice mBluetoothDevice;
+  private static AtomicLong mNextId = new AtomicLong();
+  // Stable across snapshots, so the list can tell them apart.
+  private final long mId = mNextId.getAndIncrement();
+
+  // Bluetooth address and advertised name; both null for debug devices.
+  private String mAddress;
+  private String mName;
 
   private DeviceMetadata mDeviceMetadata;
   private String mUrl;
   private NearbyDeviceAdapter mAdapter;
 
-  private int HISTORY_LENGTH = 3;
-  private ArrayList<Integer> mRSSIHistory;
+  private static int HISTORY_LENGTH = 3;
+  // How we smooth RSSI samples for sorting devices by proximity.
+  static RssiHistory.Filter RSSI_FILTER = RssiHistory.Filter.EWMA;
+  private RssiHistory mRSSIHistory;
   private long mLastSeen;
 
 
-  public NearbyDevice(BluetoothDevice bluetoothDevice, int RSSI) {
-    mBluetoothDevice = bluetoothDevice;
-    String url = MetadataResolver.getURLForDevice(this);
+  // The URL comes from the advertisement if the device broadcasts one,
+  // otherwise we fall back to looking it up by device name.
+  public NearbyDevice(String address, String name, int RSSI, String url) {
+    mAddress = address;
+    mName = name;
+    if (url == null) {
+      url = MetadataResolver.getURLForDevice(this);
+    }
     initialize(url, RSSI);
   }
 
@@ -56,7 +70,7 @@ public class NearbyDevice implements MetadataResolver.OnMetadataListener {
     mUrl = url;
     mLastSeen = System.nanoTime();
 
-    mRSSIHistory = new ArrayList<Integer>();
+    mRSSIHistory = new RssiHistory(HISTORY_LENGTH, RSSI_FILTER);
     mRSSIHistory.add(RSSI);
   }
 
@@ -64,26 +78,20 @@ public class NearbyDevice implements MetadataResolver.OnMetadataListener {
     mAdapter = adapter;
   }
 
-  public int getLastRSSI() { return mRSSIHistory.get(mRSSIHistory.size() - 1); }
+  public int getLastRSSI() { return mRSSIHistory.getLast(); }
 
-  public int getAverageRSSI() {
-    Log.i(TAG, "getAverageRSSI. Elements: " + mRSSIHistory.size());
-    int sum = 0;
-    for (int rssi : mRSSIHistory) {
-      sum += rssi;
-    }
-    return sum/mRSSIHistory.size();
-  }
+  public int getSmoothedRSSI() { return mRSSIHistory.getSmoothed(); }
 
   public DeviceMetadata getInfo() { return mDeviceMetadata; }
 
   public String getUrl() { return mUrl; }
 
+  public String getAddress() { return mAddress; }
+
   public String getName() {
-    if (mBluetoothDevice != null) {
-      String name = mBluetoothDevice.getName();
-      if (name != null) {
-        return name;
+    if (mAddress != null) {
+      if (mName != null) {
+        return mName;
       } else {
         return "No device name";
       }
@@ -95,9 +103,6 @@ public class NearbyDevice implements MetadataResolver.OnMetadataListener {
   public void updateLastSeen(int RSSI) {
     mLastSeen = System.nanoTime();
 
-    if (mRSSIHistory.size() >= HISTORY_LENGTH) {
-      mRSSIHistory.remove(0);
-    }
     mRSSIHistory.add(RSSI);
   }
 
@@ -110,11 +115,62 @@ public class NearbyDevice implements MetadataResolver.OnMetadataListener {
   public void onDeviceInfo(DeviceMetadata deviceMetadata) {
     mDeviceMetadata = deviceMetadata;
     if (mAdapter != null) {
-      mAdapter.updateListUI();
+      mAdapter.updateDeviceInfo(this);
     }
   }
 
+  // Whether the device's row is on screen.
+  public boolean isVisible() {
+    NearbyDeviceAdapter adapter = mAdapter;
+    return adapter != null && adapter.isVisible(mId);
+  }
+
+  // Whether the device's row is too far off screen to be shown soon.
+  public boolean isFarFromView() {
+    NearbyDeviceAdapter adapter = mAdapter;
+    return adapter != null && adapter.isFarFromView(mId);
+  }
+
   public boolean isBroadcastingUrl() {
     return mUrl != null;
   }
+
+  public long getId() { return mId; }
+
+  /**
+   * What the device looks like right now, for handing to another thread.
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(mId, getName(), mUrl, mDeviceMetadata, getSmoothedRSSI());
+  }
+
+  /**
+   * An immutable copy of what the list shows for a device.
+   */
+  public static class Snapshot {
+    private final long mId;
+    private final String mName;
+    private final String mUrl;
+    private final DeviceMetadata mDeviceMetadata;
+    private final int mSmoothedRSSI;
+
+    Snapshot(long id, String name, String url, DeviceMetadata deviceMetadata,
+             int smoothedRSSI) {
+      mId = id;
+      mName = name;
+      mUrl = url;
+      mDeviceMetadata = deviceMetadata;
+      mSmoothedRSSI = smoothedRSSI;
+    }
+
+    public long getId() { return mId; }
+
+    public String getName() { return mName; }
+
+    public String getUrl() { return mUrl; }
+
+    public DeviceMetadata getInfo() { return mDeviceMetadata; }
+
+    public int getSmoothedRSSI() { return mSmoothedRSSI; }
+  }
 }
@@ -17,176 +17,531 @@
 package com.smus.physicalweb;
 
 import android.app.Activity;
-import android.util.Log;
+import android.graphics.Bitmap;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.BaseAdapter;
 import android.widget.ImageView;
+import android.widget.ListView;
 import android.widget.TextView;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
+ * Keeps the nearby devices ordered by smoothed RSSI, strongest first.
+ *
+ * The order is maintained incrementally: a device whose RSSI changed is moved
+ * to its new position with a binary search rather than re-sorting the list,
+ * and only rows that actually changed get rebound, unless something moved.
+ *
+ * The list holds immutable NearbyDevice.Snapshots. addDevice, updateDevice
+ * and removeDevices are called on the EventLoop, where they take a snapshot
+ * and leave it in a pending map keyed by device id; the UI thread picks up
+ * only the latest snapshot of each device, however many were taken since it
+ * last looked.
+ *
+ * It looks at most once per display frame, when a FrameCoalescer says so:
+ * on the next frame for devices coming and going and cards filling in, and
+ * every ROUTINE_UPDATE_INTERVAL ms or so for RSSI changes alone. So the UI
+ * thread does the same work however fast devices advertise.
+ *
  * Created by smus on 1/24/14.
  */
-
 public class NearbyDeviceAdapter extends BaseAdapter {
   String TAG = "NearbyDeviceAdapter";
 
-  private ArrayList<NearbyDevice> mNearbyDevices;
+  // Stands in for the snapshot of a device that has gone away.
+  private static final NearbyDevice.Snapshot REMOVED =
+      new NearbyDevice.Snapshot(-1, null, null, null, 0);
+
+  // Only touched on the UI thread.
+  private ArrayList<NearbyDevice.Snapshot> mSnapshots;
+  private HashMap<Long, NearbyDevice.Snapshot> mSnapshotsById;
   private Activity mActivity;
+  private ListView mListView;
+  private OnListChangeListener mListChangeListener;
+  private OnVisibilityChangeListener mVisibilityChangeListener;
+
+  // Ids of the devices in rows on screen, and in rows more than a screenful
+  // away from it, for the EventLoop to prioritize and cancel work by.
+  // Replaced whole, never changed. Devices without a row yet are in neither.
+  private volatile Set<Long> mVisibleIds = new HashSet<Long>();
+  private volatile Set<Long> mFarIds = new HashSet<Long>();
 
-  private long mLastChangeRequestTime = 0;
-  private Timer mNotificationTimer;
+  // Snapshots taken on the event loop that the UI thread hasn't applied yet,
+  // and metadata whose icons have arrived since it last looked.
+  private ConcurrentHashMap<Long, NearbyDevice.Snapshot> mPendingSnapshots;
+  private ConcurrentLinkedQueue<DeviceMetadata> mPendingIcons;
+  private FrameCoalescer mFrameCoalescer;
 
-  private long NOTIFY_DELAY = 300;
+  // Devices whose RSSI or metadata changed since we last applied changes,
+  // with their latest snapshots.
+  private HashMap<Long, NearbyDevice.Snapshot> mDirtySnapshots;
+
+  // How long (ms) RSSI changes may wait to be shown.
+  private long ROUTINE_UPDATE_INTERVAL = 300;
 
   NearbyDeviceAdapter(Activity activity) {
-    mNearbyDevices = new ArrayList<NearbyDevice>();
+    mSnapshots = new ArrayList<NearbyDevice.Snapshot>();
+    mSnapshotsById = new HashMap<Long, NearbyDevice.Snapshot>();
+    mDirtySnapshots = new HashMap<Long, NearbyDevice.Snapshot>();
+    mPendingSnapshots = new ConcurrentHashMap<Long, NearbyDevice.Snapshot>();
+    mPendingIcons = new ConcurrentLinkedQueue<DeviceMetadata>();
+    mFrameCoalescer = new FrameCoalescer(new ChoreographerFrameClock(), ROUTINE_UPDATE_INTERVAL,
+        mOnUpdateListener);
     mActivity = activity;
   }
 
+  /**
+   * How long (ms) changes that only move devices around may wait to be
+   * shown, to save the UI thread work.
+   */
+  public void setRoutineUpdateInterval(long interval) {
+    mFrameCoalescer.setRoutineInterval(interval);
+  }
+
+  // Frames of the thread the adapter was created on, which must be the UI
+  // thread.
+  private static class ChoreographerFrameClock implements FrameCoalescer.FrameClock {
+    private Choreographer mChoreographer = Choreographer.getInstance();
+    private Choreographer.FrameCallback mCallback;
+
+    @Override
+    public void scheduleFrame(final FrameCoalescer coalescer, long delay) {
+      if (mCallback == null) {
+        mCallback = new Choreographer.FrameCallback() {
+          @Override
+          public void doFrame(long frameTimeNanos) {
+            coalescer.doFrame(frameTimeNanos);
+          }
+        };
+      }
+      mChoreographer.removeFrameCallback(mCallback);
+      mChoreographer.postFrameCallbackDelayed(mCallback, delay);
+    }
+  }
+
+  /**
+   * Fine grained notifications of how the list changed. Positions are those
+   * after the change.
+   */
+  public interface OnListChangeListener {
+    public void onItemInserted(int position);
+    public void onItemRemoved(int position);
+    public void onItemMoved(int fromPosition, int toPosition);
+    public void onItemChanged(int position);
+  }
+
+  public void setOnListChangeListener(OnListChangeListener listener) {
+    mListChangeListener = listener;
+  }
+
+  /**
+   * The list showing this adapter, so rows whose contents changed can be
+   * rebound in place instead of invalidating the whole list.
+   */
+  public void setListView(ListView listView) {
+    mListView = listView;
+    listView.setOnScrollListener(mOnScrollListener);
+  }
+
+  /**
+   * Called on the UI thread when devices move more than a screenful away
+   * from the visible rows or come back.
+   */
+  public interface OnVisibilityChangeListener {
+    public void onVisibilityChanged();
+  }
+
+  public void setOnVisibilityChangeListener(OnVisibilityChangeListener listener) {
+    mVisibilityChangeListener = listener;
+  }
+
+  // Whether the device is in a row on screen. Safe to call from any thread.
+  public boolean isVisible(long id) {
+    return mVisibleIds.contains(id);
+  }
+
+  /**
+   * Whether the device is in a row more than a screenful away from the
+   * visible rows, so that nothing about it will be shown soon. Safe to call
+   * from any thread.
+   */
+  public boolean isFarFromView(long id) {
+    return mFarIds.contains(id);
+  }
+
+  // The list also calls this after every layout, so the sets follow rows
+  // being inserted, removed and moved as well as scrolling.
+  private AbsListView.OnScrollListener mOnScrollListener = new AbsListView.OnScrollListener() {
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                         int totalItemCount) {
+      if (visibleItemCount == 0) {
+        // Not laid out yet; everything would look far away.
+        return;
+      }
+      int count = mSnapshots.size();
+      int nearStart = firstVisibleItem - visibleItemCount;
+      int nearEnd = firstVisibleItem + 2 * visibleItemCount;
+      HashSet<Long> visibleIds = new HashSet<Long>();
+      HashSet<Long> farIds = new HashSet<Long>();
+      for (int i = 0; i < count; i++) {
+        if (i >= firstVisibleItem && i < firstVisibleItem + visibleItemCount) {
+          visibleIds.add(mSnapshots.get(i).getId());
+        } else if (i < nearStart || i >= nearEnd) {
+          farIds.add(mSnapshots.get(i).getId());
+        }
+      }
+      mVisibleIds = visibleIds;
+      if (!farIds.equals(mFarIds)) {
+        mFarIds = farIds;
+        if (mVisibilityChangeListener != null) {
+          mVisibilityChangeListener.onVisibilityChanged();
+        }
+      }
+    }
+  };
+
   @Override
   public int getCount() {
-    return mNearbyDevices.size();
+    return mSnapshots.size();
   }
 
   @Override
   public Object getItem(int position) {
-    return mNearbyDevices.get(position);
+    return mSnapshots.get(position);
   }
 
   @Override
   public long getItemId(int position) {
-    NearbyDevice device = mNearbyDevices.get(position);
-    return System.identityHashCode(device);
+    return mSnapshots.get(position).getId();
+  }
+
+  @Override
+  public boolean hasStableIds() {
+    return true;
   }
 
   @Override
   public View getView(int position, View convertView, ViewGroup parent) {
-    View view = mActivity.getLayoutInflater().inflate(
-        R.layout.listitem_device, null);
-    NearbyDevice device = mNearbyDevices.get(position);
+    View view = convertView;
+    if (view == null) {
+      view = mActivity.getLayoutInflater().inflate(
+          R.layout.listitem_device, parent, false);
+      view.setTag(new ViewHolder(view));
+      Metrics.INFLATES.inc();
+    }
+    bindView(view, mSnapshots.get(position));
+    return view;
+  }
 
+  /**
+   * Bind the device to a row, only touching the views whose contents differ
+   * from what the row showed last. Icons that aren't decoded yet are
+   * requested, and the row is rebound when they arrive.
+   */
+  private void bindView(View view, NearbyDevice.Snapshot device) {
+    long startTime = System.nanoTime();
+    ViewHolder holder = (ViewHolder) view.getTag();
     DeviceMetadata deviceMetadata = device.getInfo();
+
+    if (holder.id != device.getId() || holder.metadata != deviceMetadata) {
+      if (deviceMetadata != null) {
+        holder.title.setText(deviceMetadata.title);
+        holder.url.setText(deviceMetadata.siteUrl);
+        holder.description.setText(deviceMetadata.description);
+      } else {
+        holder.title.setText(device.getUrl());
+        holder.url.setText(null);
+        holder.description.setText(null);
+      }
+      holder.id = device.getId();
+      holder.metadata = deviceMetadata;
+    }
+
+    Bitmap icon = null;
     if (deviceMetadata != null) {
-      TextView infoView = (TextView) view.findViewById(R.id.title);
-      infoView.setText(deviceMetadata.title);
+      icon = MetadataResolver.getIcon(deviceMetadata);
+      if (icon == null) {
+        // The icon hasn't arrived yet or was evicted; we hear about it when
+        // it is back in the cache.
+        MetadataResolver.requestIcon(deviceMetadata, mOnIconListener);
+      }
+    }
+    if (icon != holder.icon) {
+      if (icon != null) {
+        holder.iconView.setImageBitmap(icon);
+      } else {
+        holder.iconView.setImageResource(R.drawable.ic_launcher);
+      }
+      holder.icon = icon;
+    }
 
-      infoView = (TextView) view.findViewById(R.id.url);
-      infoView.setText(deviceMetadata.siteUrl);
+    Metrics.BIND_TIME.record((System.nanoTime() - startTime) / 1000);
+  }
+
+  private static class ViewHolder {
+    final TextView title;
+    final TextView url;
+    final TextView description;
+    final ImageView iconView;
 
-      infoView = (TextView) view.findViewById(R.id.description);
-      infoView.setText(deviceMetadata.description);
+    // What the row currently shows.
+    long id = -1;
+    DeviceMetadata metadata;
+    Bitmap icon;
 
-      ImageView iconView = (ImageView) view.findViewById(R.id.icon);
-      iconView.setImageBitmap(deviceMetadata.icon);
-    } else {
-      Log.i(TAG, String.format("Device with URL %s has no metadata.", device.getUrl()));
+    ViewHolder(View view) {
+      title = (TextView) view.findViewById(R.id.title);
+      url = (TextView) view.findViewById(R.id.url);
+      description = (TextView) view.findViewById(R.id.description);
+      iconView = (ImageView) view.findViewById(R.id.icon);
     }
-    return view;
   }
 
-  public void addDevice(final NearbyDevice device) {
-    mActivity.runOnUiThread(new Runnable() {
-      @Override
-      public void run() {
-        mNearbyDevices.add(device);
-        device.setAdapter(NearbyDeviceAdapter.this);
-        queueChangedNotification();
-      }
-    });
+  /**
+   * Add a newly found device. Called on the EventLoop.
+   */
+  public void addDevice(NearbyDevice device) {
+    device.setAdapter(this);
+    postSnapshot(device.getId(), device.snapshot(), true);
   }
 
-  public NearbyDevice getExistingDevice(NearbyDevice candidateDevice) {
-    for (NearbyDevice device : mNearbyDevices) {
-      if (device.getUrl().equals(candidateDevice.getUrl())) {
-        return device;
-      }
+  /**
+   * Remove devices that have gone away. Called on the EventLoop; the devices
+   * stop reporting changes to the adapter.
+   */
+  public void removeDevices(ArrayList<NearbyDevice> devices) {
+    for (NearbyDevice device : devices) {
+      device.setAdapter(null);
+      postSnapshot(device.getId(), REMOVED, true);
     }
-    return null;
   }
 
-  public ArrayList<NearbyDevice> removeExpiredDevices() {
-    // Get a list of devices that we need to remove.
-    ArrayList<NearbyDevice> toRemove = new ArrayList<NearbyDevice>();
-    for (NearbyDevice device : mNearbyDevices) {
-      if (device.isLastSeenAfter(NearbyDeviceManager.MAX_INACTIVE_TIME)) {
-        toRemove.add(device);
+  /**
+   * Let the adapter know that the device's RSSI changed. Called on the
+   * EventLoop.
+   */
+  public void updateDevice(NearbyDevice device) {
+    postSnapshot(device.getId(), device.snapshot(), false);
+  }
+
+  /**
+   * Let the adapter know that the device's metadata changed. Called on the
+   * EventLoop.
+   */
+  public void updateDeviceInfo(NearbyDevice device) {
+    postSnapshot(device.getId(), device.snapshot(), true);
+  }
+
+  // A snapshot replaces any earlier one of the same device that the UI
+  // thread hasn't got to yet, so a device can't be updated after it is
+  // removed, and the pending map never outgrows the device count.
+  private void postSnapshot(long id, NearbyDevice.Snapshot snapshot, boolean isUrgent) {
+    mPendingSnapshots.put(id, snapshot);
+    mFrameCoalescer.requestUpdate(isUrgent);
+  }
+
+  // Runs on the UI thread, at most once a frame.
+  private FrameCoalescer.OnUpdateListener mOnUpdateListener = new FrameCoalescer.OnUpdateListener() {
+    @Override
+    public void onUpdate() {
+      boolean isStructureChanged = false;
+      Iterator<Long> ids = mPendingSnapshots.keySet().iterator();
+      while (ids.hasNext()) {
+        Long id = ids.next();
+        NearbyDevice.Snapshot snapshot = mPendingSnapshots.remove(id);
+        if (snapshot == null) {
+          continue;
+        }
+        NearbyDevice.Snapshot current = mSnapshotsById.get(id);
+        if (snapshot == REMOVED) {
+          if (current != null) {
+            removeSnapshot(current);
+            isStructureChanged = true;
+          }
+        } else if (current == null) {
+          insertSnapshot(snapshot);
+          isStructureChanged = true;
+        } else {
+          mDirtySnapshots.put(id, snapshot);
+        }
       }
+      // Rebind whatever shows icons that have arrived.
+      DeviceMetadata iconMetadata;
+      while ((iconMetadata = mPendingIcons.poll()) != null) {
+        for (NearbyDevice.Snapshot snapshot : mSnapshots) {
+          if (snapshot.getInfo() == iconMetadata
+              && !mDirtySnapshots.containsKey(snapshot.getId())) {
+            mDirtySnapshots.put(snapshot.getId(), snapshot);
+          }
+        }
+      }
+      applyChanges(isStructureChanged);
     }
+  };
 
-    // Remove those devices from the list and notify the listener.
-    for (final NearbyDevice device : toRemove) {
-      mActivity.runOnUiThread(new Runnable() {
-        @Override
-        public void run() {
-          mNearbyDevices.remove(device);
-          queueChangedNotification();
-        }
-      });
+  private void insertSnapshot(NearbyDevice.Snapshot snapshot) {
+    int position = findInsertionPoint(snapshot.getSmoothedRSSI());
+    mSnapshots.add(position, snapshot);
+    mSnapshotsById.put(snapshot.getId(), snapshot);
+    if (mListChangeListener != null) {
+      mListChangeListener.onItemInserted(position);
     }
-    return toRemove;
   }
 
-  public void updateListUI() {
-    mActivity.runOnUiThread(new Runnable() {
-      @Override
-      public void run() {
-        queueChangedNotification();
-      }
-    });
+  private void removeSnapshot(NearbyDevice.Snapshot snapshot) {
+    mDirtySnapshots.remove(snapshot.getId());
+    mSnapshotsById.remove(snapshot.getId());
+    int position = indexOf(snapshot);
+    if (position < 0) {
+      return;
+    }
+    mSnapshots.remove(position);
+    if (mListChangeListener != null) {
+      mListChangeListener.onItemRemoved(position);
+    }
   }
 
-  public void queueChangedNotification() {
-    long now = System.currentTimeMillis();
-    // If a notification was recently issued, create a pending notification.
-    if (now - mLastChangeRequestTime < NOTIFY_DELAY) {
-      // Ignore if there's a pending timer already.
-      if (mNotificationTimer != null) {
-        Log.i(TAG, "queueChangedNotification: Timer already exists.");
-        return;
+  // Icons requested while binding arrive on the EventLoop; the next frame
+  // rebinds whatever shows them.
+  private MetadataResolver.OnMetadataListener mOnIconListener =
+      new MetadataResolver.OnMetadataListener() {
+    @Override
+    public void onDeviceInfo(DeviceMetadata deviceMetadata) {
+      mPendingIcons.add(deviceMetadata);
+      mFrameCoalescer.requestUpdate(true);
+    }
+  };
+
+  /**
+   * Swap in the latest snapshot of every dirty device, moving it if its RSSI
+   * changed, then either rebind just the rows that changed, or, if anything
+   * moved or devices came or went, let the ListView lay out again.
+   */
+  private void applyChanges(boolean isStructureChanged) {
+    boolean isMoved = false;
+    for (NearbyDevice.Snapshot snapshot : mDirtySnapshots.values()) {
+      NearbyDevice.Snapshot current = mSnapshotsById.get(snapshot.getId());
+      if (current == null) {
+        continue;
+      }
+      int from = indexOf(current);
+      if (from < 0) {
+        continue;
       }
-      Log.i(TAG, "queueChangedNotification: Scheduling timer.");
-      mNotificationTimer = new Timer();
-      mNotificationTimer.schedule(new TimerTask() {
-        @Override
-        public void run() {
-          mActivity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-              notifyDataSetChanged();
-            }
-          });
+      mSnapshotsById.put(snapshot.getId(), snapshot);
+      int rssi = snapshot.getSmoothedRSSI();
+      if (rssi == current.getSmoothedRSSI()) {
+        mSnapshots.set(from, snapshot);
+        continue;
+      }
+      mSnapshots.remove(from);
+      int to = findInsertionPoint(rssi);
+      mSnapshots.add(to, snapshot);
+      Metrics.SORTS.inc();
+      if (from != to) {
+        isMoved = true;
+        if (mListChangeListener != null) {
+          mListChangeListener.onItemMoved(from, to);
         }
-      }, new Date(now + NOTIFY_DELAY));
-    } else {
-      // Otherwise, if there's no active timer, notify immediately.
-      Log.i(TAG, "queueChangedNotification: Immediately notifying.");
-      notifyDataSetChanged();
+      }
     }
-  }
 
-  @Override
-  public void notifyDataSetChanged() {
-    Log.i(TAG, "queueChangedNotification: notifyDataSetChanged");
-    Collections.sort(mNearbyDevices, mRssiComparator);
+    boolean isRebound = !isMoved && !isStructureChanged;
+    for (NearbyDevice.Snapshot snapshot : mDirtySnapshots.values()) {
+      int position = indexOf(snapshot);
+      if (position < 0) {
+        continue;
+      }
+      if (mListChangeListener != null) {
+        mListChangeListener.onItemChanged(position);
+      }
+      if (isRebound) {
+        isRebound = rebindRow(position);
+      }
+    }
+    mDirtySnapshots.clear();
 
-    super.notifyDataSetChanged();
+    if (!isRebound) {
+      Metrics.NOTIFIES.inc();
+      super.notifyDataSetChanged();
+    }
+  }
 
-    // Cancel the pending notification timer if there is one.
-    if (mNotificationTimer != null) {
-      mNotificationTimer.cancel();
-      mNotificationTimer = null;
+  // Rebind the row in place if it is on screen. Returns false if we couldn't
+  // and the list needs a full notification instead.
+  private boolean rebindRow(int position) {
+    if (mListView == null) {
+      return false;
+    }
+    int first = mListView.getFirstVisiblePosition();
+    if (position < first || position > mListView.getLastVisiblePosition()) {
+      // Off screen rows get bound when they scroll into view.
+      return true;
     }
-    mLastChangeRequestTime = System.currentTimeMillis();
+    View row = mListView.getChildAt(position - first);
+    if (row == null) {
+      return false;
+    }
+    bindView(row, mSnapshots.get(position));
+    Metrics.REBINDS.inc();
+    return true;
   }
 
-  private Comparator<NearbyDevice> mRssiComparator = new Comparator<NearbyDevice>() {
-    @Override
-    public int compare(NearbyDevice lhs, NearbyDevice rhs) {
-      return rhs.getAverageRSSI() - lhs.getAverageRSSI();
+  // The first position whose device is weaker than rssi, which keeps devices
+  // with equal RSSI in insertion order.
+  private int findInsertionPoint(int rssi) {
+    int low = 0;
+    int high = mSnapshots.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (mSnapshots.get(mid).getSmoothedRSSI() >= rssi) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
     }
-  };
+    return low;
+  }
 
-}
\ No newline at end of file
+  // The position of this exact snapshot, or -1.
+  private int indexOf(NearbyDevice.Snapshot snapshot) {
+    int rssi = snapshot.getSmoothedRSSI();
+    // Find the first device with this RSSI, then look among its equals.
+    int low = 0;
+    int high = mSnapshots.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (mSnapshots.get(mid).getSmoothedRSSI() > rssi) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    for (int i = low; i < mSnapshots.size(); i++) {
+      NearbyDevice.Snapshot candidate = mSnapshots.get(i);
+      if (candidate == snapshot) {
+        return i;
+      }
+      if (candidate.getSmoothedRSSI() != rssi) {
+        break;
+      }
+    }
+    return -1;
+  }
+}
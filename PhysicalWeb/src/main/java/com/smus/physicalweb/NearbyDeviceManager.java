@@ -22,12 +22,20 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Handler;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Keeps track of all devices nearby.
@@ -35,6 +43,10 @@ import java.util.TimerTask;
  * Posts notifications when a new device is near, or if an old device is no
  * longer nearby.
  *
+ * Scan results can arrive on any thread. They are queued for the EventLoop,
+ * which is the only thread that touches the registry, the devices, batching
+ * and expiry, so none of that needs locking. The adapter gets snapshots.
+ *
  * Created by smus on 1/24/14.
  */
 public class NearbyDeviceManager {
@@ -42,30 +54,86 @@ public class NearbyDeviceManager {
 
   private BluetoothAdapter mBluetoothAdapter;
   private int REQUEST_ENABLE_BT = 0;
-  private Timer mExpireTimer;
-  private Timer mSearchTimer;
-  private Handler mQueryHandler;
+  // All of our periodic work (scans, expiry and batching) runs on the
+  // EventLoop through this handler.
+  private Handler mHandler;
+  // Scan results on their way to the EventLoop.
+  private EventQueue<ScanResult> mScanResults;
   private boolean mIsSearching = false;
 
+  private DeviceRegistry<NearbyDevice> mDeviceRegistry;
   private NearbyDeviceAdapter mNearbyDeviceAdapter;
   private OnNearbyDeviceChangeListener mListener;
 
-  //
-  private ArrayList<NearbyDevice> mDeviceBatchList;
+  // Newly found devices waiting to be resolved together.
+  private BatchScheduler<NearbyDevice> mBatchScheduler;
 
   private Activity mActivity;
 
   private boolean mIsQueuing = false;
-  // How often we should batch requests for metadata.
-  private int QUERY_PERIOD = 500;
-  // How often to search for new devices (ms).
-  private int SEARCH_PERIOD = 5000;
-  // How often to check for expired devices.
-  private int EXPIRE_PERIOD = 3000;
+  // Devices we haven't seen for MAX_INACTIVE_TIME fall off this wheel.
+  private ExpiryWheel<NearbyDevice> mExpiryWheel;
+  private boolean mIsExpiring = false;
+  // Reused for every new device.
+  private ScanRecordParser mScanRecordParser = new ScanRecordParser();
+  // What each address advertised last, so repeats aren't classified again.
+  private DeviceClassifier mDeviceClassifier = new DeviceClassifier();
+  private volatile ScanLog.Writer mScanRecorder;
+  private ScanReplayer mScanReplayer;
+  // Bounds on how many devices we resolve at once, and how long (ms) a newly
+  // found device can wait for others to join its batch.
+  private int MAX_BATCH_SIZE = 20;
+  private int MIN_BATCH_WINDOW = 50;
+  private int MAX_BATCH_WINDOW = 500;
+  // Scan policy parameters (ms): how long each scan window lasts, and the
+  // bounds on the pause after it once no new devices are showing up. The
+  // longest pause plus a window must stay under MAX_INACTIVE_TIME, or devices
+  // that are still around would expire.
+  private int SCAN_WINDOW = 4000;
+  private int MIN_SCAN_PAUSE = 500;
+  private int MAX_SCAN_PAUSE = 4000;
+  // Most of the time the radio may be on in the long run, however often new
+  // devices turn up.
+  private double SCAN_DUTY_CYCLE = 0.8;
+  private ScanScheduler mScanScheduler;
+  // Granularity of device expiry (ms), and the number of slots on the wheel,
+  // which covers MAX_INACTIVE_TIME in one turn.
+  private int EXPIRE_TICK = 1000;
+  private int EXPIRE_SLOTS = 16;
+
+  // Pages of the strongest beacons are prefetched, when that is turned on,
+  // once their smoothed RSSI has stayed at PREFETCH_RSSI or more for
+  // PREFETCH_DWELL ms. Only touched on the EventLoop.
+  private PagePrefetcher mPagePrefetcher;
+  private boolean mIsPrefetchEnabled = false;
+  // When each device's smoothed RSSI last rose to PREFETCH_RSSI.
+  private HashMap<NearbyDevice, Long> mStrongSince = new HashMap<NearbyDevice, Long>();
+  private int PREFETCH_RSSI = -70;
+  private int PREFETCH_DWELL = 3000;
+  private int PREFETCH_TICK = 1000;
+  // How many of the strongest beacons are candidates at once.
+  private int PREFETCH_COUNT = 3;
+  // Bytes that prefetching may spend per PREFETCH_BUDGET_PERIOD ms.
+  private int PREFETCH_BUDGET = 256 * 1024;
+  private int PREFETCH_BUDGET_PERIOD = 10 * 60 * 1000;
+  // Prefetches run one at a time on a thread shared by every manager, so
+  // recreating the activity doesn't leave threads behind. It exits once it
+  // has been idle for PREFETCH_THREAD_KEEP_ALIVE ms.
+  private static int PREFETCH_THREAD_KEEP_ALIVE = 30000;
+  private static ThreadPoolExecutor mPrefetchExecutor;
   // How much time has to pass with a nearby device not being discovered before
   // we declare it gone.
   public static int MAX_INACTIVE_TIME = 10000;
 
+  private static synchronized Executor getPrefetchExecutor() {
+    if (mPrefetchExecutor == null) {
+      mPrefetchExecutor = new ThreadPoolExecutor(1, 1, PREFETCH_THREAD_KEEP_ALIVE,
+          TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+      mPrefetchExecutor.allowCoreThreadTimeOut(true);
+    }
+    return mPrefetchExecutor;
+  }
+
   /**
    * The public interface of this class follows:
    */
@@ -83,11 +151,34 @@ public class NearbyDeviceManager {
       activity.startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
     }
 
-    mDeviceBatchList = new ArrayList<NearbyDevice>();
+    mBatchScheduler = new BatchScheduler<NearbyDevice>(
+        Clock.SYSTEM, MAX_BATCH_SIZE, MIN_BATCH_WINDOW, MAX_BATCH_WINDOW);
+    mDeviceRegistry = new DeviceRegistry<NearbyDevice>();
+    mExpiryWheel = new ExpiryWheel<NearbyDevice>(Clock.SYSTEM, EXPIRE_TICK, EXPIRE_SLOTS);
+    mHandler = EventLoop.getHandler();
+    mScanResults = new EventQueue<ScanResult>(EventLoop.getExecutor(),
+        new EventQueue.OnEventListener<ScanResult>() {
+      @Override
+      public void onEvent(ScanResult scanResult) {
+        ingestScanResult(scanResult);
+      }
+    });
+    mScanScheduler = new ScanScheduler(
+        new ScanPolicy.Adaptive(SCAN_WINDOW, MIN_SCAN_PAUSE, MAX_SCAN_PAUSE, SCAN_DUTY_CYCLE),
+        mRadio, mTimer, Clock.SYSTEM);
     mNearbyDeviceAdapter = new NearbyDeviceAdapter(activity);
-    mQueryHandler = new Handler();
-    mSearchTimer = new Timer();
-    mExpireTimer = new Timer();
+    mNearbyDeviceAdapter.setOnVisibilityChangeListener(mOnVisibilityChangeListener);
+    final ConnectivityManager connectivityManager =
+        (ConnectivityManager) activity.getSystemService(Context.CONNECTIVITY_SERVICE);
+    mPagePrefetcher = new PagePrefetcher(Clock.SYSTEM, getPrefetchExecutor(),
+        new PagePrefetcher.Network() {
+          @Override
+          public boolean isMetered() {
+            NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+            return info == null || !info.isConnected()
+                || connectivityManager.isActiveNetworkMetered();
+          }
+        }, PREFETCH_BUDGET, PREFETCH_BUDGET_PERIOD);
     mActivity = activity;
   }
 
@@ -100,6 +191,7 @@ public class NearbyDeviceManager {
 
   }
 
+  // Called on the EventLoop.
   public interface OnNearbyDeviceChangeListener {
     public void onDeviceFound(NearbyDevice device);
     public void onDeviceLost(NearbyDevice device);
@@ -109,109 +201,418 @@ public class NearbyDeviceManager {
     assert !mIsSearching;
     mIsSearching = true;
 
-    // Start a timer to do scans.
-    mSearchTimer.scheduleAtFixedRate(mSearchTask, 0, SEARCH_PERIOD);
-    // Start a timer to check for expired devices.
-    mExpireTimer.scheduleAtFixedRate(mExpireTask, 0, EXPIRE_PERIOD);
+    // Start scanning. Expiry checks only run while there are devices to
+    // expire.
+    mScanScheduler.start();
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (mIsPrefetchEnabled) {
+          mHandler.removeCallbacks(mPrefetchTask);
+          mHandler.post(mPrefetchTask);
+        }
+      }
+    });
   }
 
   public void stopSearchingForDevices() {
     assert mIsSearching;
     mIsSearching = false;
-    mBluetoothAdapter.stopLeScan(mLeScanCallback);
 
-    // Stop expired device timer.
-    mExpireTimer.cancel();
-    mSearchTimer.cancel();
+    // Stop scanning and expiring devices.
+    mScanScheduler.stop();
+    stopReplay();
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        mHandler.removeCallbacks(mExpireTask);
+        mIsExpiring = false;
+        mHandler.removeCallbacks(mPrefetchTask);
+      }
+    });
+  }
+
+  /**
+   * Whether to prefetch the pages of beacons that stay close, so that
+   * tapping them opens faster. Only happens on unmetered networks.
+   */
+  public void setPrefetchEnabled(final boolean isEnabled) {
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        mIsPrefetchEnabled = isEnabled;
+        mHandler.removeCallbacks(mPrefetchTask);
+        if (isEnabled) {
+          mHandler.post(mPrefetchTask);
+        } else {
+          mStrongSince.clear();
+        }
+      }
+    });
+  }
+
+  /**
+   * Where tapping a device with the URL should go: straight to its page if
+   * that was prefetched, otherwise the URL itself. Safe to call from any
+   * thread.
+   */
+  public String getPageUrl(String url) {
+    String pageUrl = mPagePrefetcher.getPageUrl(url);
+    if (pageUrl == null) {
+      return url;
+    }
+    Metrics.PREFETCH_HITS.inc();
+    return pageUrl;
   }
 
   public NearbyDeviceAdapter getAdapter() {
     return mNearbyDeviceAdapter;
   }
 
+  public ScanScheduler getScanScheduler() {
+    return mScanScheduler;
+  }
+
   public void scanDebug() {
-    mSearchTask.run();
+    mScanScheduler.restart();
   }
 
-  public void foundDeviceDebug(NearbyDevice debugDevice) {
-    handleDeviceFound(debugDevice);
+  public void foundDeviceDebug(final NearbyDevice debugDevice) {
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        handleDeviceFound(debugDevice);
+      }
+    });
   }
 
   /**
    * Private methods follow:
    */
-  private TimerTask mSearchTask = new TimerTask() {
+  private ScanScheduler.Radio mRadio = new ScanScheduler.Radio() {
     @Override
-    public void run() {
-      mBluetoothAdapter.stopLeScan(mLeScanCallback);
+    public boolean startScan() {
       boolean result = mBluetoothAdapter.startLeScan(mLeScanCallback);
       if (!result) {
         Log.e(TAG, "startLeScan failed.");
       }
+      return result;
+    }
+
+    @Override
+    public void stopScan() {
+      mBluetoothAdapter.stopLeScan(mLeScanCallback);
     }
   };
 
-  private TimerTask mExpireTask = new TimerTask() {
+  private ScanScheduler.Timer mTimer = new ScanScheduler.Timer() {
+    @Override
+    public void postDelayed(Runnable runnable, long delay) {
+      mHandler.postDelayed(runnable, delay);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+      mHandler.removeCallbacks(runnable);
+    }
+  };
+
+  private Runnable mExpireTask = new Runnable() {
     @Override
     public void run() {
-      ArrayList<NearbyDevice> removed = mNearbyDeviceAdapter.removeExpiredDevices();
+      ArrayList<NearbyDevice> removed = mExpiryWheel.advance();
+      // Keep ticking only while there is something left to expire.
+      mIsExpiring = !mExpiryWheel.isEmpty();
+      if (mIsExpiring) {
+        mHandler.postDelayed(this, mExpiryWheel.getTickDuration());
+      }
+      for (NearbyDevice device : removed) {
+        mDeviceRegistry.remove(device);
+        forgetPrefetch(device);
+      }
+      Metrics.REGISTRY_SIZE.set(mDeviceRegistry.size());
+      MetadataResolver.cancel(removed);
+      mNearbyDeviceAdapter.removeDevices(removed);
       for (NearbyDevice device : removed) {
         mListener.onDeviceLost(device);
       }
     }
   };
 
+  // Push back the device's expiry, since we just saw it.
+  private void scheduleExpiry(NearbyDevice device) {
+    mExpiryWheel.schedule(device, Clock.SYSTEM.currentTimeMillis() + MAX_INACTIVE_TIME);
+    if (!mIsExpiring) {
+      mIsExpiring = true;
+      mHandler.postDelayed(mExpireTask, mExpiryWheel.getTickDuration());
+    }
+  }
+
+
+  private Runnable mPrefetchTask = new Runnable() {
+    @Override
+    public void run() {
+      long now = Clock.SYSTEM.currentTimeMillis();
+      ArrayList<NearbyDevice> candidates = new ArrayList<NearbyDevice>();
+      for (NearbyDevice device : mDeviceRegistry.getDevices()) {
+        if (device.getUrl() == null || device.getSmoothedRSSI() < PREFETCH_RSSI) {
+          mStrongSince.remove(device);
+          continue;
+        }
+        Long strongSince = mStrongSince.get(device);
+        if (strongSince == null) {
+          mStrongSince.put(device, now);
+        } else if (now - strongSince >= PREFETCH_DWELL) {
+          candidates.add(device);
+        }
+      }
+      // The strongest are at the top of the list, where taps go.
+      Collections.sort(candidates, new Comparator<NearbyDevice>() {
+        @Override
+        public int compare(NearbyDevice lhs, NearbyDevice rhs) {
+          return rhs.getSmoothedRSSI() - lhs.getSmoothedRSSI();
+        }
+      });
+      for (int i = 0; i < candidates.size() && i < PREFETCH_COUNT; i++) {
+        mPagePrefetcher.prefetch(candidates.get(i).getUrl());
+      }
+      mHandler.postDelayed(this, PREFETCH_TICK);
+    }
+  };
+
+  // The device is gone, so its page won't be wanted.
+  private void forgetPrefetch(NearbyDevice device) {
+    mStrongSince.remove(device);
+    if (device.getUrl() != null) {
+      mPagePrefetcher.evict(device.getUrl());
+    }
+  }
+
+  // Icons for rows scrolled far out of view can wait until they are bound
+  // again.
+  private NearbyDeviceAdapter.OnVisibilityChangeListener mOnVisibilityChangeListener =
+      new NearbyDeviceAdapter.OnVisibilityChangeListener() {
+    @Override
+    public void onVisibilityChanged() {
+      mHandler.removeCallbacks(mCancelFarIconsRunnable);
+      mHandler.post(mCancelFarIconsRunnable);
+    }
+  };
+
+  private Runnable mCancelFarIconsRunnable = new Runnable() {
+    @Override
+    public void run() {
+      HashSet<String> iconUrls = new HashSet<String>();
+      for (NearbyDevice device : mDeviceRegistry.getDevices()) {
+        DeviceMetadata metadata = device.getInfo();
+        if (metadata != null && metadata.iconUrl != null && !device.isFarFromView()) {
+          iconUrls.add(metadata.iconUrl);
+        }
+      }
+      MetadataResolver.cancelIconsExcept(iconUrls);
+    }
+  };
 
   private Runnable mBatchMetadataRunnable = new Runnable () {
     @Override
     public void run() {
       batchFetchMetaData();
-      mIsQueuing = false;
     }
   };
 
   private void batchFetchMetaData() {
-    if(mDeviceBatchList.size() > 0) {
-      MetadataResolver.getBatchMetadata(mDeviceBatchList);
-      mDeviceBatchList = new ArrayList<NearbyDevice>(); // Clear out the list
+    ArrayList<NearbyDevice> batch = mBatchScheduler.drain();
+    mIsQueuing = false;
+    if (batch.size() > 0) {
+      Metrics.BATCH_SIZE.record(batch.size());
+      MetadataResolver.getBatchMetadata(batch, mOnBatchResolvedListener);
     }
   }
 
+  private MetadataResolver.OnBatchResolvedListener mOnBatchResolvedListener =
+      new MetadataResolver.OnBatchResolvedListener() {
+    @Override
+    public void onBatchResolved(long rtt) {
+      mBatchScheduler.onResolveCompleted(rtt);
+    }
+  };
+
 
   // NearbyDevice scan callback.
   private BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
     @Override
     public void onLeScan(final BluetoothDevice device, final int RSSI, byte[] scanRecord) {
-      Log.i(TAG, String.format("onLeScan: %s, RSSI: %d", device.getName(), RSSI));
-      assert mListener != null;
-
-      NearbyDevice candidateNearbyDevice = new NearbyDevice(device, RSSI);
-      handleDeviceFound(candidateNearbyDevice);
+      handleScanResult(device.getAddress(), RSSI, scanRecord, device);
     }
   };
 
+  /**
+   * Feed a scan result into the manager. This is what onLeScan does for real
+   * scans; the replayer calls it directly with recorded or synthetic traffic,
+   * in which case bluetoothDevice is null. Safe to call from any thread; the
+   * result is handled later on the EventLoop.
+   */
+  public void handleScanResult(String address, int RSSI, byte[] scanRecord,
+                               BluetoothDevice bluetoothDevice) {
+    assert mListener != null;
+    Metrics.SCAN_CALLBACKS.inc();
+    ScanLog.Writer scanRecorder = mScanRecorder;
+    if (scanRecorder != null) {
+      scanRecorder.write(Clock.SYSTEM.currentTimeMillis(), address, RSSI, scanRecord);
+    }
+    mScanResults.offer(new ScanResult(address, RSSI, scanRecord, bluetoothDevice));
+  }
+
+  private static class ScanResult {
+    final long time = System.nanoTime();
+    final String address;
+    final int RSSI;
+    final byte[] scanRecord;
+    final BluetoothDevice bluetoothDevice;
+
+    ScanResult(String address, int RSSI, byte[] scanRecord, BluetoothDevice bluetoothDevice) {
+      this.address = address;
+      this.RSSI = RSSI;
+      this.scanRecord = scanRecord;
+      this.bluetoothDevice = bluetoothDevice;
+    }
+  }
+
+  // On the EventLoop.
+  private void ingestScanResult(ScanResult scanResult) {
+    Metrics.INGEST_DELAY.record((System.nanoTime() - scanResult.time) / 1000);
+
+    DeviceClassifier.Classification classification =
+        mDeviceClassifier.get(scanResult.address, scanResult.scanRecord);
+    if (classification == null) {
+      Metrics.CLASSIFICATION_CACHE_MISSES.inc();
+      classification = classify(scanResult);
+    } else {
+      Metrics.CLASSIFICATION_CACHE_HITS.inc();
+    }
+    if (!classification.isBeacon()) {
+      return;
+    }
+
+    // Known devices only need their RSSI updated, so skip building a
+    // candidate device for them.
+    NearbyDevice nearbyDevice = mDeviceRegistry.getByAddress(scanResult.address);
+    if (nearbyDevice != null) {
+      if (classification.getUrl().equals(nearbyDevice.getUrl())) {
+        Metrics.REPEAT_DEVICES.inc();
+        mScanScheduler.onDeviceDiscovered(false);
+        onDeviceSeen(nearbyDevice, scanResult.RSSI);
+        return;
+      }
+      // The beacon now stands for another URL; the old one is gone.
+      loseDevice(nearbyDevice);
+    }
+
+    NearbyDevice candidateNearbyDevice = new NearbyDevice(scanResult.address,
+        classification.getName(), scanResult.RSSI, classification.getUrl());
+    handleDeviceFound(candidateNearbyDevice);
+  }
+
+  // Work out what the advertisement stands for and remember it.
+  private DeviceClassifier.Classification classify(ScanResult scanResult) {
+    String url = null;
+    if (mScanRecordParser.parse(scanResult.scanRecord)) {
+      url = mScanRecordParser.decodeUrl();
+    }
+    String name = mScanRecordParser.decodeName();
+    if (name == null && scanResult.bluetoothDevice != null) {
+      name = scanResult.bluetoothDevice.getName();
+    }
+    if (url == null) {
+      url = MetadataResolver.getURLForName(name);
+    }
+    return mDeviceClassifier.put(scanResult.address, scanResult.scanRecord, name, url);
+  }
+
+  private void loseDevice(NearbyDevice nearbyDevice) {
+    mDeviceRegistry.remove(nearbyDevice);
+    mExpiryWheel.remove(nearbyDevice);
+    forgetPrefetch(nearbyDevice);
+    Metrics.REGISTRY_SIZE.set(mDeviceRegistry.size());
+    ArrayList<NearbyDevice> removed = new ArrayList<NearbyDevice>();
+    removed.add(nearbyDevice);
+    MetadataResolver.cancel(removed);
+    mNearbyDeviceAdapter.removeDevices(removed);
+    mListener.onDeviceLost(nearbyDevice);
+  }
+
+  /**
+   * Record every scan result from now on, or stop recording if the writer is
+   * null. The caller owns the writer and closes it.
+   */
+  public void setScanRecorder(ScanLog.Writer scanRecorder) {
+    mScanRecorder = scanRecorder;
+  }
+
+  /**
+   * Feed scan results from the source into the manager on a background
+   * thread, at speed times real time (0 for as fast as possible).
+   */
+  public void startReplay(ScanSource source, double speed) {
+    stopReplay();
+    mScanReplayer = new ScanReplayer(source, speed, new ScanReplayer.OnScanListener() {
+      @Override
+      public void onScan(String address, int RSSI, byte[] scanRecord) {
+        handleScanResult(address, RSSI, scanRecord, null);
+      }
+    });
+    mScanReplayer.start();
+  }
+
+  public void stopReplay() {
+    if (mScanReplayer != null) {
+      mScanReplayer.stop();
+      mScanReplayer = null;
+    }
+  }
+
   private void handleDeviceFound(NearbyDevice candidateNearbyDevice) {
-    NearbyDevice nearbyDevice = mNearbyDeviceAdapter.getExistingDevice(candidateNearbyDevice);
+    NearbyDevice nearbyDevice = mDeviceRegistry.getExistingDevice(candidateNearbyDevice);
 
     // Check if this is a new device.
     if (nearbyDevice != null) {
       // For existing devices, update their RSSI.
-      nearbyDevice.updateLastSeen(candidateNearbyDevice.getLastRSSI());
-      mNearbyDeviceAdapter.updateListUI();
+      Metrics.REPEAT_DEVICES.inc();
+      onDeviceSeen(nearbyDevice, candidateNearbyDevice.getLastRSSI());
     } else {
       // For new devices, add the device to the adapter.
       nearbyDevice = candidateNearbyDevice;
       if (nearbyDevice.isBroadcastingUrl()) {
-        if (!mIsQueuing) {
-          mIsQueuing = true;
-          // We wait QUERY_PERIOD ms to see if any other devices are discovered so we can batch.
-          mQueryHandler.postAtTime(mBatchMetadataRunnable, QUERY_PERIOD);
-        }
         // Add the device to the queue of devices to look for.
-        mDeviceBatchList.add(nearbyDevice);
+        queueForResolution(nearbyDevice);
+        mDeviceRegistry.add(nearbyDevice);
+        Metrics.NEW_DEVICES.inc();
+        Metrics.REGISTRY_SIZE.set(mDeviceRegistry.size());
+        mScanScheduler.onDeviceDiscovered(true);
+        scheduleExpiry(nearbyDevice);
         mNearbyDeviceAdapter.addDevice(nearbyDevice);
         mListener.onDeviceFound(nearbyDevice);
       }
     }
   }
+
+  private void onDeviceSeen(NearbyDevice nearbyDevice, int RSSI) {
+    nearbyDevice.updateLastSeen(RSSI);
+    scheduleExpiry(nearbyDevice);
+    mNearbyDeviceAdapter.updateDevice(nearbyDevice);
+  }
+
+  private void queueForResolution(NearbyDevice nearbyDevice) {
+    if (mBatchScheduler.add(nearbyDevice)) {
+      // The batch is full, so send it off now.
+      mHandler.removeCallbacks(mBatchMetadataRunnable);
+      mHandler.post(mBatchMetadataRunnable);
+      mIsQueuing = true;
+    } else if (!mIsQueuing) {
+      // Wait a little to see if any other devices are discovered so we can
+      // batch them.
+      mHandler.postDelayed(mBatchMetadataRunnable, mBatchScheduler.getFlushDelay());
+      mIsQueuing = true;
+    }
+  }
 }
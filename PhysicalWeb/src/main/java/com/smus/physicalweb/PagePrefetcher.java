@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Gets the pages of beacons the user is likely to tap ready ahead of time.
+ *
+ * Beacon URLs are mostly short links, each redirect another round trip
+ * before the browser has even found the page. A prefetch follows the
+ * redirects to the page itself and asks it for its headers, which leaves
+ * every host on the way in the system's DNS cache and wakes up the server
+ * that serves the page. A tap then opens the page directly.
+ *
+ * Prefetches only happen on unmetered networks, and they are paid for out
+ * of a byte budget that refills over time. Results are kept until the
+ * beacon is lost or they get old, since links can change where they point.
+ *
+ * Safe to call from any thread; the fetching happens on the executor.
+ */
+public class PagePrefetcher {
+  private static int MAX_REDIRECTS = 5;
+  private static int TIMEOUT = 5000;
+  // How long (ms) a prefetched page is trusted for.
+  private static long MAX_AGE = 5 * 60 * 1000;
+  private static int MAX_ENTRIES = 32;
+  // What each request is charged against the budget: the headers both ways,
+  // and whatever of the body the server sent before we hung up.
+  private static int REQUEST_COST = 4096;
+
+  public interface Network {
+    // Whether data costs money right now, or there is no network at all.
+    public boolean isMetered();
+  }
+
+  private static class Entry {
+    final String pageUrl;
+    final long time;
+
+    Entry(String pageUrl, long time) {
+      this.pageUrl = pageUrl;
+      this.time = time;
+    }
+  }
+
+  private Clock mClock;
+  private Executor mExecutor;
+  private Network mNetwork;
+  private long mBudgetBytes;
+  private long mBudgetPeriod;
+
+  // Bytes left to spend, as of mBudgetTime.
+  private double mBudget;
+  private long mBudgetTime;
+  // Prefetched pages by beacon URL, oldest first.
+  private LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+  private HashSet<String> mInFlight = new HashSet<String>();
+
+  /**
+   * Up to budgetBytes can be spent at once, and the budget refills at that
+   * much per budgetPeriod ms.
+   */
+  public PagePrefetcher(Clock clock, Executor executor, Network network, long budgetBytes,
+                        long budgetPeriod) {
+    mClock = clock;
+    mExecutor = executor;
+    mNetwork = network;
+    mBudgetBytes = budgetBytes;
+    mBudgetPeriod = budgetPeriod;
+    mBudget = budgetBytes;
+    mBudgetTime = clock.currentTimeMillis();
+  }
+
+  /**
+   * Start prefetching the page for the beacon URL, unless it is already
+   * done or under way. Returns whether it was started.
+   */
+  public synchronized boolean prefetch(final String url) {
+    if (mInFlight.contains(url) || getPageUrl(url) != null) {
+      return false;
+    }
+    if (mNetwork.isMetered() || !hasBudget()) {
+      return false;
+    }
+    mInFlight.add(url);
+    Metrics.PREFETCHES.inc();
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        String pageUrl = followRedirects(url);
+        synchronized (PagePrefetcher.this) {
+          // Evicted while it was under way, if not in flight any more.
+          if (mInFlight.remove(url) && pageUrl != null) {
+            mEntries.remove(url);
+            mEntries.put(url, new Entry(pageUrl, mClock.currentTimeMillis()));
+            if (mEntries.size() > MAX_ENTRIES) {
+              Iterator<String> oldest = mEntries.keySet().iterator();
+              oldest.next();
+              oldest.remove();
+            }
+          }
+        }
+      }
+    });
+    return true;
+  }
+
+  /**
+   * The page the beacon URL leads to, if it has been prefetched recently,
+   * or null.
+   */
+  public synchronized String getPageUrl(String url) {
+    Entry entry = mEntries.get(url);
+    if (entry == null) {
+      return null;
+    }
+    if (mClock.currentTimeMillis() - entry.time > MAX_AGE) {
+      mEntries.remove(url);
+      return null;
+    }
+    return entry.pageUrl;
+  }
+
+  // Forget the beacon URL's page, and drop any prefetch under way for it.
+  public synchronized void evict(String url) {
+    mEntries.remove(url);
+    mInFlight.remove(url);
+  }
+
+  private boolean hasBudget() {
+    long now = mClock.currentTimeMillis();
+    mBudget = Math.min(mBudgetBytes,
+        mBudget + (double) mBudgetBytes * (now - mBudgetTime) / mBudgetPeriod);
+    mBudgetTime = now;
+    return mBudget >= REQUEST_COST;
+  }
+
+  private synchronized boolean charge() {
+    if (!hasBudget()) {
+      return false;
+    }
+    mBudget -= REQUEST_COST;
+    return true;
+  }
+
+  // The URL of the page at the end of url's redirects, or null if it
+  // couldn't be reached or the budget ran out on the way.
+  private String followRedirects(String url) {
+    try {
+      URL current = new URL(url);
+      for (int i = 0; i <= MAX_REDIRECTS; i++) {
+        if (!charge()) {
+          return null;
+        }
+        HttpURLConnection connection = (HttpURLConnection) current.openConnection();
+        try {
+          connection.setInstanceFollowRedirects(false);
+          connection.setConnectTimeout(TIMEOUT);
+          connection.setReadTimeout(TIMEOUT);
+          int status = connection.getResponseCode();
+          if (status >= 200 && status < 300) {
+            return current.toString();
+          }
+          String location = connection.getHeaderField("Location");
+          if (status < 300 || status >= 400 || location == null) {
+            return null;
+          }
+          current = new URL(current, location);
+        } finally {
+          // The body isn't wanted; don't wait for it.
+          connection.disconnect();
+        }
+      }
+    } catch (IOException e) {
+      // Not worth reporting; the tap goes the long way round.
+    }
+    return null;
+  }
+}
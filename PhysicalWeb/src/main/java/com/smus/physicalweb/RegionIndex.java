@@ -0,0 +1,222 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Metadata for every beacon in a region, synced ahead of time so beacons
+ * resolve without a round trip where the network is poor.
+ *
+ * Entries are keyed by beacon URL and tagged with their region; each region
+ * remembers the version it was last synced to, so later syncs only fetch
+ * what changed (see RegionSyncCodec). A URL belongs to the region that
+ * synced it last. The index holds at most MAX_ENTRIES entries; when a sync
+ * goes over, the regions synced longest ago are dropped whole, and a page
+ * that would take its region alone over is refused.
+ *
+ * Lookups run on the EventLoop and syncs apply pages on Volley's network
+ * threads; SQLiteDatabase serializes them.
+ */
+public class RegionIndex extends SQLiteOpenHelper {
+  private static String TAG = "RegionIndex";
+
+  private static final String DATABASE_NAME = "regions.db";
+  private static final int DATABASE_VERSION = 1;
+
+  static int MAX_ENTRIES = 50000;
+  // SQLite allows 999 arguments per statement.
+  private static final int MAX_QUERY_ARGS = 500;
+
+  private static final String ENTRIES = "entries";
+  private static final String REGIONS = "regions";
+
+  private static final String[] ENTRY_COLUMNS = {"url", "title", "site_url", "description", "icon"};
+
+  public RegionIndex(Context context) {
+    super(context, DATABASE_NAME, null, DATABASE_VERSION);
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + ENTRIES + " ("
+        + "url TEXT PRIMARY KEY, "
+        + "region TEXT NOT NULL, "
+        + "title TEXT, "
+        + "site_url TEXT, "
+        + "description TEXT, "
+        + "icon TEXT)");
+    db.execSQL("CREATE INDEX entries_region ON " + ENTRIES + " (region)");
+    db.execSQL("CREATE TABLE " + REGIONS + " ("
+        + "region TEXT PRIMARY KEY, "
+        + "version INTEGER NOT NULL, "
+        + "synced_at INTEGER NOT NULL)");
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // Everything here can be synced again.
+    db.execSQL("DROP TABLE IF EXISTS " + ENTRIES);
+    db.execSQL("DROP TABLE IF EXISTS " + REGIONS);
+    onCreate(db);
+  }
+
+  /**
+   * Look up a batch of beacon URLs at once. Returns the metadata for those
+   * that are in the index.
+   */
+  public HashMap<String, DeviceMetadata> getAll(List<String> urls) {
+    HashMap<String, DeviceMetadata> found = new HashMap<String, DeviceMetadata>();
+    SQLiteDatabase db = getReadableDatabase();
+    for (int start = 0; start < urls.size(); start += MAX_QUERY_ARGS) {
+      int end = Math.min(urls.size(), start + MAX_QUERY_ARGS);
+      String[] args = urls.subList(start, end).toArray(new String[end - start]);
+      StringBuilder selection = new StringBuilder("url IN (");
+      for (int i = 0; i < args.length; i++) {
+        selection.append(i == 0 ? "?" : ",?");
+      }
+      selection.append(')');
+      Cursor cursor = db.query(ENTRIES, ENTRY_COLUMNS, selection.toString(), args,
+          null, null, null);
+      try {
+        while (cursor.moveToNext()) {
+          DeviceMetadata metadata = new DeviceMetadata();
+          metadata.title = cursor.getString(1);
+          metadata.siteUrl = cursor.getString(2);
+          metadata.description = cursor.getString(3);
+          metadata.iconUrl = cursor.getString(4);
+          found.put(cursor.getString(0), metadata);
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+    return found;
+  }
+
+  /**
+   * The version the region was last synced to, or 0 if it never was.
+   */
+  public long getVersion(String region) {
+    Cursor cursor = getReadableDatabase().query(REGIONS, new String[] {"version"},
+        "region = ?", new String[] {region}, null, null, null);
+    try {
+      return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  public long getEntryCount() {
+    return DatabaseUtils.queryNumEntries(getReadableDatabase(), ENTRIES);
+  }
+
+  /**
+   * Apply one page of changes to the region, all or nothing. Returns false,
+   * leaving the index as it was, if the page would take the region alone
+   * past MAX_ENTRIES; syncing it should stop.
+   */
+  public boolean applyDelta(String region, RegionSyncCodec.Delta delta) {
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+    try {
+      SQLiteStatement upsert = db.compileStatement("INSERT OR REPLACE INTO " + ENTRIES
+          + " (url, region, title, site_url, description, icon) VALUES (?, ?, ?, ?, ?, ?)");
+      for (int i = 0; i < delta.ids.size(); i++) {
+        DeviceMetadata metadata = delta.metadata.get(i);
+        upsert.bindString(1, delta.ids.get(i));
+        upsert.bindString(2, region);
+        upsert.bindString(3, metadata.title);
+        upsert.bindString(4, metadata.siteUrl);
+        upsert.bindString(5, metadata.description);
+        upsert.bindString(6, metadata.iconUrl);
+        upsert.executeInsert();
+      }
+      upsert.close();
+
+      SQLiteStatement delete = db.compileStatement(
+          "DELETE FROM " + ENTRIES + " WHERE url = ? AND region = ?");
+      for (String url : delta.deleted) {
+        delete.bindString(1, url);
+        delete.bindString(2, region);
+        delete.executeUpdateDelete();
+      }
+      delete.close();
+
+      ContentValues values = new ContentValues();
+      values.put("region", region);
+      values.put("version", delta.version);
+      values.put("synced_at", System.currentTimeMillis());
+      db.insertWithOnConflict(REGIONS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+      if (!enforceLimit(db, region)) {
+        // Roll back, regions dropped to make room included.
+        return false;
+      }
+      db.setTransactionSuccessful();
+      return true;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  // Drop whole regions, least recently synced first, until the index fits.
+  private boolean enforceLimit(SQLiteDatabase db, String currentRegion) {
+    long count = DatabaseUtils.queryNumEntries(db, ENTRIES);
+    if (count <= MAX_ENTRIES) {
+      return true;
+    }
+    Cursor cursor = db.query(REGIONS, new String[] {"region"}, "region != ?",
+        new String[] {currentRegion}, null, null, "synced_at ASC");
+    try {
+      while (count > MAX_ENTRIES && cursor.moveToNext()) {
+        String region = cursor.getString(0);
+        Log.i(TAG, "Index is full; dropping region " + region);
+        count -= db.delete(ENTRIES, "region = ?", new String[] {region});
+        db.delete(REGIONS, "region = ?", new String[] {region});
+      }
+    } finally {
+      cursor.close();
+    }
+    return count <= MAX_ENTRIES;
+  }
+
+  /**
+   * Forget the region, so that the next sync starts over.
+   */
+  public void removeRegion(String region) {
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+    try {
+      db.delete(ENTRIES, "region = ?", new String[] {region});
+      db.delete(REGIONS, "region = ?", new String[] {region});
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Decodes pages of the sync-region protocol, which brings a RegionIndex up
+ * to date with the server.
+ *
+ * A client asks for the changes to a region since the version it last saw:
+ *
+ *   GET sync-region?region=<region>&since=<version>&limit=<entries>
+ *
+ * and gets back at most limit changes, oldest first:
+ *
+ *   {"region": "...", "version": 1234, "more": true,
+ *    "metadata": [{"id": ..., "title": ..., "url": ..., ...}, ...],
+ *    "deleted": ["<beacon url>", ...]}
+ *
+ * Metadata entries look like resolve-scan entries. The version is that of
+ * the last change in the page; the client passes it back as since for the
+ * next page, while more is true. A first sync passes 0.
+ *
+ * Free of Android and Volley, like ResolveScanCodec, so the benchmarks can
+ * run it on a plain JVM.
+ */
+public class RegionSyncCodec {
+  private static final String[] DELTA_FIELDS = {"version", "more", "metadata", "deleted"};
+  private static final int FIELD_VERSION = 0;
+  private static final int FIELD_MORE = 1;
+  private static final int FIELD_METADATA = 2;
+  private static final int FIELD_DELETED = 3;
+
+  /**
+   * One page of changes to a region.
+   */
+  public static class Delta {
+    public long version = -1;
+    public boolean hasMore = false;
+    // Parallel lists of beacon URLs and their metadata.
+    public final ArrayList<String> ids = new ArrayList<String>();
+    public final ArrayList<DeviceMetadata> metadata = new ArrayList<DeviceMetadata>();
+    public final ArrayList<String> deleted = new ArrayList<String>();
+
+    public int size() {
+      return ids.size() + deleted.size();
+    }
+  }
+
+  public static Delta readDelta(String json) throws IOException {
+    final Delta delta = new Delta();
+    JsonPullParser parser = new JsonPullParser(json);
+    ResolveScanCodec.IconUrls iconUrls = new ResolveScanCodec.IconUrls();
+    ResolveScanCodec.OnMetadataParsedListener listener =
+        new ResolveScanCodec.OnMetadataParsedListener() {
+      @Override
+      public void onMetadataParsed(String id, DeviceMetadata deviceMetadata) {
+        delta.ids.add(id);
+        delta.metadata.add(deviceMetadata);
+      }
+    };
+
+    parser.beginObject();
+    while (parser.hasNext()) {
+      switch (parser.nextName(DELTA_FIELDS)) {
+        case FIELD_VERSION:
+          delta.version = parseVersion(parser.nextString());
+          break;
+        case FIELD_MORE:
+          delta.hasMore = "true".equals(parser.nextString());
+          break;
+        case FIELD_METADATA:
+          parser.beginArray();
+          while (parser.hasNext()) {
+            ResolveScanCodec.readEntry(parser, iconUrls, listener);
+          }
+          parser.endArray();
+          break;
+        case FIELD_DELETED:
+          parser.beginArray();
+          while (parser.hasNext()) {
+            String url = parser.nextString();
+            if (url != null) {
+              delta.deleted.add(url);
+            }
+          }
+          parser.endArray();
+          break;
+        default:
+          parser.skipValue();
+      }
+    }
+    parser.endObject();
+    if (delta.version < 0) {
+      throw new IOException("No version in sync response.");
+    }
+    return delta;
+  }
+
+  private static long parseVersion(String value) throws IOException {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IOException("Bad version in sync response: " + value);
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import android.database.SQLException;
+import android.net.Uri;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import java.io.IOException;
+
+/**
+ * Fetches one page of changes to a region and applies it to the index.
+ *
+ * The page is decoded and written to the index on the network thread, so
+ * the listener only hears what was applied. A page that would take the
+ * region past what the index holds is not applied, and fails the request.
+ */
+public class RegionSyncRequest extends Request<RegionSyncCodec.Delta> {
+  private final String mRegion;
+  private final RegionIndex mRegionIndex;
+  private final Response.Listener<RegionSyncCodec.Delta> mListener;
+
+  public RegionSyncRequest(String url, String region, long since, int limit,
+                           RegionIndex regionIndex,
+                           Response.Listener<RegionSyncCodec.Delta> listener,
+                           Response.ErrorListener errorListener) {
+    super(Method.GET, Uri.parse(url).buildUpon()
+        .appendQueryParameter("region", region)
+        .appendQueryParameter("since", Long.toString(since))
+        .appendQueryParameter("limit", Integer.toString(limit))
+        .build().toString(), errorListener);
+    mRegion = region;
+    mRegionIndex = regionIndex;
+    mListener = listener;
+    // The index is the cache.
+    setShouldCache(false);
+  }
+
+  @Override
+  protected Response<RegionSyncCodec.Delta> parseNetworkResponse(NetworkResponse response) {
+    try {
+      String contentType = ResolveScanRequest.getHeader(response, "Content-Type");
+      String json = new String(response.data, ResolveScanRequest.getCharset(contentType));
+      RegionSyncCodec.Delta delta = RegionSyncCodec.readDelta(json);
+      if (!mRegionIndex.applyDelta(mRegion, delta)) {
+        return Response.error(new VolleyError("Region " + mRegion + " does not fit in the index"));
+      }
+      return Response.success(delta, null);
+    } catch (IOException e) {
+      return Response.error(new ParseError(e));
+    } catch (SQLException e) {
+      return Response.error(new VolleyError(e));
+    }
+  }
+
+  @Override
+  protected void deliverResponse(RegionSyncCodec.Delta delta) {
+    mListener.onResponse(delta);
+  }
+}
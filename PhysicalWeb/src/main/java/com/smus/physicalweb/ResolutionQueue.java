@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Items waiting to be resolved, taken out most important first.
+ *
+ * Importance changes while items wait (devices move and scroll in and out
+ * of view), so rather than keeping a heap whose keys go stale, the items are
+ * ranked when they are taken out. Each item's priority is read once per
+ * poll, so it may change under the queue at any time. Items with the same
+ * priority come out in the order they went in. Items can be removed from
+ * anywhere, such as when a device goes away before it was resolved.
+ */
+public class ResolutionQueue<T> {
+  private LinkedHashSet<T> mItems;
+  private Prioritizer<? super T> mPrioritizer;
+
+  public interface Prioritizer<T> {
+    // Items with higher priorities are taken out first.
+    public int getPriority(T item);
+  }
+
+  public ResolutionQueue(Prioritizer<? super T> prioritizer) {
+    mItems = new LinkedHashSet<T>();
+    mPrioritizer = prioritizer;
+  }
+
+  // Returns false if the item was already waiting.
+  public boolean add(T item) {
+    return mItems.add(item);
+  }
+
+  public boolean remove(T item) {
+    return mItems.remove(item);
+  }
+
+  public boolean contains(T item) {
+    return mItems.contains(item);
+  }
+
+  public int size() {
+    return mItems.size();
+  }
+
+  public boolean isEmpty() {
+    return mItems.isEmpty();
+  }
+
+  /**
+   * Take out up to maxCount of the most important items, most important
+   * first.
+   */
+  public ArrayList<T> poll(int maxCount) {
+    // Only the top few are wanted, so rather than sorting everything, keep
+    // them in order in a single pass.
+    ArrayList<T> polled = new ArrayList<T>(Math.min(maxCount, mItems.size()));
+    int[] priorities = new int[maxCount];
+    for (T item : mItems) {
+      int priority = mPrioritizer.getPriority(item);
+      int size = polled.size();
+      if (size == maxCount && priority <= priorities[size - 1]) {
+        // Ties go to the item that was added first, which is already in.
+        continue;
+      }
+      if (size == maxCount) {
+        polled.remove(--size);
+      }
+      int i = size;
+      while (i > 0 && priorities[i - 1] < priority) {
+        priorities[i] = priorities[i - 1];
+        i--;
+      }
+      priorities[i] = priority;
+      polled.add(i, item);
+    }
+    mItems.removeAll(polled);
+    return polled;
+  }
+}
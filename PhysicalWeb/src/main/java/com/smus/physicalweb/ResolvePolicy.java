@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait on the resolver, going by how it has been
+ * answering lately, so a slow server doesn't leave cards blank for long.
+ *
+ * - Each attempt times out at a multiple of the recent p99 round trip.
+ * - An attempt still running at the recent p95 is hedged: the same batch
+ *   goes out again, and whichever answers first wins. Hedges are paid for
+ *   out of a budget that refills with every batch, so they add at most
+ *   HEDGE_BUDGET more requests.
+ * - When every attempt at a batch has failed it is retried after an
+ *   exponential backoff with jitter, so clients that failed together don't
+ *   come back together.
+ * - A CircuitBreaker stops all of this while the resolver keeps failing;
+ *   the caller serves what it has instead.
+ *
+ * Until MIN_SAMPLES round trips have been seen, timeouts are fixed and
+ * nothing is hedged.
+ */
+public class ResolvePolicy {
+  private static int WINDOW_SIZE = 200;
+  private static int MIN_SAMPLES = 20;
+
+  // Per attempt timeouts (ms).
+  private static long DEFAULT_TIMEOUT = 2500;
+  private static long MIN_TIMEOUT = 1000;
+  private static long MAX_TIMEOUT = 10000;
+  private static double TIMEOUT_FACTOR = 2;
+
+  // Hedges never go out sooner than this (ms), however fast the server.
+  private static long MIN_HEDGE_DELAY = 50;
+  // Extra requests that hedging may add, as a fraction of batches.
+  private static double HEDGE_BUDGET = 0.1;
+  private static double MAX_HEDGE_TOKENS = 10;
+
+  // Retries (ms): the attempts at a batch, and the backoff between them.
+  private static int MAX_ATTEMPTS = 3;
+  private static long RETRY_BASE_DELAY = 500;
+  private static long RETRY_MAX_DELAY = 8000;
+
+  // Failures in a row that open the breaker, and how long it stays open (ms).
+  private static int FAILURE_THRESHOLD = 5;
+  private static long MIN_OPEN_TIME = 5000;
+  private static long MAX_OPEN_TIME = 60000;
+  // How long (ms) a probe may go unanswered before another is let through;
+  // room for an attempt at the longest timeout and a fallback to JSON.
+  private static long PROBE_TIMEOUT = 2 * MAX_TIMEOUT;
+
+  private LatencyTracker mLatencies;
+  private CircuitBreaker mCircuitBreaker;
+  private Random mRandom;
+  private double mHedgeTokens = 1;
+
+  public ResolvePolicy(Clock clock, Random random) {
+    mLatencies = new LatencyTracker(WINDOW_SIZE);
+    mCircuitBreaker = new CircuitBreaker(clock, FAILURE_THRESHOLD, MIN_OPEN_TIME, MAX_OPEN_TIME,
+        PROBE_TIMEOUT);
+    mRandom = random;
+  }
+
+  /**
+   * Whether a batch may go to the resolver now. Every batch let through has
+   * to end in onSuccess(), onFailure() or onCancel().
+   */
+  public synchronized boolean allowRequest() {
+    if (!mCircuitBreaker.allowRequest()) {
+      return false;
+    }
+    mHedgeTokens = Math.min(mHedgeTokens + HEDGE_BUDGET, MAX_HEDGE_TOKENS);
+    return true;
+  }
+
+  // A batch was resolved by an attempt that took rtt ms.
+  public synchronized void onSuccess(long rtt) {
+    mLatencies.record(rtt);
+    mCircuitBreaker.onSuccess();
+  }
+
+  // Every attempt at a batch failed.
+  public synchronized void onFailure() {
+    mCircuitBreaker.onFailure();
+  }
+
+  // A batch was let through but given up on before it got an answer.
+  public synchronized void onCancel() {
+    mCircuitBreaker.release();
+  }
+
+  public synchronized long getTimeout() {
+    if (mLatencies.getCount() < MIN_SAMPLES) {
+      return DEFAULT_TIMEOUT;
+    }
+    long timeout = (long) (mLatencies.getPercentile(0.99) * TIMEOUT_FACTOR);
+    return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+  }
+
+  /**
+   * How long (ms) to give an attempt before hedging it, or -1 if it
+   * shouldn't be.
+   */
+  public synchronized long getHedgeDelay() {
+    if (mLatencies.getCount() < MIN_SAMPLES
+        || mCircuitBreaker.getState() != CircuitBreaker.State.CLOSED) {
+      return -1;
+    }
+    return Math.max(MIN_HEDGE_DELAY, mLatencies.getPercentile(0.95));
+  }
+
+  /**
+   * Whether there is budget left for a hedge, which this spends.
+   */
+  public synchronized boolean tryHedge() {
+    if (mHedgeTokens < 1) {
+      return false;
+    }
+    mHedgeTokens -= 1;
+    return true;
+  }
+
+  /**
+   * How long (ms) to wait before trying a batch again after failedAttempts
+   * tries, or -1 to give up. Half the backoff is fixed and half random.
+   */
+  public synchronized long getRetryDelay(int failedAttempts) {
+    if (failedAttempts >= MAX_ATTEMPTS) {
+      return -1;
+    }
+    long backoff = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << (failedAttempts - 1));
+    return backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return mCircuitBreaker;
+  }
+
+  public LatencyTracker getLatencies() {
+    return mLatencies;
+  }
+}
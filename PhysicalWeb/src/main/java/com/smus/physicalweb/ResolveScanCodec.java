@@ -0,0 +1,266 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import android.net.Uri;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Encodes resolve-scan requests and decodes their responses.
+ *
+ * Both directions stream: requests are written straight from the beacons and
+ * responses are pulled straight into DeviceMetadata, without building a
+ * JSON tree in between.
+ *
+ * Kept apart from MetadataResolver, and free of Volley and logging, so the
+ * benchmarks can run it on a plain JVM.
+ */
+public class ResolveScanCodec {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final String DEFAULT_TITLE = "Unknown name";
+  private static final String DEFAULT_URL = "Unknown url";
+  private static final String DEFAULT_DESCRIPTION = "Unknown description";
+  private static final String DEFAULT_ICON = "/favicon.ico";
+
+  private static final String[] RESPONSE_FIELDS = {"metadata"};
+  private static final int FIELD_METADATA = 0;
+
+  private static final String[] ENTRY_FIELDS = {"id", "title", "url", "description", "icon"};
+  private static final int FIELD_ID = 0;
+  private static final int FIELD_TITLE = 1;
+  private static final int FIELD_URL = 2;
+  private static final int FIELD_DESCRIPTION = 3;
+  private static final int FIELD_ICON = 4;
+
+  // What we send the resolver about each beacon.
+  public interface Beacon {
+    public String getUrl();
+    public int getLastRSSI();
+  }
+
+  public interface OnMetadataParsedListener {
+    public void onMetadataParsed(String id, DeviceMetadata deviceMetadata);
+  }
+
+  /**
+   * Encode the request for the devices as UTF-8 JSON.
+   */
+  public static byte[] createRequestBody(List<? extends Beacon> devices) {
+    StringBuilder json = new StringBuilder(64 + devices.size() * 48);
+    json.append("{\"location\":{\"lat\":49.129837,\"lon\":120.38142},\"objects\":[");
+    for (int dIdx = 0; dIdx < devices.size(); dIdx++) {
+      Beacon device = devices.get(dIdx);
+      if (dIdx > 0) {
+        json.append(',');
+      }
+      json.append("{\"url\":");
+      appendString(json, device.getUrl());
+      json.append(",\"rssi\":").append(device.getLastRSSI()).append('}');
+    }
+    json.append("]}");
+    return json.toString().getBytes(UTF_8);
+  }
+
+  private static void appendString(StringBuilder json, String value) {
+    if (value == null) {
+      json.append("null");
+      return;
+    }
+    json.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+        case '\\':
+          json.append('\\').append(c);
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            json.append(String.format("\\u%04x", (int) c));
+          } else {
+            json.append(c);
+          }
+      }
+    }
+    json.append('"');
+  }
+
+  /**
+   * Decode a response, calling the listener for each entry with the id (the
+   * URL we asked about) and its metadata as soon as the entry is read.
+   * Returns the number of entries.
+   */
+  public static int readResponse(String json, OnMetadataParsedListener listener)
+      throws IOException {
+    JsonPullParser parser = new JsonPullParser(json);
+    IconUrls iconUrls = new IconUrls();
+    boolean hasMetadata = false;
+    int count = 0;
+    parser.beginObject();
+    while (parser.hasNext()) {
+      if (parser.nextName(RESPONSE_FIELDS) != FIELD_METADATA) {
+        parser.skipValue();
+        continue;
+      }
+      hasMetadata = true;
+      parser.beginArray();
+      while (parser.hasNext()) {
+        if (readEntry(parser, iconUrls, listener)) {
+          count++;
+        }
+      }
+      parser.endArray();
+    }
+    parser.endObject();
+    if (!hasMetadata) {
+      throw new IOException("No metadata in response.");
+    }
+    return count;
+  }
+
+  // One metadata entry, as RegionSyncCodec reads them too. Returns false if
+  // it had no id.
+  static boolean readEntry(JsonPullParser parser, IconUrls iconUrls,
+                           OnMetadataParsedListener listener) throws IOException {
+    String id = null;
+    String title = null;
+    String url = null;
+    String description = null;
+    String iconUrl = null;
+
+    parser.beginObject();
+    while (parser.hasNext()) {
+      int field = parser.nextName(ENTRY_FIELDS);
+      if (field == -1) {
+        parser.skipValue();
+        continue;
+      }
+      String value = parser.nextString();
+      switch (field) {
+        case FIELD_ID: id = value; break;
+        case FIELD_TITLE: title = value; break;
+        case FIELD_URL: url = value; break;
+        case FIELD_DESCRIPTION: description = value; break;
+        case FIELD_ICON: iconUrl = value; break;
+      }
+    }
+    parser.endObject();
+    if (id == null) {
+      return false;
+    }
+    listener.onMetadataParsed(id, createMetadata(title, url, description, iconUrl, iconUrls));
+    return true;
+  }
+
+  /**
+   * Build the metadata for an entry, filling in defaults for the fields the
+   * server left out (null) and resolving the icon against the site URL.
+   */
+  static DeviceMetadata createMetadata(String title, String url, String description,
+                                       String iconUrl, IconUrls iconUrls) {
+    DeviceMetadata deviceMetadata = new DeviceMetadata();
+    deviceMetadata.title = title != null ? title : DEFAULT_TITLE;
+    deviceMetadata.siteUrl = url != null ? url : DEFAULT_URL;
+    deviceMetadata.description = description != null ? description : DEFAULT_DESCRIPTION;
+    deviceMetadata.iconUrl = iconUrls.resolve(deviceMetadata.siteUrl,
+        iconUrl != null ? iconUrl : DEFAULT_ICON);
+    return deviceMetadata;
+  }
+
+  /**
+   * Resolves icon URLs for one response. Many beacons share an icon, so
+   * resolutions are reused and every entry with the same icon gets the same
+   * String.
+   */
+  static class IconUrls {
+    private HashMap<String, String> mAbsolute = new HashMap<String, String>();
+    // Resolved relative icons, keyed by the site URL minus its path (all the
+    // resolution depends on) and the icon path.
+    private HashMap<String, String> mRelative = new HashMap<String, String>();
+
+    String resolve(String url, String iconUrl) {
+      String key = null;
+      if (!iconUrl.startsWith("http")) {
+        key = getRelativeKey(url, iconUrl);
+        String resolved = key == null ? null : mRelative.get(key);
+        if (resolved != null) {
+          return resolved;
+        }
+        iconUrl = resolveIconUrl(url, iconUrl);
+      }
+      String shared = mAbsolute.get(iconUrl);
+      if (shared == null) {
+        mAbsolute.put(iconUrl, iconUrl);
+        shared = iconUrl;
+      }
+      if (key != null) {
+        mRelative.put(key, shared);
+      }
+      return shared;
+    }
+
+    private static String getRelativeKey(String url, String iconUrl) {
+      int pathStart = url.indexOf("://");
+      if (pathStart == -1) {
+        return null;
+      }
+      pathStart += 3;
+      int length = url.length();
+      while (pathStart < length && "/?#".indexOf(url.charAt(pathStart)) == -1) {
+        pathStart++;
+      }
+      int pathEnd = pathStart;
+      while (pathEnd < length && "?#".indexOf(url.charAt(pathEnd)) == -1) {
+        pathEnd++;
+      }
+      return new StringBuilder(length + iconUrl.length())
+          .append(url, 0, pathStart)
+          .append(url, pathEnd, length)
+          .append(' ')
+          .append(iconUrl)
+          .toString();
+    }
+  }
+
+  private static String resolveIconUrl(String url, String iconUrl) {
+    // TODO(smus): Eliminate this fallback since we expect the server to always return an icon.
+    // Provisions for a favicon specified as a relative URL.
+    if (!iconUrl.startsWith("http")) {
+      // Lets just assume we are dealing with a relative path.
+      Uri fullUri = Uri.parse(url);
+      Uri.Builder builder = fullUri.buildUpon();
+      // Append the default favicon path to the URL.
+      builder.path(iconUrl);
+      iconUrl = builder.toString();
+    }
+    return iconUrl;
+  }
+}
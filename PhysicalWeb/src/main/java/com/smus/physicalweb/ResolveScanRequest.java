@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import android.os.Handler;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A resolve-scan request for a batch of beacons.
+ *
+ * The request can be sent as JSON or, gzipped, in BinaryResolveCodec's
+ * format. When binary responses are accepted the server picks the format of
+ * its reply, and the listener hears whether it chose binary, which is how we
+ * learn that it understands binary requests too.
+ *
+ * The response is decoded on the network thread, and each entry is posted
+ * to the handler as soon as it has been read, rather than after the whole
+ * response. The listener is called last.
+ */
+public class ResolveScanRequest extends Request<Boolean> {
+  private static final String JSON_CONTENT_TYPE = "application/json";
+  private static final String GZIP = "gzip";
+  private static final String UTF_8 = "UTF-8";
+
+  private final boolean mIsBinaryRequest;
+  private final boolean mIsBinaryAccepted;
+  private final byte[] mBody;
+  private final Handler mHandler;
+  private final ResolveScanCodec.OnMetadataParsedListener mEntryListener;
+  private final Response.Listener<Boolean> mListener;
+  private Priority mPriority = Priority.NORMAL;
+
+  public ResolveScanRequest(String url, List<? extends ResolveScanCodec.Beacon> beacons,
+                            boolean isBinaryRequest, boolean isBinaryAccepted,
+                            Handler handler,
+                            ResolveScanCodec.OnMetadataParsedListener entryListener,
+                            Response.Listener<Boolean> listener,
+                            Response.ErrorListener errorListener) {
+    super(Method.POST, url, errorListener);
+    mIsBinaryRequest = isBinaryRequest;
+    mIsBinaryAccepted = isBinaryAccepted || isBinaryRequest;
+    if (isBinaryRequest) {
+      mBody = BinaryResolveCodec.gzip(BinaryResolveCodec.createRequestBody(beacons));
+    } else {
+      mBody = ResolveScanCodec.createRequestBody(beacons);
+    }
+    mHandler = handler;
+    mEntryListener = entryListener;
+    mListener = listener;
+    // Volley caches by URL alone, which is wrong for a POST; MetadataCache
+    // does the caching per beacon URL instead.
+    setShouldCache(false);
+  }
+
+  // Volley sends requests with higher priorities first.
+  public void setPriority(Priority priority) {
+    mPriority = priority;
+  }
+
+  @Override
+  public Priority getPriority() {
+    return mPriority;
+  }
+
+  @Override
+  public Map<String, String> getHeaders() {
+    HashMap<String, String> headers = new HashMap<String, String>();
+    headers.put("Accept", mIsBinaryAccepted
+        ? BinaryResolveCodec.CONTENT_TYPE + ", " + JSON_CONTENT_TYPE + ";q=0.5"
+        : JSON_CONTENT_TYPE);
+    // Ask for it explicitly, so that every HTTP stack leaves decompression to
+    // us.
+    headers.put("Accept-Encoding", GZIP);
+    if (mIsBinaryRequest) {
+      headers.put("Content-Encoding", GZIP);
+    }
+    return headers;
+  }
+
+  @Override
+  public String getBodyContentType() {
+    return mIsBinaryRequest
+        ? BinaryResolveCodec.CONTENT_TYPE
+        : JSON_CONTENT_TYPE + "; charset=utf-8";
+  }
+
+  @Override
+  public byte[] getBody() {
+    return mBody;
+  }
+
+  @Override
+  protected Response<Boolean> parseNetworkResponse(NetworkResponse response) {
+    ResolveScanCodec.OnMetadataParsedListener entryListener =
+        new ResolveScanCodec.OnMetadataParsedListener() {
+      @Override
+      public void onMetadataParsed(final String id, final DeviceMetadata deviceMetadata) {
+        mHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            if (!isCanceled()) {
+              mEntryListener.onMetadataParsed(id, deviceMetadata);
+            }
+          }
+        });
+      }
+    };
+    try {
+      byte[] data = response.data;
+      if (GZIP.equalsIgnoreCase(getHeader(response, "Content-Encoding"))) {
+        data = BinaryResolveCodec.gunzip(data);
+      }
+      String contentType = getHeader(response, "Content-Type");
+      boolean isBinaryResponse = contentType != null
+          && contentType.startsWith(BinaryResolveCodec.CONTENT_TYPE);
+      if (isBinaryResponse) {
+        BinaryResolveCodec.readResponse(data, entryListener);
+      } else {
+        ResolveScanCodec.readResponse(new String(data, getCharset(contentType)), entryListener);
+      }
+      return Response.success(isBinaryResponse, null);
+    } catch (IOException e) {
+      return Response.error(new ParseError(e));
+    }
+  }
+
+  @Override
+  protected void deliverResponse(Boolean isBinaryResponse) {
+    mListener.onResponse(isBinaryResponse);
+  }
+
+  // Header names differ in case between servers and HTTP stacks.
+  static String getHeader(NetworkResponse response, String name) {
+    if (response.headers == null) {
+      return null;
+    }
+    for (Map.Entry<String, String> header : response.headers.entrySet()) {
+      if (name.equalsIgnoreCase(header.getKey())) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
+  // JSON is UTF-8 unless the server says otherwise.
+  static String getCharset(String contentType) {
+    if (contentType != null) {
+      for (String parameter : contentType.split(";")) {
+        String[] pair = parameter.trim().split("=", 2);
+        if (pair.length == 2 && pair[0].equalsIgnoreCase("charset")) {
+          return pair[1];
+        }
+      }
+    }
+    return UTF_8;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+/**
+ * The last few RSSI samples for a device, kept in a ring buffer, plus a
+ * smoothed estimate that is updated as each sample comes in.
+ *
+ * Adding a sample never allocates, and reading the estimate is O(1), so it is
+ * cheap enough to call from a sort comparator.
+ */
+public class RssiHistory {
+  public enum Filter {
+    // Exponentially weighted moving average.
+    EWMA,
+    // One dimensional Kalman filter assuming a roughly constant signal.
+    KALMAN,
+    // Median of the samples in the buffer; robust against single outliers.
+    MEDIAN
+  }
+
+  private static double EWMA_ALPHA = 0.3;
+  // Kalman process and measurement noise variances (dBm^2).
+  private static double KALMAN_Q = 0.5;
+  private static double KALMAN_R = 8;
+
+  private Filter mFilter;
+  private int[] mSamples;
+  // Scratch space for the median, so we don't allocate per sample.
+  private int[] mSorted;
+  private int mNext = 0;
+  private int mCount = 0;
+
+  private double mEstimate;
+  private double mVariance;
+  private int mSmoothed;
+
+  public RssiHistory(int length, Filter filter) {
+    mFilter = filter;
+    mSamples = new int[length];
+    if (filter == Filter.MEDIAN) {
+      mSorted = new int[length];
+    }
+  }
+
+  public void add(int rssi) {
+    mSamples[mNext] = rssi;
+    mNext = (mNext + 1) % mSamples.length;
+    if (mCount < mSamples.length) {
+      mCount++;
+    }
+
+    if (mCount == 1) {
+      mEstimate = rssi;
+      mVariance = KALMAN_R;
+    } else {
+      switch (mFilter) {
+        case EWMA:
+          mEstimate += EWMA_ALPHA * (rssi - mEstimate);
+          break;
+        case KALMAN:
+          mVariance += KALMAN_Q;
+          double gain = mVariance / (mVariance + KALMAN_R);
+          mEstimate += gain * (rssi - mEstimate);
+          mVariance *= 1 - gain;
+          break;
+        case MEDIAN:
+          mEstimate = median();
+          break;
+      }
+    }
+    mSmoothed = (int) Math.round(mEstimate);
+  }
+
+  public int getLast() {
+    return mSamples[(mNext + mSamples.length - 1) % mSamples.length];
+  }
+
+  public int getSmoothed() {
+    return mSmoothed;
+  }
+
+  public int size() {
+    return mCount;
+  }
+
+  private double median() {
+    // Insertion sort; the buffer is only a handful of samples long.
+    for (int i = 0; i < mCount; i++) {
+      int value = mSamples[i];
+      int j = i - 1;
+      while (j >= 0 && mSorted[j] > value) {
+        mSorted[j + 1] = mSorted[j];
+        j--;
+      }
+      mSorted[j + 1] = value;
+    }
+    int middle = mCount / 2;
+    if (mCount % 2 == 1) {
+      return mSorted[middle];
+    }
+    return (mSorted[middle - 1] + mSorted[middle]) / 2.0;
+  }
+}
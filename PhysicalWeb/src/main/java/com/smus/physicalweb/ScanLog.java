@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact binary log of scan results.
+ *
+ * After a 4 byte magic number, each result is stored as:
+ *   - ms since the previous result, as a varint
+ *   - the 6 byte Bluetooth address
+ *   - RSSI, as a signed byte
+ *   - length of the scan record without its zero padding, as a byte
+ *   - the scan record bytes
+ */
+public class ScanLog {
+  private static final int MAGIC = 0x50575331; // "PWS1"
+
+  public static class Writer {
+    private DataOutputStream mOut;
+    private long mLastTimestamp = -1;
+    private boolean mIsFailed = false;
+
+    public Writer(OutputStream out) throws IOException {
+      mOut = new DataOutputStream(new BufferedOutputStream(out));
+      mOut.writeInt(MAGIC);
+    }
+
+    /**
+     * Append a scan result. Called from the scan thread, so I/O errors are
+     * remembered rather than thrown; check isFailed() when done.
+     */
+    public synchronized void write(long timestamp, String address, int rssi, byte[] scanRecord) {
+      if (mIsFailed) {
+        return;
+      }
+      try {
+        long delta = mLastTimestamp < 0 ? 0 : Math.max(0, timestamp - mLastTimestamp);
+        mLastTimestamp = timestamp;
+        writeVarLong(delta);
+        writeAddress(address);
+        mOut.writeByte(rssi);
+        int length = trimmedLength(scanRecord);
+        mOut.writeByte(length);
+        if (length > 0) {
+          mOut.write(scanRecord, 0, length);
+        }
+      } catch (IOException e) {
+        mIsFailed = true;
+      }
+    }
+
+    public synchronized boolean isFailed() {
+      return mIsFailed;
+    }
+
+    public synchronized void close() throws IOException {
+      mOut.close();
+    }
+
+    private void writeVarLong(long value) throws IOException {
+      while ((value & ~0x7fL) != 0) {
+        mOut.writeByte((int) ((value & 0x7f) | 0x80));
+        value >>>= 7;
+      }
+      mOut.writeByte((int) value);
+    }
+
+    private void writeAddress(String address) throws IOException {
+      // "00:11:22:AA:BB:CC"
+      for (int i = 0; i < 6; i++) {
+        mOut.writeByte(Integer.parseInt(address.substring(i * 3, i * 3 + 2), 16));
+      }
+    }
+
+    private static int trimmedLength(byte[] scanRecord) {
+      if (scanRecord == null) {
+        return 0;
+      }
+      int length = Math.min(scanRecord.length, 255);
+      while (length > 0 && scanRecord[length - 1] == 0) {
+        length--;
+      }
+      return length;
+    }
+  }
+
+  public static class Reader implements ScanSource {
+    private DataInputStream mIn;
+    private long mTimestamp = 0;
+
+    public Reader(InputStream in) throws IOException {
+      mIn = new DataInputStream(new BufferedInputStream(in));
+      if (mIn.readInt() != MAGIC) {
+        throw new IOException("Not a scan log.");
+      }
+    }
+
+    @Override
+    public boolean next(ScanEvent event) throws IOException {
+      long delta;
+      try {
+        delta = readVarLong();
+      } catch (EOFException e) {
+        return false;
+      }
+      mTimestamp += delta;
+      event.timestamp = mTimestamp;
+      event.address = readAddress();
+      event.rssi = mIn.readByte();
+      // Results are handed off to other threads, so each gets its own array.
+      byte[] scanRecord = new byte[mIn.readUnsignedByte()];
+      mIn.readFully(scanRecord);
+      event.scanRecord = scanRecord;
+      return true;
+    }
+
+    @Override
+    public void close() {
+      try {
+        mIn.close();
+      } catch (IOException e) {
+        // Nothing more we can do.
+      }
+    }
+
+    private long readVarLong() throws IOException {
+      long value = 0;
+      int shift = 0;
+      int b;
+      do {
+        b = mIn.readUnsignedByte();
+        value |= (long) (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+
+    private String readAddress() throws IOException {
+      StringBuilder address = new StringBuilder(17);
+      for (int i = 0; i < 6; i++) {
+        if (i > 0) {
+          address.append(':');
+        }
+        int b = mIn.readUnsignedByte();
+        address.append(Character.toUpperCase(Character.forDigit(b >> 4, 16)));
+        address.append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+      }
+      return address.toString();
+    }
+  }
+}
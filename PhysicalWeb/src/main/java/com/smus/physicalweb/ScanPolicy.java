@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+/**
+ * Decides how long each BLE scan window lasts, and how long the radio stays
+ * off between windows.
+ */
+public interface ScanPolicy {
+  // How long to keep the radio scanning in the next window (ms).
+  public long getScanWindow();
+
+  // How long to leave the radio off after the current window (ms).
+  public long getScanPause();
+
+  // Called for every scan result; isNew is true for devices we didn't know.
+  public void onDeviceDiscovered(boolean isNew);
+
+  // Called when a scan window ends, before asking for the next pause.
+  public void onScanWindowEnded();
+
+  /**
+   * Restarts the scan every window without ever pausing, which is what we
+   * always used to do.
+   */
+  public static class Fixed implements ScanPolicy {
+    private long mWindow;
+
+    public Fixed(long window) {
+      mWindow = window;
+    }
+
+    @Override
+    public long getScanWindow() { return mWindow; }
+
+    @Override
+    public long getScanPause() { return 0; }
+
+    @Override
+    public void onDeviceDiscovered(boolean isNew) {}
+
+    @Override
+    public void onScanWindowEnded() {}
+  }
+
+  /**
+   * Scans continuously while new devices keep turning up, and backs off once
+   * the set of devices is stable.
+   *
+   * The pause doubles after every window without a new device, up to
+   * maxPause (the latency budget: how long a new device may go unnoticed).
+   * A new device resets it to zero.
+   *
+   * dutyCycle (the energy budget) is a ceiling on the radio on time in the
+   * long run, however often new devices turn up. Radio on time is kept
+   * against dutyCycle of all the time scanned and paused, and once more than
+   * BURST_WINDOWS windows' worth has been spent over it, the pause is at
+   * least long enough to pay that back. If maxPause is too short to keep to
+   * dutyCycle, the energy budget wins.
+   */
+  public static class Adaptive implements ScanPolicy {
+    // How many windows in a row may be scanned back to back from a full
+    // budget, for a burst of new devices.
+    private static int BURST_WINDOWS = 2;
+
+    private long mWindow;
+    private long mMinPause;
+    private long mMaxPause;
+    private double mDutyCycle;
+    private double mMaxCredit;
+
+    private long mPause = 0;
+    private int mNewDeviceCount = 0;
+    // Radio on time spent over dutyCycle of the time so far (ms); negative
+    // while under it.
+    private double mOverBudget;
+
+    public Adaptive(long window, long minPause, long maxPause, double dutyCycle) {
+      mWindow = window;
+      mMinPause = minPause;
+      mMaxPause = maxPause;
+      mDutyCycle = dutyCycle;
+      mMaxCredit = BURST_WINDOWS * window * (1 - dutyCycle);
+      mOverBudget = -mMaxCredit;
+    }
+
+    @Override
+    public long getScanWindow() { return mWindow; }
+
+    @Override
+    public long getScanPause() { return mPause; }
+
+    @Override
+    public void onDeviceDiscovered(boolean isNew) {
+      if (isNew) {
+        mNewDeviceCount++;
+      }
+    }
+
+    @Override
+    public void onScanWindowEnded() {
+      if (mNewDeviceCount > 0) {
+        mPause = 0;
+      } else if (mPause == 0) {
+        mPause = Math.min(mMinPause, mMaxPause);
+      } else {
+        mPause = Math.min(mPause * 2, mMaxPause);
+      }
+      mNewDeviceCount = 0;
+
+      // The window just scanned, then the pause that follows it.
+      mOverBudget += mWindow * (1 - mDutyCycle);
+      if (mOverBudget > 0) {
+        mPause = Math.max(mPause, (long) Math.ceil(mOverBudget / mDutyCycle));
+      }
+      mOverBudget = Math.max(mOverBudget - mPause * mDutyCycle, -mMaxCredit);
+    }
+  }
+}
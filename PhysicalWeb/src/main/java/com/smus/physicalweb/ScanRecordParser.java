@@ -0,0 +1,214 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Walks the AD structures of a BLE advertisement in place.
+ *
+ * parse() only records offsets and small integers, so it never allocates and
+ * can run on every scan callback. The URL itself is only decoded into a
+ * String when decodeUrl() is called, which we do once per new device.
+ *
+ * Instances are not thread safe; reuse one per scanning thread.
+ */
+public class ScanRecordParser {
+  // AD types, from the Bluetooth assigned numbers.
+  private static final int AD_FLAGS = 0x01;
+  private static final int AD_SHORT_LOCAL_NAME = 0x08;
+  private static final int AD_COMPLETE_LOCAL_NAME = 0x09;
+  private static final int AD_TX_POWER_LEVEL = 0x0a;
+  private static final int AD_SERVICE_DATA_16 = 0x16;
+  private static final int AD_URI = 0x24;
+
+  // 16-bit service UUID used by URI beacons.
+  private static final int URI_BEACON_UUID = 0xfed8;
+
+  public static final int NO_FLAGS = -1;
+  public static final int NO_TX_POWER = Integer.MIN_VALUE;
+
+  private static final String[] URI_BEACON_SCHEMES = {
+      "http://www.",
+      "https://www.",
+      "http://",
+      "https://",
+      "urn:uuid:"
+  };
+
+  private static final String[] URI_BEACON_EXPANSIONS = {
+      ".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+      ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"
+  };
+
+  // Code points of the URI AD type that map to a scheme, from the Bluetooth
+  // URI scheme name string mapping table.
+  private static final int URI_SCHEME_HTTP = 0x16;
+  private static final int URI_SCHEME_HTTPS = 0x17;
+
+  private byte[] mRecord;
+  private int mFlags;
+  private int mTxPower;
+  private int mUrlStart;
+  private int mUrlEnd;
+  private boolean mIsUriBeacon;
+  private int mNameStart;
+  private int mNameEnd;
+
+  /**
+   * Parse a raw scanRecord. Returns true if the record held a URL.
+   */
+  public boolean parse(byte[] scanRecord) {
+    mRecord = scanRecord;
+    mFlags = NO_FLAGS;
+    mTxPower = NO_TX_POWER;
+    mUrlStart = -1;
+    mUrlEnd = -1;
+    mIsUriBeacon = false;
+    mNameStart = -1;
+    mNameEnd = -1;
+    if (scanRecord == null) {
+      return false;
+    }
+
+    int offset = 0;
+    while (offset < scanRecord.length) {
+      int length = scanRecord[offset] & 0xff;
+      // A zero length marks the start of the zero padding at the end.
+      if (length == 0) {
+        break;
+      }
+      int dataStart = offset + 2;
+      int dataEnd = offset + 1 + length;
+      if (dataEnd > scanRecord.length) {
+        // Truncated structure; keep whatever we parsed so far.
+        break;
+      }
+      int type = scanRecord[offset + 1] & 0xff;
+      switch (type) {
+        case AD_FLAGS:
+          if (dataEnd > dataStart) {
+            mFlags = scanRecord[dataStart] & 0xff;
+          }
+          break;
+        case AD_SHORT_LOCAL_NAME:
+        case AD_COMPLETE_LOCAL_NAME:
+          // Prefer the complete name if both are present.
+          if (mNameStart == -1 || type == AD_COMPLETE_LOCAL_NAME) {
+            mNameStart = dataStart;
+            mNameEnd = dataEnd;
+          }
+          break;
+        case AD_TX_POWER_LEVEL:
+          if (dataEnd > dataStart && mTxPower == NO_TX_POWER) {
+            mTxPower = scanRecord[dataStart];
+          }
+          break;
+        case AD_SERVICE_DATA_16:
+          parseServiceData(dataStart, dataEnd);
+          break;
+        case AD_URI:
+          if (mUrlStart == -1 && dataEnd > dataStart) {
+            int scheme = scanRecord[dataStart] & 0xff;
+            if (scheme == URI_SCHEME_HTTP || scheme == URI_SCHEME_HTTPS) {
+              mUrlStart = dataStart;
+              mUrlEnd = dataEnd;
+            }
+          }
+          break;
+      }
+      offset = dataEnd;
+    }
+    return hasUrl();
+  }
+
+  private void parseServiceData(int dataStart, int dataEnd) {
+    // UUID (2), flags (1), TX power (1), scheme (1), at least one more byte.
+    if (dataEnd - dataStart < 5) {
+      return;
+    }
+    int uuid = (mRecord[dataStart] & 0xff) | ((mRecord[dataStart + 1] & 0xff) << 8);
+    if (uuid != URI_BEACON_UUID) {
+      return;
+    }
+    // The beacon's calibrated TX power takes precedence over the AD field.
+    mTxPower = mRecord[dataStart + 3];
+    mUrlStart = dataStart + 4;
+    mUrlEnd = dataEnd;
+    mIsUriBeacon = true;
+  }
+
+  public boolean hasUrl() {
+    return mUrlStart != -1;
+  }
+
+  public int getFlags() {
+    return mFlags;
+  }
+
+  public int getTxPower() {
+    return mTxPower;
+  }
+
+  /**
+   * Decode the local name found by the last parse(), or return null if the
+   * advertisement didn't include one.
+   */
+  public String decodeName() {
+    if (mNameStart == -1) {
+      return null;
+    }
+    try {
+      return new String(mRecord, mNameStart, mNameEnd - mNameStart, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Decode the URL found by the last parse(), or return null if there was
+   * none. This allocates, so only call it for devices we haven't seen yet.
+   */
+  public String decodeUrl() {
+    if (!hasUrl()) {
+      return null;
+    }
+    StringBuilder url = new StringBuilder();
+    if (mIsUriBeacon) {
+      int scheme = mRecord[mUrlStart] & 0xff;
+      if (scheme >= URI_BEACON_SCHEMES.length) {
+        return null;
+      }
+      url.append(URI_BEACON_SCHEMES[scheme]);
+      for (int i = mUrlStart + 1; i < mUrlEnd; i++) {
+        int b = mRecord[i] & 0xff;
+        if (b < URI_BEACON_EXPANSIONS.length) {
+          url.append(URI_BEACON_EXPANSIONS[b]);
+        } else {
+          url.append((char) b);
+        }
+      }
+    } else {
+      int scheme = mRecord[mUrlStart] & 0xff;
+      url.append(scheme == URI_SCHEME_HTTPS ? "https:" : "http:");
+      for (int i = mUrlStart + 1; i < mUrlEnd; i++) {
+        url.append((char) (mRecord[i] & 0xff));
+      }
+    }
+    return url.toString();
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Plays scan results from a ScanSource on a background thread, standing in
+ * for the binder thread that delivers real scan callbacks.
+ */
+public class ScanReplayer implements Runnable {
+  private String TAG = "ScanReplayer";
+
+  private final ScanSource mSource;
+  private final double mSpeed;
+  private final OnScanListener mListener;
+  private Thread mThread;
+  private volatile boolean mIsStopped;
+  private volatile long mEventCount;
+
+  /**
+   * Replay at speed times real time; 1 is real time and 0 means as fast as
+   * the listener can keep up.
+   */
+  public ScanReplayer(ScanSource source, double speed, OnScanListener listener) {
+    mSource = source;
+    mSpeed = speed;
+    mListener = listener;
+  }
+
+  public synchronized void start() {
+    if (mThread != null) {
+      return;
+    }
+    mThread = new Thread(this, TAG);
+    mThread.start();
+  }
+
+  public synchronized void stop() {
+    mIsStopped = true;
+    if (mThread != null) {
+      mThread.interrupt();
+      mThread = null;
+    }
+  }
+
+  public long getEventCount() {
+    return mEventCount;
+  }
+
+  @Override
+  public void run() {
+    ScanSource.ScanEvent event = new ScanSource.ScanEvent();
+    long startTime = System.nanoTime();
+    long firstTimestamp = -1;
+    try {
+      while (!mIsStopped && mSource.next(event)) {
+        if (firstTimestamp < 0) {
+          firstTimestamp = event.timestamp;
+        }
+        if (mSpeed > 0) {
+          long dueNanos = (long) ((event.timestamp - firstTimestamp) * 1e6 / mSpeed);
+          long waitMillis = (dueNanos - (System.nanoTime() - startTime)) / 1000000;
+          if (waitMillis > 0) {
+            Thread.sleep(waitMillis);
+          }
+        }
+        mListener.onScan(event.address, event.rssi, event.scanRecord);
+        mEventCount++;
+      }
+    } catch (InterruptedException e) {
+      // Stopped.
+    } catch (IOException e) {
+      Log.e(TAG, "Replay failed after " + mEventCount + " results", e);
+    } finally {
+      mSource.close();
+    }
+    Log.i(TAG, "Replayed " + mEventCount + " scan results");
+  }
+
+  public interface OnScanListener {
+    public void onScan(String address, int RSSI, byte[] scanRecord);
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.util.Arrays;
+
+/**
+ * Turns the radio on and off following a ScanPolicy, and keeps track of how
+ * long the radio was on and how quickly new devices were found.
+ *
+ * The radio and the timer are interfaces so the whole thing can run against a
+ * simulated radio and a virtual clock.
+ */
+public class ScanScheduler {
+  public interface Radio {
+    public boolean startScan();
+    public void stopScan();
+  }
+
+  public interface Timer {
+    public void postDelayed(Runnable runnable, long delay);
+    public void removeCallbacks(Runnable runnable);
+  }
+
+  // How many discovery latency samples we keep for percentiles.
+  private static int LATENCY_SAMPLES = 256;
+  // How long to wait before trying again when a scan fails to start (ms).
+  private static int START_RETRY_DELAY = 1000;
+
+  private ScanPolicy mPolicy;
+  private Radio mRadio;
+  private Timer mTimer;
+  private Clock mClock;
+
+  private boolean mIsRunning = false;
+  private boolean mIsRadioOn = false;
+  private long mRadioOnSince;
+  private long mRadioOffSince;
+  private long mRadioOnTime = 0;
+  private long mStartTime;
+  private int mStartFailureCount = 0;
+
+  private long[] mLatencies = new long[LATENCY_SAMPLES];
+  private int mLatencyCount = 0;
+
+  public ScanScheduler(ScanPolicy policy, Radio radio, Timer timer, Clock clock) {
+    mPolicy = policy;
+    mRadio = radio;
+    mTimer = timer;
+    mClock = clock;
+  }
+
+  public synchronized void start() {
+    if (mIsRunning) {
+      return;
+    }
+    mIsRunning = true;
+    mStartTime = mClock.currentTimeMillis();
+    mRadioOffSince = mStartTime;
+    startWindow();
+  }
+
+  public synchronized void stop() {
+    if (!mIsRunning) {
+      return;
+    }
+    mIsRunning = false;
+    mTimer.removeCallbacks(mEndWindowTask);
+    mTimer.removeCallbacks(mStartWindowTask);
+    radioOff();
+  }
+
+  /**
+   * Stop and restart the current scan window right away.
+   */
+  public synchronized void restart() {
+    if (!mIsRunning) {
+      return;
+    }
+    mTimer.removeCallbacks(mEndWindowTask);
+    mTimer.removeCallbacks(mStartWindowTask);
+    radioOff();
+    startWindow();
+  }
+
+  /**
+   * Report a scan result. For new devices, we record the worst case
+   * discovery latency: the time since the radio was last off, since the
+   * device may have shown up just after that.
+   */
+  public synchronized void onDeviceDiscovered(boolean isNew) {
+    mPolicy.onDeviceDiscovered(isNew);
+    if (isNew) {
+      recordDiscoveryLatency(mClock.currentTimeMillis() - mRadioOffSince);
+    }
+  }
+
+  /**
+   * Record a discovery latency measured elsewhere, e.g. by a simulated radio
+   * that knows when each device appeared.
+   */
+  public synchronized void recordDiscoveryLatency(long latency) {
+    mLatencies[mLatencyCount % LATENCY_SAMPLES] = latency;
+    mLatencyCount++;
+  }
+
+  /**
+   * The given percentile (0-100) of the recent discovery latencies (ms), or
+   * -1 if nothing was discovered yet.
+   */
+  public synchronized long getDiscoveryLatencyPercentile(int percentile) {
+    int count = Math.min(mLatencyCount, LATENCY_SAMPLES);
+    if (count == 0) {
+      return -1;
+    }
+    long[] sorted = Arrays.copyOf(mLatencies, count);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+    return sorted[Math.max(0, Math.min(count - 1, index))];
+  }
+
+  // Total time the radio has been on (ms).
+  public synchronized long getRadioOnTime() {
+    long onTime = mRadioOnTime;
+    if (mIsRadioOn) {
+      onTime += mClock.currentTimeMillis() - mRadioOnSince;
+    }
+    return onTime;
+  }
+
+  // How many times the radio failed to start scanning.
+  public synchronized int getStartFailureCount() {
+    return mStartFailureCount;
+  }
+
+  // Fraction of the time since start() that the radio was on.
+  public synchronized double getDutyCycle() {
+    long elapsed = mClock.currentTimeMillis() - mStartTime;
+    if (elapsed <= 0) {
+      return mIsRadioOn ? 1 : 0;
+    }
+    return (double) getRadioOnTime() / elapsed;
+  }
+
+  private void startWindow() {
+    if (radioOn()) {
+      mTimer.postDelayed(mEndWindowTask, mPolicy.getScanWindow());
+    } else {
+      // Try again later rather than count a window the radio spent off.
+      mTimer.postDelayed(mStartWindowTask, START_RETRY_DELAY);
+    }
+  }
+
+  private boolean radioOn() {
+    // Some stacks only report each device once per scan, so always restart.
+    mRadio.stopScan();
+    if (!mRadio.startScan()) {
+      // Whether or not it was on before, it isn't now.
+      mStartFailureCount++;
+      onRadioOff();
+      return false;
+    }
+    long now = mClock.currentTimeMillis();
+    if (mIsRadioOn) {
+      // The restart counts as a (very short) gap in coverage.
+      mRadioOffSince = now;
+    } else {
+      mIsRadioOn = true;
+      mRadioOnSince = now;
+    }
+    return true;
+  }
+
+  private void radioOff() {
+    mRadio.stopScan();
+    onRadioOff();
+  }
+
+  private void onRadioOff() {
+    if (mIsRadioOn) {
+      mIsRadioOn = false;
+      long now = mClock.currentTimeMillis();
+      mRadioOnTime += now - mRadioOnSince;
+      mRadioOffSince = now;
+    }
+  }
+
+  private Runnable mEndWindowTask = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (ScanScheduler.this) {
+        if (!mIsRunning) {
+          return;
+        }
+        mPolicy.onScanWindowEnded();
+        long pause = mPolicy.getScanPause();
+        if (pause <= 0) {
+          startWindow();
+        } else {
+          radioOff();
+          mTimer.postDelayed(mStartWindowTask, pause);
+        }
+      }
+    }
+  };
+
+  private Runnable mStartWindowTask = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (ScanScheduler.this) {
+        if (mIsRunning) {
+          startWindow();
+        }
+      }
+    }
+  };
+}
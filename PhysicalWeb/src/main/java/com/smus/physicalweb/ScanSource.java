@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.io.IOException;
+
+/**
+ * A stream of scan results that didn't come from the radio: a recording, or
+ * synthetic traffic.
+ */
+public interface ScanSource {
+  /**
+   * Fill in the next scan result, in timestamp order. Returns false once
+   * there are no more.
+   */
+  public boolean next(ScanEvent event) throws IOException;
+
+  public void close();
+
+  public static class ScanEvent {
+    // When the result was seen (ms); only the differences matter.
+    public long timestamp;
+    public String address;
+    public int rssi;
+    public byte[] scanRecord;
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Generates scan traffic from a crowd of made up URI beacons.
+ *
+ * Each beacon advertises http://example.com/b<index> every interval ms (with
+ * some jitter), at an RSSI that wanders around its own mean the way a real
+ * radio's does. Seeded, so runs are reproducible.
+ */
+public class SyntheticScanSource implements ScanSource {
+  private static final int MIN_MEAN_RSSI = -95;
+  private static final int MAX_MEAN_RSSI = -50;
+  private static final double RSSI_NOISE = 4;
+  private static final int RECORD_LENGTH = 62;
+
+  private static final String[] URI_BEACON_SCHEMES = {
+      "http://www.", "https://www.", "http://", "https://"
+  };
+  private static final String[] URI_BEACON_EXPANSIONS = {
+      ".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+      ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"
+  };
+
+  private final Random mRandom;
+  private final long mInterval;
+  private final long mDuration;
+  private final String[] mAddresses;
+  private final byte[][] mScanRecords;
+  private final int[] mMeanRssi;
+  private final PriorityQueue<long[]> mQueue;
+
+  /**
+   * Generate beaconCount beacons advertising every interval ms, for duration
+   * ms (0 to go on forever).
+   */
+  public SyntheticScanSource(int beaconCount, long interval, long duration, long seed) {
+    mRandom = new Random(seed);
+    mInterval = interval;
+    mDuration = duration;
+    mAddresses = new String[beaconCount];
+    mScanRecords = new byte[beaconCount][];
+    mMeanRssi = new int[beaconCount];
+    // Entries are {next advertisement time, beacon index}.
+    mQueue = new PriorityQueue<long[]>(Math.max(1, beaconCount),
+        new Comparator<long[]>() {
+      @Override
+      public int compare(long[] lhs, long[] rhs) {
+        return lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
+      }
+    });
+    for (int i = 0; i < beaconCount; i++) {
+      mAddresses[i] = String.format("00:11:22:%02X:%02X:%02X",
+          (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff);
+      mScanRecords[i] = createScanRecord(getUrl(i));
+      mMeanRssi[i] = MIN_MEAN_RSSI + mRandom.nextInt(MAX_MEAN_RSSI - MIN_MEAN_RSSI + 1);
+      // Spread the first advertisements over one interval.
+      mQueue.add(new long[] {(long) (mRandom.nextDouble() * interval), i});
+    }
+  }
+
+  @Override
+  public boolean next(ScanEvent event) {
+    long[] entry = mQueue.poll();
+    if (entry == null || (mDuration > 0 && entry[0] > mDuration)) {
+      return false;
+    }
+    int index = (int) entry[1];
+    event.timestamp = entry[0];
+    event.address = mAddresses[index];
+    event.rssi = (int) Math.round(mMeanRssi[index] + mRandom.nextGaussian() * RSSI_NOISE);
+    event.scanRecord = mScanRecords[index];
+
+    // Advertising intervals drift by up to 10% either way.
+    long jitter = (long) ((mRandom.nextDouble() - 0.5) * mInterval * 0.2);
+    entry[0] += Math.max(1, mInterval + jitter);
+    mQueue.add(entry);
+    return true;
+  }
+
+  @Override
+  public void close() {
+    mQueue.clear();
+  }
+
+  // The URL beacon index advertises.
+  public static String getUrl(int index) {
+    return "http://example.com/b" + index;
+  }
+
+  /**
+   * Build the advertisement a URI beacon broadcasting url would send, padded
+   * the way onLeScan delivers it. Returns null if url is too long to fit.
+   */
+  public static byte[] createScanRecord(String url) {
+    byte[] encodedUrl = encodeUri(url);
+    // Flags (3) + service UUIDs (4) + service data header (7).
+    if (encodedUrl == null || 14 + encodedUrl.length > RECORD_LENGTH) {
+      return null;
+    }
+    byte[] record = new byte[RECORD_LENGTH];
+    int offset = 0;
+    // Flags.
+    record[offset++] = 2;
+    record[offset++] = 0x01;
+    record[offset++] = 0x06;
+    // Complete list of 16-bit service UUIDs.
+    record[offset++] = 3;
+    record[offset++] = 0x03;
+    record[offset++] = (byte) 0xd8;
+    record[offset++] = (byte) 0xfe;
+    // Service data: UUID, flags, TX power, encoded URI.
+    record[offset++] = (byte) (5 + encodedUrl.length);
+    record[offset++] = 0x16;
+    record[offset++] = (byte) 0xd8;
+    record[offset++] = (byte) 0xfe;
+    record[offset++] = 0;
+    record[offset++] = (byte) -20;
+    System.arraycopy(encodedUrl, 0, record, offset, encodedUrl.length);
+    return record;
+  }
+
+  private static byte[] encodeUri(String url) {
+    int scheme = -1;
+    for (int i = 0; i < URI_BEACON_SCHEMES.length; i++) {
+      if (url.startsWith(URI_BEACON_SCHEMES[i])) {
+        scheme = i;
+        break;
+      }
+    }
+    if (scheme == -1) {
+      return null;
+    }
+    byte[] encoded = new byte[url.length()];
+    int length = 0;
+    encoded[length++] = (byte) scheme;
+    int position = URI_BEACON_SCHEMES[scheme].length();
+    while (position < url.length()) {
+      int expansion = -1;
+      for (int i = 0; i < URI_BEACON_EXPANSIONS.length; i++) {
+        if (url.startsWith(URI_BEACON_EXPANSIONS[i], position)) {
+          expansion = i;
+          break;
+        }
+      }
+      if (expansion != -1) {
+        encoded[length++] = (byte) expansion;
+        position += URI_BEACON_EXPANSIONS[expansion].length();
+      } else {
+        encoded[length++] = (byte) url.charAt(position++);
+      }
+    }
+    byte[] result = new byte[length];
+    System.arraycopy(encoded, 0, result, 0, length);
+    return result;
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stands in for the framework's LruCache off the device. The one in
+ * android-all evicts with LinkedHashMap.eldest(), which only Android's
+ * LinkedHashMap has, so it fails as soon as a cache fills up on a plain JVM.
+ * This one behaves the same, evicting through the map's iterator instead,
+ * and comes first on the benchmarks' classpath.
+ */
+public class LruCache<K, V> {
+  private final LinkedHashMap<K, V> mMap;
+  private int mSize;
+  private int mMaxSize;
+  private int mPutCount;
+  private int mCreateCount;
+  private int mEvictionCount;
+  private int mHitCount;
+  private int mMissCount;
+
+  public LruCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    mMaxSize = maxSize;
+    mMap = new LinkedHashMap<K, V>(0, 0.75f, true);
+  }
+
+  public void resize(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    synchronized (this) {
+      mMaxSize = maxSize;
+    }
+    trimToSize(maxSize);
+  }
+
+  public final V get(K key) {
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+    synchronized (this) {
+      V value = mMap.get(key);
+      if (value != null) {
+        mHitCount++;
+        return value;
+      }
+      mMissCount++;
+    }
+
+    V created = create(key);
+    if (created == null) {
+      return null;
+    }
+    V previous;
+    synchronized (this) {
+      mCreateCount++;
+      previous = mMap.put(key, created);
+      if (previous != null) {
+        // Someone else put a value meanwhile; theirs wins.
+        mMap.put(key, previous);
+      } else {
+        mSize += safeSizeOf(key, created);
+      }
+    }
+    if (previous != null) {
+      entryRemoved(false, key, created, previous);
+      return previous;
+    }
+    trimToSize(mMaxSize);
+    return created;
+  }
+
+  public final V put(K key, V value) {
+    if (key == null || value == null) {
+      throw new NullPointerException("key == null || value == null");
+    }
+    V previous;
+    synchronized (this) {
+      mPutCount++;
+      mSize += safeSizeOf(key, value);
+      previous = mMap.put(key, value);
+      if (previous != null) {
+        mSize -= safeSizeOf(key, previous);
+      }
+    }
+    if (previous != null) {
+      entryRemoved(false, key, previous, value);
+    }
+    trimToSize(mMaxSize);
+    return previous;
+  }
+
+  public void trimToSize(int maxSize) {
+    while (true) {
+      K key;
+      V value;
+      synchronized (this) {
+        if (mSize < 0 || (mMap.isEmpty() && mSize != 0)) {
+          throw new IllegalStateException(getClass().getName()
+              + ".sizeOf() is reporting inconsistent results!");
+        }
+        if (mSize <= maxSize || mMap.isEmpty()) {
+          break;
+        }
+        Iterator<Map.Entry<K, V>> entries = mMap.entrySet().iterator();
+        Map.Entry<K, V> eldest = entries.next();
+        key = eldest.getKey();
+        value = eldest.getValue();
+        entries.remove();
+        mSize -= safeSizeOf(key, value);
+        mEvictionCount++;
+      }
+      entryRemoved(true, key, value, null);
+    }
+  }
+
+  public final V remove(K key) {
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+    V previous;
+    synchronized (this) {
+      previous = mMap.remove(key);
+      if (previous != null) {
+        mSize -= safeSizeOf(key, previous);
+      }
+    }
+    if (previous != null) {
+      entryRemoved(false, key, previous, null);
+    }
+    return previous;
+  }
+
+  protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+  }
+
+  protected V create(K key) {
+    return null;
+  }
+
+  private int safeSizeOf(K key, V value) {
+    int result = sizeOf(key, value);
+    if (result < 0) {
+      throw new IllegalStateException("Negative size: " + key + "=" + value);
+    }
+    return result;
+  }
+
+  protected int sizeOf(K key, V value) {
+    return 1;
+  }
+
+  public final void evictAll() {
+    trimToSize(-1);
+  }
+
+  public final synchronized int size() {
+    return mSize;
+  }
+
+  public final synchronized int maxSize() {
+    return mMaxSize;
+  }
+
+  public final synchronized int hitCount() {
+    return mHitCount;
+  }
+
+  public final synchronized int missCount() {
+    return mMissCount;
+  }
+
+  public final synchronized int createCount() {
+    return mCreateCount;
+  }
+
+  public final synchronized int putCount() {
+    return mPutCount;
+  }
+
+  public final synchronized int evictionCount() {
+    return mEvictionCount;
+  }
+
+  public final synchronized Map<K, V> snapshot() {
+    return new LinkedHashMap<K, V>(mMap);
+  }
+
+  @Override
+  public final synchronized String toString() {
+    int accesses = mHitCount + mMissCount;
+    int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+    return String.format("LruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+        mMaxSize, mHitCount, mMissCount, hitPercent);
+  }
+}
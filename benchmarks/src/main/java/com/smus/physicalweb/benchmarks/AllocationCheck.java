@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+
+/**
+ * Runs the per callback IngestionBenchmarks that should allocate nothing,
+ * parsing a record and handling a known device, under JMH's GC profiler
+ * (what -prof gc reports), and checks that they allocate less than a byte
+ * per operation. Run it with:
+ *
+ *   gradle :benchmarks:allocationCheck
+ *
+ * Exits with status 1 if either allocates.
+ */
+public class AllocationCheck {
+  private static final String[] ALLOCATION_FREE = {"knownDevice", "parseScanRecord"};
+  // Bytes per operation; JMH's figure is an average, so leave room for
+  // rounding but not for an object.
+  private static final double MAX_ALLOCATION = 1;
+  // JMH prefixes the profiler's results with a middle dot.
+  private static final String ALLOCATION_RESULT = "\u00b7gc.alloc.rate.norm";
+
+  public static void main(String[] args) throws RunnerException {
+    StringBuilder pattern = new StringBuilder();
+    for (String benchmark : ALLOCATION_FREE) {
+      pattern.append(pattern.length() == 0 ? "" : "|").append(benchmark);
+    }
+    Options options = new OptionsBuilder()
+        .include(IngestionBenchmark.class.getName() + "\\.(" + pattern + ")$")
+        .addProfiler(GCProfiler.class)
+        .build();
+    Collection<RunResult> results = new Runner(options).run();
+
+    boolean isPassing = !results.isEmpty();
+    System.out.println("Allocation per operation:");
+    for (RunResult result : results) {
+      String name = result.getParams().getBenchmark();
+      name = name.substring(name.lastIndexOf('.') + 1) + " (deviceCount "
+          + result.getParams().getParam("deviceCount") + ")";
+      Result<?> allocation = result.getSecondaryResults().get(ALLOCATION_RESULT);
+      if (allocation == null) {
+        System.out.println("FAIL: no allocation figure for " + name);
+        isPassing = false;
+        continue;
+      }
+      System.out.println(String.format("  %-36s %8.3f B/op", name, allocation.getScore()));
+      if (allocation.getScore() >= MAX_ALLOCATION) {
+        System.out.println("FAIL: " + name + " allocates");
+        isPassing = false;
+      }
+    }
+    System.out.println(isPassing ? "PASS" : "FAIL");
+    System.exit(isPassing ? 0 : 1);
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.BatchScheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * BatchScheduler's flush decisions on a virtual clock. Checks that:
+ *
+ * - a batch says it is full at maxSize items, and not before;
+ * - a batch is due once its oldest item has waited the window, counted from
+ *   that item and not the newest;
+ * - the window is the minimum until devices turn up faster than half a
+ *   resolve round trip, then widens to that, up to maxWindow, and narrows
+ *   again when they slow down or the resolver speeds up.
+ *
+ * Then devices turn up at a few rates in front of resolvers of a few
+ * speeds, queued and flushed the way NearbyDeviceManager does, and it
+ * reports batch sizes and how long devices waited in a batch, checking that
+ * batches never go over maxSize, nothing waits longer than maxWindow, and,
+ * once a few round trips have been measured, nothing waits longer than
+ * minWindow when there is no point. Run it with:
+ *
+ *   gradle :benchmarks:batchScheduler
+ *
+ * Exits with status 1 if any check fails.
+ */
+public class BatchSchedulerHarness {
+  // What NearbyDeviceManager uses.
+  private static final int MAX_BATCH_SIZE = 20;
+  private static final long MIN_BATCH_WINDOW = 50;
+  private static final long MAX_BATCH_WINDOW = 500;
+  private static final long DURATION = 10 * 60 * 1000;
+  // Until a few round trips have been measured, BatchScheduler assumes a
+  // slow resolver (ms).
+  private static final long WARM_UP = 10 * 1000;
+
+  private static boolean mIsPassing = true;
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      System.out.println("FAIL: " + message);
+      mIsPassing = false;
+    }
+  }
+
+  private static BatchScheduler<Integer> create(Fakes.VirtualClock clock) {
+    return new BatchScheduler<Integer>(clock, MAX_BATCH_SIZE, MIN_BATCH_WINDOW,
+        MAX_BATCH_WINDOW);
+  }
+
+  static void checkSize() {
+    Fakes.VirtualClock clock = new Fakes.VirtualClock();
+    BatchScheduler<Integer> scheduler = create(clock);
+    for (int i = 1; i <= MAX_BATCH_SIZE; i++) {
+      boolean isFull = scheduler.add(i);
+      check(isFull == (i == MAX_BATCH_SIZE), "size: full at " + i + " items: " + isFull);
+    }
+    check(scheduler.drain().size() == MAX_BATCH_SIZE, "size: drained a different batch");
+    check(scheduler.isEmpty(), "size: not empty after draining");
+    check(!scheduler.add(0), "size: full again after one item");
+  }
+
+  static void checkAge() {
+    Fakes.VirtualClock clock = new Fakes.VirtualClock();
+    BatchScheduler<Integer> scheduler = create(clock);
+    check(scheduler.getFlushDelay() == 0, "age: an empty batch has a delay");
+    // Nothing measured yet, so nothing else is expected: the minimum.
+    check(scheduler.getWindow() == MIN_BATCH_WINDOW,
+        "age: starts with a " + scheduler.getWindow() + "ms window");
+    clock.time = 1000;
+    scheduler.add(1);
+    check(scheduler.getFlushDelay() == MIN_BATCH_WINDOW,
+        "age: " + scheduler.getFlushDelay() + "ms delay for a new batch");
+    clock.time += 30;
+    check(scheduler.getFlushDelay() == MIN_BATCH_WINDOW - 30,
+        "age: " + scheduler.getFlushDelay() + "ms delay 30ms in");
+    // A later item doesn't hold the batch back.
+    scheduler.add(2);
+    long window = scheduler.getWindow();
+    check(scheduler.getFlushDelay() == Math.max(0, window - 30),
+        "age: " + scheduler.getFlushDelay() + "ms delay with a " + window
+        + "ms window, after a second item");
+    clock.time += window;
+    check(scheduler.getFlushDelay() == 0, "age: still waiting past the window");
+    scheduler.drain();
+    clock.time += 10;
+    scheduler.add(3);
+    check(scheduler.getFlushDelay() == scheduler.getWindow(),
+        "age: the next batch counts from before its first item");
+  }
+
+  static void checkRate() {
+    Fakes.VirtualClock clock = new Fakes.VirtualClock();
+    BatchScheduler<Integer> scheduler = create(clock);
+    // A slow resolver: waiting up to half its round trip is worth it...
+    for (int i = 0; i < 30; i++) {
+      scheduler.onResolveCompleted(600);
+    }
+    // ...but not while devices trickle in.
+    for (int i = 0; i < 30; i++) {
+      clock.time += 2000;
+      scheduler.add(i);
+      scheduler.drain();
+    }
+    check(scheduler.getWindow() == MIN_BATCH_WINDOW,
+        "rate: a " + scheduler.getWindow() + "ms window for a device every 2s");
+    // They come in every 100ms.
+    for (int i = 0; i < 30; i++) {
+      clock.time += 100;
+      scheduler.add(i);
+    }
+    long window = scheduler.getWindow();
+    check(window >= 290 && window <= 300,
+        "rate: a " + window + "ms window for a device every 100ms, 600ms round trips");
+    // A very slow resolver: no more than the maximum.
+    for (int i = 0; i < 30; i++) {
+      scheduler.onResolveCompleted(5000);
+    }
+    check(scheduler.getWindow() == MAX_BATCH_WINDOW,
+        "rate: a " + scheduler.getWindow() + "ms window with 5s round trips");
+    // A fast one: back to the minimum.
+    for (int i = 0; i < 30; i++) {
+      scheduler.onResolveCompleted(80);
+    }
+    check(scheduler.getWindow() == MIN_BATCH_WINDOW,
+        "rate: a " + scheduler.getWindow() + "ms window with 80ms round trips");
+  }
+
+  private static class Task implements Comparable<Task> {
+    final long time;
+    final long sequence;
+    final Runnable runnable;
+
+    Task(long time, long sequence, Runnable runnable) {
+      this.time = time;
+      this.sequence = sequence;
+      this.runnable = runnable;
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      if (time != other.time) {
+        return time < other.time ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+  }
+
+  // NearbyDeviceManager's queueForResolution() and batchFetchMetaData(), on
+  // a virtual handler, in front of a resolver that answers after rtt ms.
+  private static class Pipeline {
+    final Fakes.VirtualClock clock = new Fakes.VirtualClock();
+    final BatchScheduler<Integer> scheduler = create(clock);
+    final PriorityQueue<Task> tasks = new PriorityQueue<Task>();
+    final long rtt;
+    long sequence = 0;
+    boolean isQueuing = false;
+    Task flushTask;
+    // When each device was queued.
+    final ArrayList<Long> addedAt = new ArrayList<Long>();
+    final ArrayList<Long> waits = new ArrayList<Long>();
+    final ArrayList<Integer> sizes = new ArrayList<Integer>();
+    long maxWaitAfterWarmUp = 0;
+
+    Pipeline(long rtt) {
+      this.rtt = rtt;
+    }
+
+    Task post(long delay, Runnable runnable) {
+      Task task = new Task(clock.time + delay, sequence++, runnable);
+      tasks.add(task);
+      return task;
+    }
+
+    final Runnable flush = new Runnable() {
+      @Override
+      public void run() {
+        ArrayList<Integer> batch = scheduler.drain();
+        isQueuing = false;
+        flushTask = null;
+        if (batch.isEmpty()) {
+          return;
+        }
+        sizes.add(batch.size());
+        for (int device : batch) {
+          long wait = clock.time - addedAt.get(device);
+          waits.add(wait);
+          if (addedAt.get(device) >= WARM_UP) {
+            maxWaitAfterWarmUp = Math.max(maxWaitAfterWarmUp, wait);
+          }
+        }
+        post(rtt, new Runnable() {
+          @Override
+          public void run() {
+            scheduler.onResolveCompleted(rtt);
+          }
+        });
+      }
+    };
+
+    void queue(int device) {
+      addedAt.add(clock.time);
+      if (scheduler.add(device)) {
+        if (flushTask != null) {
+          tasks.remove(flushTask);
+        }
+        flushTask = post(0, flush);
+        isQueuing = true;
+      } else if (!isQueuing) {
+        flushTask = post(scheduler.getFlushDelay(), flush);
+        isQueuing = true;
+      }
+    }
+
+    void run(final long[] arrivals) {
+      for (int i = 0; i < arrivals.length; i++) {
+        final int device = i;
+        tasks.add(new Task(arrivals[i], sequence++, new Runnable() {
+          @Override
+          public void run() {
+            queue(device);
+          }
+        }));
+      }
+      while (!tasks.isEmpty()) {
+        Task task = tasks.poll();
+        clock.time = task.time;
+        task.runnable.run();
+      }
+    }
+  }
+
+  // Arrival times (ms): bursts of burstSize devices meanInterval apart on
+  // average, the devices in a burst spacing apart.
+  private static long[] createArrivals(Random random, long meanInterval, int burstSize,
+                                       long spacing) {
+    ArrayList<Long> arrivals = new ArrayList<Long>();
+    long time = 0;
+    while (true) {
+      time += (long) (-Math.log(1 - random.nextDouble()) * meanInterval);
+      if (time >= DURATION) {
+        break;
+      }
+      for (int i = 0; i < burstSize; i++) {
+        arrivals.add(time + i * spacing);
+      }
+    }
+    long[] result = new long[arrivals.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = arrivals.get(i);
+    }
+    return result;
+  }
+
+  private static <T extends Comparable<T>> T percentile(ArrayList<T> values, int percentile) {
+    ArrayList<T> sorted = new ArrayList<T>(values);
+    Collections.sort(sorted);
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+  }
+
+  // Devices in bursts of burstSize, spacing ms apart, in front of a resolver
+  // taking rtt ms. If isBatchingPointless, nothing should wait past
+  // minWindow once BatchScheduler has warmed up.
+  static void simulate(String name, long meanInterval, int burstSize, long spacing, long rtt,
+                       boolean isBatchingPointless) {
+    Pipeline pipeline = new Pipeline(rtt);
+    pipeline.run(createArrivals(new Random(42), meanInterval, burstSize, spacing));
+    double meanSize = 0;
+    for (int size : pipeline.sizes) {
+      meanSize += size;
+    }
+    meanSize /= pipeline.sizes.size();
+    System.out.println(String.format("  %-28s %5d %6d %7.1f %6d   %5d %5d %5d",
+        name, pipeline.addedAt.size(), pipeline.sizes.size(), meanSize,
+        percentile(pipeline.sizes, 100), percentile(pipeline.waits, 50),
+        percentile(pipeline.waits, 95), percentile(pipeline.waits, 100)));
+
+    check(pipeline.waits.size() == pipeline.addedAt.size(),
+        name + ": " + (pipeline.addedAt.size() - pipeline.waits.size()) + " devices never sent");
+    check(percentile(pipeline.sizes, 100) <= MAX_BATCH_SIZE,
+        name + ": a batch of " + percentile(pipeline.sizes, 100));
+    check(percentile(pipeline.waits, 100) <= MAX_BATCH_WINDOW,
+        name + ": a device waited " + percentile(pipeline.waits, 100) + "ms");
+    if (isBatchingPointless) {
+      check(pipeline.maxWaitAfterWarmUp <= MIN_BATCH_WINDOW,
+          name + ": a device waited " + pipeline.maxWaitAfterWarmUp + "ms after warming up");
+    }
+  }
+
+  public static void main(String[] args) {
+    checkSize();
+    checkAge();
+    checkRate();
+    System.out.println("Size, age and rate decisions " + (mIsPassing ? "pass" : "fail"));
+
+    System.out.println(String.format("%d minutes of devices per case, batches of at most %d,"
+        + " windows %d-%dms:", DURATION / 60000, MAX_BATCH_SIZE, MIN_BATCH_WINDOW,
+        MAX_BATCH_WINDOW));
+    System.out.println("                               devices batches  size    max"
+        + "   waited p50   p95   max (ms)");
+    simulate("one every 2s, 600ms rtt", 2000, 1, 0, 600, true);
+    simulate("one every 100ms, 600ms rtt", 100, 1, 0, 600, false);
+    simulate("one every 100ms, 80ms rtt", 100, 1, 0, 80, true);
+    simulate("bursts of 50, 600ms rtt", 30 * 1000, 50, 5, 600, false);
+    simulate("bursts of 50, 5s rtt", 30 * 1000, 50, 5, 5000, false);
+    System.out.println(mIsPassing ? "PASS" : "FAIL");
+    System.exit(mIsPassing ? 0 : 1);
+  }
+}
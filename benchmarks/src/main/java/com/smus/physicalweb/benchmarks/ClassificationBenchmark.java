@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import android.util.Patterns;
+import com.smus.physicalweb.DeviceClassifier;
+import com.smus.physicalweb.ScanRecordParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per scan callback cost of deciding what a name-only advertisement stands
+ * for: the way NearbyDevice did it on every callback, with the hand-written
+ * check in front of the regex, and a repeat answered by DeviceClassifier.
+ * Most devices are phones and name-only beacons; one in ten is named after
+ * a URL.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassificationBenchmark {
+  @Param({"100", "1000"})
+  public int deviceCount;
+
+  private String[] mAddresses;
+  private byte[][] mScanRecords;
+  private int mNext = 0;
+
+  private ScanRecordParser mParser;
+  private DeviceClassifier mClassifier;
+
+  @Setup
+  public void setUp() {
+    mParser = new ScanRecordParser();
+    mClassifier = new DeviceClassifier(deviceCount);
+    mAddresses = new String[deviceCount];
+    mScanRecords = new byte[deviceCount][];
+    for (int i = 0; i < deviceCount; i++) {
+      mAddresses[i] = Fakes.address(i);
+      mScanRecords[i] = Fakes.namedScanRecord(getName(i));
+      mParser.parse(mScanRecords[i]);
+      String name = mParser.decodeName();
+      mClassifier.put(mAddresses[i], mScanRecords[i], name, DeviceClassifier.getNameUrl(name));
+    }
+  }
+
+  private static String getName(int index) {
+    switch (index % 10) {
+      case 0:
+        return "z3.ca/" + index;
+      case 1:
+      case 2:
+        return "Galaxy S5 " + index;
+      case 3:
+        return "fw v1." + index;
+      default:
+        return String.format("OLP425-%04X", index);
+    }
+  }
+
+  private int next() {
+    int index = mNext;
+    mNext = (mNext + 1) % deviceCount;
+    return index;
+  }
+
+  @Benchmark
+  public boolean regexEveryCallback() {
+    mParser.parse(mScanRecords[next()]);
+    return Patterns.WEB_URL.matcher(mParser.decodeName()).matches();
+  }
+
+  @Benchmark
+  public boolean fastPathEveryCallback() {
+    mParser.parse(mScanRecords[next()]);
+    return DeviceClassifier.isWebUrl(mParser.decodeName());
+  }
+
+  @Benchmark
+  public DeviceClassifier.Classification cachedRepeat() {
+    int index = next();
+    return mClassifier.get(mAddresses[index], mScanRecords[index]);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.DeviceRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DeviceRegistry lookups, inserts and removals with a registry of deviceCount
+ * devices, each with its own address and URL.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceRegistryBenchmark {
+  @Param({"1000", "10000"})
+  public int deviceCount;
+
+  private DeviceRegistry<Fakes.Device> mRegistry;
+  private Fakes.Device[] mDevices;
+  // The same beacons seen from an address we don't know yet, so they are
+  // found by URL.
+  private Fakes.Device[] mMovedDevices;
+  private int mNext = 0;
+
+  @Setup
+  public void setUp() {
+    mRegistry = new DeviceRegistry<Fakes.Device>();
+    mDevices = new Fakes.Device[deviceCount];
+    mMovedDevices = new Fakes.Device[deviceCount];
+    for (int i = 0; i < deviceCount; i++) {
+      String url = "http://example.com/" + i;
+      mDevices[i] = new Fakes.Device(Fakes.address(i), url, -70);
+      mMovedDevices[i] = new Fakes.Device(Fakes.address(deviceCount + i), url, -70);
+      mRegistry.add(mDevices[i]);
+    }
+  }
+
+  private int next() {
+    int index = mNext;
+    mNext = (mNext + 1) % deviceCount;
+    return index;
+  }
+
+  // A scan result from a device we know, as NearbyDeviceManager looks it up.
+  @Benchmark
+  public Fakes.Device getByAddress() {
+    return mRegistry.getByAddress(mDevices[next()].address);
+  }
+
+  // A candidate device matched by its address.
+  @Benchmark
+  public Fakes.Device getExistingDevice() {
+    return mRegistry.getExistingDevice(mDevices[next()]);
+  }
+
+  // A candidate device with a new address, matched by its URL.
+  @Benchmark
+  public Fakes.Device getExistingDeviceByUrl() {
+    return mRegistry.getExistingDevice(mMovedDevices[next()]);
+  }
+
+  // A device expiring and then turning up again, which keeps the registry at
+  // deviceCount.
+  @Benchmark
+  public int removeAndAdd() {
+    Fakes.Device device = mDevices[next()];
+    mRegistry.remove(device);
+    mRegistry.add(device);
+    return mRegistry.size();
+  }
+}
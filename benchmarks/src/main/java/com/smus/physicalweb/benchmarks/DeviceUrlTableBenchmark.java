@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.DeviceUrlTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking names up in a mapped DeviceUrlTable against the HashMap it
+ * replaced, and opening the table against parsing the CSV it is built from.
+ * A tenth of the entries are prefixes covering a whole model of beacon.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceUrlTableBenchmark {
+  @Param({"1000", "100000"})
+  public int size;
+
+  private File mFile;
+  private String mCsv;
+  private DeviceUrlTable mTable;
+  private HashMap<String, String> mMap;
+  private String[] mExactNames;
+  private String[] mPrefixedNames;
+  private String[] mMissingNames;
+  private int mNext;
+
+  @Setup
+  public void setUp() throws IOException {
+    Random random = new Random(42);
+    StringBuilder csv = new StringBuilder();
+    int prefixCount = size / 10;
+    for (int i = 0; i < prefixCount; i++) {
+      csv.append(getModel(i)).append("-*,http://example.com/model/").append(i).append('\n');
+    }
+    mExactNames = new String[size - prefixCount];
+    for (int i = 0; i < mExactNames.length; i++) {
+      mExactNames[i] = "BEACON-" + Integer.toHexString(random.nextInt());
+      csv.append(mExactNames[i]).append(",http://example.com/b/").append(i).append('\n');
+    }
+    mCsv = csv.toString();
+
+    DeviceUrlTable.Writer writer = new DeviceUrlTable.Writer();
+    DeviceUrlTableTool.readCsv(new StringReader(mCsv), writer);
+    mFile = File.createTempFile("devices", ".urlmap");
+    OutputStream out = new FileOutputStream(mFile);
+    try {
+      writer.write(out);
+    } finally {
+      out.close();
+    }
+    mTable = DeviceUrlTable.map(mFile);
+    mMap = parseCsv(mCsv);
+    System.out.println("\n" + mTable.size() + " entries, " + mFile.length() + " bytes mapped");
+
+    mPrefixedNames = new String[1024];
+    mMissingNames = new String[1024];
+    for (int i = 0; i < 1024; i++) {
+      mPrefixedNames[i] = getModel(random.nextInt(prefixCount)) + "-"
+          + Integer.toHexString(random.nextInt());
+      mMissingNames[i] = "OTHER-" + Integer.toHexString(random.nextInt());
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    mFile.delete();
+  }
+
+  private static String getModel(int index) {
+    return "MODEL" + index;
+  }
+
+  // What the app would do to keep the table on the heap instead.
+  private static HashMap<String, String> parseCsv(String csv) {
+    HashMap<String, String> map = new HashMap<String, String>();
+    int start = 0;
+    while (start < csv.length()) {
+      int end = csv.indexOf('\n', start);
+      int comma = csv.indexOf(',', start);
+      map.put(csv.substring(start, comma), csv.substring(comma + 1, end));
+      start = end + 1;
+    }
+    return map;
+  }
+
+  private int next() {
+    return mNext++ & 1023;
+  }
+
+  @Benchmark
+  public String tableExact() {
+    return mTable.lookup(mExactNames[next() % mExactNames.length]);
+  }
+
+  @Benchmark
+  public String tablePrefix() {
+    return mTable.lookup(mPrefixedNames[next()]);
+  }
+
+  @Benchmark
+  public String tableMiss() {
+    return mTable.lookup(mMissingNames[next()]);
+  }
+
+  @Benchmark
+  public String hashMapExact() {
+    return mMap.get(mExactNames[next() % mExactNames.length]);
+  }
+
+  // Opening is timed one shot at a time: mappings are only released when
+  // collected, and opening them back to back runs out of address space.
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Warmup(iterations = 10)
+  @Measurement(iterations = 50)
+  public String openTable() throws IOException {
+    return DeviceUrlTable.map(mFile).lookup(mExactNames[0]);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Warmup(iterations = 10)
+  @Measurement(iterations = 50)
+  public String parseCsvIntoHashMap() {
+    return parseCsv(mCsv).get(mExactNames[0]);
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.DeviceUrlTable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * Builds a DeviceUrlTable from a CSV of "name,url" lines. Blank lines and
+ * lines starting with # are skipped, and a name ending in * is a prefix. The
+ * app's table is rebuilt with:
+ *
+ *   gradle :benchmarks:deviceUrlTable
+ *
+ * or for other files:
+ *
+ *   DeviceUrlTableTool <input.csv> <output.urlmap>
+ */
+public class DeviceUrlTableTool {
+  /**
+   * Add every entry in the CSV to the writer. Names can't contain commas;
+   * URLs can.
+   */
+  public static void readCsv(Reader csv, DeviceUrlTable.Writer writer) throws IOException {
+    BufferedReader reader = new BufferedReader(csv);
+    String line;
+    int lineNumber = 0;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      int comma = line.indexOf(',');
+      if (comma <= 0 || comma == line.length() - 1) {
+        throw new IOException("Line " + lineNumber + ": expected name,url");
+      }
+      String name = line.substring(0, comma).trim();
+      String url = line.substring(comma + 1).trim();
+      boolean isPrefix = name.endsWith("*");
+      if (isPrefix) {
+        name = name.substring(0, name.length() - 1);
+      }
+      writer.add(name, url, isPrefix);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: DeviceUrlTableTool <input.csv> <output.urlmap>");
+      System.exit(2);
+    }
+    DeviceUrlTable.Writer writer = new DeviceUrlTable.Writer();
+    Reader csv = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+    try {
+      readCsv(csv, writer);
+    } finally {
+      csv.close();
+    }
+    File output = new File(args[1]);
+    OutputStream out = new FileOutputStream(output);
+    try {
+      writer.write(out);
+    } finally {
+      out.close();
+    }
+    System.out.println("Wrote " + writer.size() + " entries, " + output.length()
+        + " bytes, to " + output);
+  }
+}
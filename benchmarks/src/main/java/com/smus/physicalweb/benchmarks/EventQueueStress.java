@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.EventQueue;
+import com.smus.physicalweb.ExpiryWheel;
+import com.smus.physicalweb.ScanRecordParser;
+import com.smus.physicalweb.ScanSource;
+import com.smus.physicalweb.SyntheticScanSource;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays synthetic scan traffic from several threads at once into an
+ * EventQueue, the way binder threads and the replayer feed
+ * NearbyDeviceManager, and checks that the consumer side really has a single
+ * writer: every event arrives, on one thread, never reentrantly, and in the
+ * order its producer offered it. The consumer does what the event loop does
+ * with unsynchronized state: a plain HashMap registry, one shared parser and
+ * an expiry wheel. Run it with:
+ *
+ *   gradle :benchmarks:eventQueueStress [-PstressArgs="--producers 8 --beacons 500"]
+ *
+ * Exits with status 1 if any check fails.
+ */
+public class EventQueueStress {
+  private static final long ADVERTISING_INTERVAL = 100;
+  private static final long DURATION = 60000;
+  private static final long MAX_INACTIVE_TIME = 10000;
+
+  private static class Event {
+    final int producer;
+    final long sequence;
+    final long timestamp;
+    final String address;
+    final int rssi;
+    final byte[] scanRecord;
+
+    Event(int producer, long sequence, ScanSource.ScanEvent scanEvent) {
+      this.producer = producer;
+      this.sequence = sequence;
+      this.timestamp = scanEvent.timestamp;
+      this.address = scanEvent.address;
+      this.rssi = scanEvent.rssi;
+      this.scanRecord = scanEvent.scanRecord;
+    }
+  }
+
+  private final int mProducerCount;
+  private final int mBeaconCount;
+
+  private final AtomicLong mProduced = new AtomicLong();
+  private final AtomicLong mConsumed = new AtomicLong();
+  private final AtomicInteger mActiveConsumers = new AtomicInteger();
+  private final AtomicLong mFailures = new AtomicLong();
+
+  // Consumer state, deliberately unsynchronized.
+  private final HashMap<String, Fakes.Device> mRegistry = new HashMap<String, Fakes.Device>();
+  private final ScanRecordParser mParser = new ScanRecordParser();
+  private final Fakes.VirtualClock mClock = new Fakes.VirtualClock();
+  private final ExpiryWheel<Fakes.Device> mExpiryWheel =
+      new ExpiryWheel<Fakes.Device>(mClock, 1000, 16);
+  private long[] mLastSequence;
+  private Thread mConsumerThread;
+  private int mExpiredCount = 0;
+
+  EventQueueStress(int producerCount, int beaconCount) {
+    mProducerCount = producerCount;
+    mBeaconCount = beaconCount;
+    mLastSequence = new long[producerCount];
+    for (int i = 0; i < producerCount; i++) {
+      mLastSequence[i] = -1;
+    }
+  }
+
+  private void fail(String message) {
+    if (mFailures.incrementAndGet() <= 10) {
+      System.out.println("FAIL: " + message);
+    }
+  }
+
+  private void consume(Event event) {
+    if (mActiveConsumers.incrementAndGet() != 1) {
+      fail("events consumed concurrently");
+    }
+    Thread thread = Thread.currentThread();
+    if (mConsumerThread == null) {
+      mConsumerThread = thread;
+    } else if (mConsumerThread != thread) {
+      fail("events consumed on " + thread.getName() + " and " + mConsumerThread.getName());
+    }
+    if (event.sequence != mLastSequence[event.producer] + 1) {
+      fail("producer " + event.producer + " event " + event.sequence
+          + " arrived after " + mLastSequence[event.producer]);
+    }
+    mLastSequence[event.producer] = event.sequence;
+
+    // Producers run on their own clocks, so keep the latest time seen.
+    if (event.timestamp > mClock.time) {
+      mClock.time = event.timestamp;
+      mExpiredCount += mExpiryWheel.advance().size();
+    }
+    Fakes.Device device = mRegistry.get(event.address);
+    if (device == null) {
+      if (!mParser.parse(event.scanRecord)) {
+        fail("unparseable scan record from " + event.address);
+      }
+      device = new Fakes.Device(event.address, mParser.decodeUrl(), event.rssi);
+      mRegistry.put(event.address, device);
+    } else {
+      device.rssiHistory.add(event.rssi);
+    }
+    mExpiryWheel.schedule(device, mClock.time + MAX_INACTIVE_TIME);
+
+    mConsumed.incrementAndGet();
+    mActiveConsumers.decrementAndGet();
+  }
+
+  boolean run() throws InterruptedException {
+    ExecutorService consumer = Executors.newSingleThreadExecutor();
+    final EventQueue<Event> queue = new EventQueue<Event>(consumer,
+        new EventQueue.OnEventListener<Event>() {
+      @Override
+      public void onEvent(Event event) {
+        consume(event);
+      }
+    });
+
+    Thread[] producers = new Thread[mProducerCount];
+    for (int p = 0; p < mProducerCount; p++) {
+      final int producer = p;
+      producers[p] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          // Each producer sees its own beacons, as if from a separate scan.
+          SyntheticScanSource source = new SyntheticScanSource(
+              mBeaconCount, ADVERTISING_INTERVAL, DURATION, producer);
+          ScanSource.ScanEvent scanEvent = new ScanSource.ScanEvent();
+          long sequence = 0;
+          while (source.next(scanEvent)) {
+            scanEvent.address = producer + ":" + scanEvent.address;
+            queue.offer(new Event(producer, sequence++, scanEvent));
+            mProduced.incrementAndGet();
+          }
+        }
+      }, "Producer" + p);
+    }
+
+    long startTime = System.nanoTime();
+    for (Thread producer : producers) {
+      producer.start();
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    long produceTime = System.nanoTime() - startTime;
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (mConsumed.get() < mProduced.get() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    long consumeTime = System.nanoTime() - startTime;
+    consumer.shutdown();
+    consumer.awaitTermination(5, TimeUnit.SECONDS);
+
+    if (mConsumed.get() != mProduced.get()) {
+      fail("consumed " + mConsumed.get() + " of " + mProduced.get() + " events");
+    }
+    if (mRegistry.size() != mProducerCount * mBeaconCount) {
+      fail("registry has " + mRegistry.size() + " devices, expected "
+          + mProducerCount * mBeaconCount);
+    }
+
+    System.out.println(mProducerCount + " producers, " + mProduced.get() + " events, "
+        + mRegistry.size() + " devices, " + mExpiredCount + " expired");
+    System.out.println(String.format("produced in %d ms, consumed in %d ms (%.0f events/s)",
+        TimeUnit.NANOSECONDS.toMillis(produceTime), TimeUnit.NANOSECONDS.toMillis(consumeTime),
+        mConsumed.get() * 1e9 / consumeTime));
+    System.out.println(mFailures.get() == 0 ? "OK" : mFailures.get() + " failures");
+    return mFailures.get() == 0;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int producerCount = 4;
+    int beaconCount = 200;
+    int rounds = 5;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--producers") && i + 1 < args.length) {
+        producerCount = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--beacons") && i + 1 < args.length) {
+        beaconCount = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--rounds") && i + 1 < args.length) {
+        rounds = Integer.parseInt(args[++i]);
+      }
+    }
+    boolean isPassing = true;
+    for (int round = 0; round < rounds; round++) {
+      isPassing &= new EventQueueStress(producerCount, beaconCount).run();
+    }
+    System.exit(isPassing ? 0 : 1);
+  }
+}
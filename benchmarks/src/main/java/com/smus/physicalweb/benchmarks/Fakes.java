@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.Clock;
+import com.smus.physicalweb.DeviceRegistry;
+import com.smus.physicalweb.ResolveScanCodec;
+import com.smus.physicalweb.RssiHistory;
+import com.smus.physicalweb.SyntheticScanSource;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Stand-ins for the Android pieces of the pipeline, and generators for
+ * realistic-looking beacon traffic.
+ */
+public class Fakes {
+
+  /**
+   * What NearbyDevice keeps per device, without the BluetoothDevice.
+   */
+  public static class Device implements ResolveScanCodec.Beacon, DeviceRegistry.Device {
+    public final String address;
+    public final String url;
+    public final RssiHistory rssiHistory;
+
+    public Device(String address, String url, int rssi) {
+      this.address = address;
+      this.url = url;
+      rssiHistory = new RssiHistory(3, RssiHistory.Filter.EWMA);
+      rssiHistory.add(rssi);
+    }
+
+    @Override
+    public String getUrl() { return url; }
+
+    @Override
+    public String getAddress() { return address; }
+
+    @Override
+    public int getLastRSSI() { return rssiHistory.getLast(); }
+  }
+
+  public static class VirtualClock implements Clock {
+    public long time = 0;
+
+    @Override
+    public long currentTimeMillis() { return time; }
+  }
+
+  public static String address(int index) {
+    return String.format("00:11:22:%02X:%02X:%02X",
+        (index >> 16) & 0xff, (index >> 8) & 0xff, index & 0xff);
+  }
+
+  public static String url(int index) {
+    return "http://example.com/b" + index;
+  }
+
+  /**
+   * A URI beacon advertisement for http://example.com/b<index>, as it would
+   * come out of onLeScan.
+   */
+  public static byte[] scanRecord(int index) {
+    return SyntheticScanSource.createScanRecord(url(index));
+  }
+
+  /**
+   * The advertisement of a device that only gives its name, as a phone or a
+   * name-only beacon does.
+   */
+  public static byte[] namedScanRecord(String name) {
+    byte[] encodedName = name.getBytes(Charset.forName("UTF-8"));
+    byte[] record = new byte[62];
+    int offset = 0;
+    // Flags.
+    record[offset++] = 2;
+    record[offset++] = 0x01;
+    record[offset++] = 0x06;
+    // Complete local name.
+    record[offset++] = (byte) (1 + encodedName.length);
+    record[offset++] = 0x09;
+    System.arraycopy(encodedName, 0, record, offset, encodedName.length);
+    return record;
+  }
+
+  /**
+   * RSSI around a per-device mean with gaussian noise, like a real radio.
+   */
+  public static int noisyRssi(Random random, int mean) {
+    return (int) Math.round(mean + random.nextGaussian() * 4);
+  }
+
+  /**
+   * A resolve-scan response body with an entry for each of the first count
+   * beacons.
+   */
+  public static String resolveResponse(int count) {
+    StringBuilder json = new StringBuilder("{\"metadata\":[");
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("{\"id\":\"").append(url(i))
+          .append("\",\"url\":\"http://example.com/site/").append(i)
+          .append("\",\"title\":\"Beacon number ").append(i)
+          .append("\",\"description\":\"A description of the page behind beacon ").append(i)
+          .append("\",\"icon\":\"/favicon.ico\"}");
+    }
+    return json.append("]}").toString();
+  }
+}
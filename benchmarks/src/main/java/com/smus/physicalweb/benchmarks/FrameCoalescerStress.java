@@ -0,0 +1,283 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.FrameCoalescer;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a FrameCoalescer from a fake frame clock, the way
+ * NearbyDeviceAdapter's Choreographer does, and checks that:
+ *
+ * - there is never more than one update per frame;
+ * - urgent changes are shown on the next frame, and routine ones within
+ *   the routine interval and a frame;
+ * - no change is left unshown;
+ * - the number of updates doesn't grow with the advertisement rate.
+ *
+ * The first part runs in virtual time, so it is exact. The second has
+ * several threads requesting updates while another draws frames, as the
+ * EventLoop and the UI thread do. Run it with:
+ *
+ *   gradle :benchmarks:frameCoalescerStress
+ *
+ * Exits with status 1 if any check fails.
+ */
+public class FrameCoalescerStress {
+  private static final long FRAME_NANOS = 16666667;
+  private static final long ROUTINE_INTERVAL = 300;
+  // Simulated time for each advertisement rate.
+  private static final long DURATION = 60000;
+  // Fraction of changes that are urgent: devices coming and going, and
+  // cards filling in.
+  private static final double URGENT_FRACTION = 0.01;
+
+  private static boolean mIsPassing = true;
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      System.out.println("FAIL: " + message);
+      mIsPassing = false;
+    }
+  }
+
+  /**
+   * Frames every FRAME_NANOS of virtual time. Like Choreographer, a frame
+   * callback runs at the first frame at or after its due time, and one
+   * scheduled during a frame waits for the next.
+   */
+  private static class FakeFrameClock implements FrameCoalescer.FrameClock {
+    long now = 0;
+    long frameIndex = 0;
+    // When doFrame() is due, or -1.
+    long dueTime = -1;
+    FrameCoalescer coalescer;
+
+    @Override
+    public synchronized void scheduleFrame(FrameCoalescer coalescer, long delay) {
+      this.coalescer = coalescer;
+      dueTime = now + delay * 1000000;
+    }
+
+    // Move time forward to just before the next frame.
+    synchronized void advanceTo(long time) {
+      now = time;
+    }
+
+    // Draw the next frame; returns whether doFrame() ran.
+    boolean frame() {
+      FrameCoalescer target;
+      long frameTime;
+      synchronized (this) {
+        frameIndex++;
+        frameTime = frameIndex * FRAME_NANOS;
+        now = frameTime;
+        if (dueTime < 0 || dueTime > frameTime) {
+          return false;
+        }
+        dueTime = -1;
+        target = coalescer;
+      }
+      target.doFrame(frameTime);
+      return true;
+    }
+
+    synchronized long nextFrameTime() {
+      return (frameIndex + 1) * FRAME_NANOS;
+    }
+  }
+
+  // Counts updates, and when the oldest change not yet shown was made.
+  private static class Ui implements FrameCoalescer.OnUpdateListener {
+    final FakeFrameClock clock;
+    long updates = 0;
+    long updatesThisFrame = 0;
+    long maxUpdatesPerFrame = 0;
+    long oldestUrgent = -1;
+    long oldestRoutine = -1;
+    long maxUrgentDelay = 0;
+    long maxRoutineDelay = 0;
+
+    Ui(FakeFrameClock clock) {
+      this.clock = clock;
+    }
+
+    void changed(boolean isUrgent, long time) {
+      if (isUrgent && oldestUrgent < 0) {
+        oldestUrgent = time;
+      }
+      if (oldestRoutine < 0) {
+        oldestRoutine = time;
+      }
+    }
+
+    @Override
+    public void onUpdate() {
+      updates++;
+      updatesThisFrame++;
+      maxUpdatesPerFrame = Math.max(maxUpdatesPerFrame, updatesThisFrame);
+      if (oldestUrgent >= 0) {
+        maxUrgentDelay = Math.max(maxUrgentDelay, clock.now - oldestUrgent);
+      }
+      if (oldestRoutine >= 0) {
+        maxRoutineDelay = Math.max(maxRoutineDelay, clock.now - oldestRoutine);
+      }
+      oldestUrgent = -1;
+      oldestRoutine = -1;
+    }
+  }
+
+  // Changes arriving at the given rate (per second) for DURATION ms of
+  // virtual time.
+  private static void simulate(double rate) {
+    FakeFrameClock clock = new FakeFrameClock();
+    Ui ui = new Ui(clock);
+    FrameCoalescer coalescer = new FrameCoalescer(clock, ROUTINE_INTERVAL, ui);
+    Random random = new Random(42);
+    long end = DURATION * 1000000;
+    long next = (long) (random.nextDouble() * 2e9 / rate);
+    long changes = 0;
+    long urgentChanges = 0;
+    while (clock.nextFrameTime() <= end) {
+      while (next < clock.nextFrameTime()) {
+        clock.advanceTo(next);
+        boolean isUrgent = random.nextDouble() < URGENT_FRACTION;
+        ui.changed(isUrgent, next);
+        coalescer.requestUpdate(isUrgent);
+        changes++;
+        if (isUrgent) {
+          urgentChanges++;
+        }
+        // Exponential gaps, as from many independent beacons.
+        next += (long) (-Math.log(1 - random.nextDouble()) * 1e9 / rate);
+      }
+      ui.updatesThisFrame = 0;
+      clock.frame();
+    }
+    // Let anything still waiting be shown.
+    for (int i = 0; i < 1 + ROUTINE_INTERVAL * 1000000 / FRAME_NANOS; i++) {
+      ui.updatesThisFrame = 0;
+      clock.frame();
+    }
+
+    double seconds = DURATION / 1000.0;
+    System.out.println(String.format(
+        "  %8.0f changes/s  %7.1f updates/s  urgent delay max %5.1fms"
+            + "  routine delay max %5.1fms",
+        changes / seconds, ui.updates / seconds, ui.maxUrgentDelay / 1e6,
+        ui.maxRoutineDelay / 1e6));
+    check(ui.maxUpdatesPerFrame <= 1, "more than one update in a frame at " + rate + "/s");
+    check(ui.maxUrgentDelay <= FRAME_NANOS, "urgent change waited "
+        + ui.maxUrgentDelay / 1e6 + "ms at " + rate + "/s");
+    check(ui.maxRoutineDelay <= ROUTINE_INTERVAL * 1000000 + FRAME_NANOS,
+        "routine change waited " + ui.maxRoutineDelay / 1e6 + "ms at " + rate + "/s");
+    check(ui.oldestRoutine < 0, "a change was never shown at " + rate + "/s");
+    // Every urgent change can cost an update, and routine ones at most one
+    // per interval besides.
+    check(ui.updates <= urgentChanges + DURATION / ROUTINE_INTERVAL + 2,
+        "too many updates at " + rate + "/s");
+  }
+
+  // A request made while an update runs gets the next frame of its own.
+  private static void checkRequestDuringUpdate() {
+    final FakeFrameClock clock = new FakeFrameClock();
+    final FrameCoalescer[] coalescer = new FrameCoalescer[1];
+    final int[] updates = new int[1];
+    coalescer[0] = new FrameCoalescer(clock, ROUTINE_INTERVAL,
+        new FrameCoalescer.OnUpdateListener() {
+          @Override
+          public void onUpdate() {
+            if (updates[0]++ == 0) {
+              coalescer[0].requestUpdate(true);
+            }
+          }
+        });
+    coalescer[0].requestUpdate(true);
+    clock.frame();
+    check(updates[0] == 1, "request during an update ran in the same frame");
+    clock.frame();
+    check(updates[0] == 2, "request during an update was lost");
+  }
+
+  // Producers on several threads, frames on another.
+  private static void stress(int producerCount) throws InterruptedException {
+    final FakeFrameClock clock = new FakeFrameClock();
+    final AtomicLong requested = new AtomicLong();
+    final AtomicLong shown = new AtomicLong();
+    final AtomicLong updates = new AtomicLong();
+    final FrameCoalescer coalescer = new FrameCoalescer(clock, 0,
+        new FrameCoalescer.OnUpdateListener() {
+          @Override
+          public void onUpdate() {
+            updates.incrementAndGet();
+            // Like the adapter draining its pending snapshots.
+            shown.set(requested.get());
+          }
+        });
+    final AtomicBoolean isRunning = new AtomicBoolean(true);
+    Thread[] producers = new Thread[producerCount];
+    for (int i = 0; i < producerCount; i++) {
+      final Random random = new Random(i);
+      producers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          while (isRunning.get()) {
+            requested.incrementAndGet();
+            coalescer.requestUpdate(random.nextDouble() < URGENT_FRACTION);
+          }
+        }
+      });
+      producers[i].start();
+    }
+    long frames = 0;
+    long deadline = System.currentTimeMillis() + 2000;
+    while (System.currentTimeMillis() < deadline) {
+      clock.frame();
+      frames++;
+    }
+    isRunning.set(false);
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    // Routine requests are due straight away here, so one frame shows all.
+    clock.frame();
+    frames++;
+    System.out.println(String.format("  %d threads: %d changes, %d frames, %d updates",
+        producerCount, requested.get(), frames, updates.get()));
+    check(updates.get() <= frames, "more updates than frames with " + producerCount
+        + " threads");
+    check(shown.get() == requested.get(), "changes left unshown with " + producerCount
+        + " threads");
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    System.out.println("Virtual time, " + ROUTINE_INTERVAL + "ms routine interval:");
+    for (double rate : new double[] {10, 100, 1000, 10000, 100000}) {
+      simulate(rate);
+    }
+    checkRequestDuringUpdate();
+    System.out.println("Threads:");
+    for (int producerCount : new int[] {1, 4}) {
+      stress(producerCount);
+    }
+    System.out.println(mIsPassing ? "PASS" : "FAIL");
+    System.exit(mIsPassing ? 0 : 1);
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.IconCache;
+
+import java.util.Random;
+
+/**
+ * Heap used by the icons of 1,000 simulated devices, decoded at list size
+ * into an IconCache, against what pinning a full size decode per device
+ * would take. Checks that:
+ *
+ * - the cache never holds more bytes than its budget;
+ * - every icon in it was decoded at most at list size;
+ * - the heap the icons take up, measured after a GC, stays near the budget.
+ *
+ * Favicons come in the sizes sites ship, and some are shared between
+ * devices. Each pass binds every device's row in a random order, the way
+ * scrolling through the list does, decoding icons that aren't cached as
+ * MetadataResolver's ImageRequest would. Run it with:
+ *
+ *   gradle :benchmarks:iconCache [-PharnessArgs="--devices 1000 --budget 4194304"]
+ *
+ * Exits with status 1 if any check fails.
+ */
+public class IconCacheHarness {
+  // A 32dp icon at xxhdpi, which is what R.dimen.icon_size comes to there.
+  private static final int ICON_SIZE = 96;
+  private static final int BYTES_PER_PIXEL = 4;
+  private static final int PASSES = 5;
+  // Favicon sizes (px) and how often sites ship each, in percent.
+  private static final int[] SOURCE_SIZES = {16, 32, 48, 64, 96, 128, 152, 180, 192, 256, 512};
+  private static final int[] SOURCE_WEIGHTS = {15, 25, 10, 10, 5, 5, 5, 10, 10, 3, 2};
+  // Devices per distinct icon URL, on average.
+  private static final double SHARING = 1.5;
+
+  private static boolean mIsPassing = true;
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      System.out.println("FAIL: " + message);
+      mIsPassing = false;
+    }
+  }
+
+  // A decoded icon: its pixels, as a Bitmap would hold them.
+  private static class Icon {
+    final int width;
+    final int height;
+    final byte[] pixels;
+
+    Icon(int width, int height) {
+      this.width = width;
+      this.height = height;
+      pixels = new byte[width * height * BYTES_PER_PIXEL];
+    }
+  }
+
+  private static final IconCache.Sizer<Icon> ICON_SIZER = new IconCache.Sizer<Icon>() {
+    @Override
+    public int getByteCount(Icon icon) {
+      return icon.pixels.length;
+    }
+  };
+
+  // What ImageRequest decodes to with a maximum size: the source scaled down
+  // to fit, keeping its aspect ratio, or as it is if it already fits.
+  private static Icon decode(int width, int height, int maxSize) {
+    if (width <= maxSize && height <= maxSize) {
+      return new Icon(width, height);
+    }
+    double scale = Math.min((double) maxSize / width, (double) maxSize / height);
+    return new Icon(Math.max(1, (int) (width * scale)), Math.max(1, (int) (height * scale)));
+  }
+
+  private static int pickSourceSize(Random random) {
+    int pick = random.nextInt(100);
+    for (int i = 0; i < SOURCE_SIZES.length; i++) {
+      pick -= SOURCE_WEIGHTS[i];
+      if (pick < 0) {
+        return SOURCE_SIZES[i];
+      }
+    }
+    return SOURCE_SIZES[SOURCE_SIZES.length - 1];
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // Take the lowest of a few, as one GC may leave garbage behind.
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  public static void main(String[] args) {
+    int deviceCount = 1000;
+    // A sixteenth of a 64MB heap, as IconCache.create() takes on such a
+    // device.
+    int budget = 4 * 1024 * 1024;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--devices") && i + 1 < args.length) {
+        deviceCount = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--budget") && i + 1 < args.length) {
+        budget = Integer.parseInt(args[++i]);
+      }
+    }
+
+    // Devices only keep their icon's URL; the source sizes are the web's.
+    Random random = new Random(42);
+    int iconCount = Math.max(1, (int) (deviceCount / SHARING));
+    int[] sourceSizes = new int[iconCount];
+    for (int i = 0; i < iconCount; i++) {
+      sourceSizes[i] = pickSourceSize(random);
+    }
+    String[] iconUrls = new String[deviceCount];
+    int[] iconIndexes = new int[deviceCount];
+    long fullSizeBytes = 0;
+    for (int i = 0; i < deviceCount; i++) {
+      iconIndexes[i] = i < iconCount ? i : random.nextInt(iconCount);
+      iconUrls[i] = "http://example.com/s" + iconIndexes[i] + "/favicon.ico";
+      int size = sourceSizes[iconIndexes[i]];
+      fullSizeBytes += (long) size * size * BYTES_PER_PIXEL;
+    }
+    long listSizeBytes = 0;
+    for (int size : sourceSizes) {
+      int decoded = Math.min(size, ICON_SIZE);
+      listSizeBytes += (long) decoded * decoded * BYTES_PER_PIXEL;
+    }
+
+    long heapBefore = usedHeap();
+    IconCache<Icon> cache = new IconCache<Icon>(budget, ICON_SIZER);
+    int[] order = new int[deviceCount];
+    for (int i = 0; i < deviceCount; i++) {
+      order[i] = i;
+    }
+    long binds = 0;
+    long decodes = 0;
+    int maxCacheSize = 0;
+    for (int pass = 0; pass < PASSES; pass++) {
+      for (int i = deviceCount - 1; i > 0; i--) {
+        int j = random.nextInt(i + 1);
+        int swap = order[i];
+        order[i] = order[j];
+        order[j] = swap;
+      }
+      for (int device : order) {
+        binds++;
+        if (cache.get(iconUrls[device]) != null) {
+          continue;
+        }
+        int size = sourceSizes[iconIndexes[device]];
+        Icon icon = decode(size, size, ICON_SIZE);
+        decodes++;
+        check(icon.width <= ICON_SIZE && icon.height <= ICON_SIZE,
+            "icon decoded at " + icon.width + "x" + icon.height);
+        cache.put(iconUrls[device], icon);
+        maxCacheSize = Math.max(maxCacheSize, cache.size());
+        check(cache.size() <= budget, "cache holds " + cache.size() + " bytes");
+      }
+    }
+    long heapUsed = usedHeap() - heapBefore;
+
+    System.out.println(deviceCount + " devices, " + iconCount + " icons, "
+        + ICON_SIZE + "px list icons, budget " + budget / 1024 + "KB");
+    System.out.println(String.format("  full size, pinned per device  %8dKB", fullSizeBytes / 1024));
+    System.out.println(String.format("  list size, every icon kept    %8dKB", listSizeBytes / 1024));
+    System.out.println(String.format("  list size, in the IconCache   %8dKB at most, %d icons now",
+        maxCacheSize / 1024, cache.snapshot().size()));
+    System.out.println(String.format("  heap taken, measured          %8dKB", heapUsed / 1024));
+    System.out.println(String.format("  %d binds, %d decodes, %d evictions", binds, decodes,
+        cache.evictionCount()));
+    check(maxCacheSize <= budget, "cache went over its budget");
+    // The pixels, plus the cache's entries and the icons' headers.
+    check(heapUsed <= budget + budget / 4 + 256 * 1024,
+        "icons take " + heapUsed / 1024 + "KB of heap");
+    System.out.println(mIsPassing ? "PASS" : "FAIL");
+    System.exit(mIsPassing ? 0 : 1);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.DeviceClassifier;
+import com.smus.physicalweb.DeviceRegistry;
+import com.smus.physicalweb.ExpiryWheel;
+import com.smus.physicalweb.ScanRecordParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per scan callback cost, for known and new devices, mirroring what
+ * NearbyDeviceManager does with each scan result. Devices advertise the
+ * sample records in ScanCorpus, taking turns.
+ *
+ * Known devices and parsing should allocate nothing; AllocationCheck runs
+ * these under the GC profiler to make sure.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestionBenchmark {
+  @Param({"100", "1000", "10000"})
+  public int deviceCount;
+
+  private String[] mAddresses;
+  private byte[][] mScanRecords;
+  private int[] mRssi;
+  private int mNext = 0;
+
+  private DeviceRegistry<Fakes.Device> mRegistry;
+  private DeviceClassifier mClassifier;
+  private ExpiryWheel<Fakes.Device> mExpiryWheel;
+  private Fakes.VirtualClock mClock;
+  private ScanRecordParser mParser;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    mClock = new Fakes.VirtualClock();
+    mRegistry = new DeviceRegistry<Fakes.Device>();
+    mClassifier = new DeviceClassifier(deviceCount);
+    mExpiryWheel = new ExpiryWheel<Fakes.Device>(mClock, 1000, 16);
+    mParser = new ScanRecordParser();
+
+    ArrayList<byte[]> corpus = ScanCorpus.load();
+    mAddresses = new String[deviceCount];
+    mScanRecords = new byte[deviceCount][];
+    mRssi = new int[deviceCount];
+    for (int i = 0; i < deviceCount; i++) {
+      mAddresses[i] = Fakes.address(i);
+      // Each callback gets its own array, as from onLeScan.
+      mScanRecords[i] = corpus.get(i % corpus.size()).clone();
+      mRssi[i] = Fakes.noisyRssi(random, -70);
+
+      // Seen before: classified, and in the registry if it is a beacon.
+      String url = mParser.parse(mScanRecords[i]) ? mParser.decodeUrl() : null;
+      String name = mParser.decodeName();
+      if (url == null && name != null) {
+        url = DeviceClassifier.getNameUrl(name);
+      }
+      mClassifier.put(mAddresses[i], mScanRecords[i], name, url);
+      if (url != null) {
+        Fakes.Device device = new Fakes.Device(mAddresses[i], url, mRssi[i]);
+        mRegistry.add(device);
+        mExpiryWheel.schedule(device, 10000);
+      }
+    }
+  }
+
+  private int next() {
+    int index = mNext;
+    mNext = (mNext + 1) % deviceCount;
+    return index;
+  }
+
+  // A repeat advertisement: the cached classification, then for beacons a
+  // registry lookup, the RSSI and a pushed back expiry.
+  @Benchmark
+  public Fakes.Device knownDevice() {
+    int index = next();
+    mClock.time++;
+    DeviceClassifier.Classification classification =
+        mClassifier.get(mAddresses[index], mScanRecords[index]);
+    if (!classification.isBeacon()) {
+      return null;
+    }
+    Fakes.Device device = mRegistry.getByAddress(mAddresses[index]);
+    if (!classification.getUrl().equals(device.url)) {
+      return null;
+    }
+    device.rssiHistory.add(mRssi[index]);
+    mExpiryWheel.schedule(device, mClock.time + 10000);
+    return device;
+  }
+
+  // Walking the advertisement, which known devices never pay for.
+  @Benchmark
+  public boolean parseScanRecord() {
+    return mParser.parse(mScanRecords[next()]);
+  }
+
+  // A first sighting: parse and decode the URL.
+  @Benchmark
+  public String newDevice() {
+    mParser.parse(mScanRecords[next()]);
+    return mParser.decodeUrl();
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import android.net.Uri;
+import com.smus.physicalweb.DeviceMetadata;
+import com.smus.physicalweb.ResolveScanCodec;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * The org.json tree version of the resolve-scan codec that ResolveScanCodec
+ * replaced, kept as a baseline.
+ */
+public class JsonTreeCodec {
+
+  public static JSONObject createRequestObject(List<? extends ResolveScanCodec.Beacon> devices) {
+    JSONObject jsonObj = new JSONObject();
+
+    try {
+      JSONArray urlArray = new JSONArray();
+
+      for(int dIdx = 0; dIdx < devices.size(); dIdx++) {
+        ResolveScanCodec.Beacon device = devices.get(dIdx);
+
+        JSONObject urlObject = new JSONObject();
+
+        urlObject.put("url", device.getUrl());
+        urlObject.put("rssi", device.getLastRSSI());
+        urlArray.put(urlObject);
+      }
+
+
+      JSONObject location = new JSONObject();
+
+      location.put("lat", 49.129837);
+      location.put("lon", 120.38142);
+
+      jsonObj.put("location",  location);
+      jsonObj.put("objects", urlArray);
+
+    } catch (JSONException ex) {
+
+    }
+    return jsonObj;
+  }
+
+  public static void parseResponse(JSONObject jsonResponse,
+                                   ResolveScanCodec.OnMetadataParsedListener listener)
+      throws JSONException {
+    JSONArray foundMetaData = jsonResponse.getJSONArray("metadata");
+
+    int deviceCount = foundMetaData.length();
+    for (int i = 0; i < deviceCount; i++) {
+
+      JSONObject deviceData = foundMetaData.getJSONObject(i);
+
+      String title = "Unknown name";
+      String url = "Unknown url";
+      String description = "Unknown description";
+      String iconUrl = "/favicon.ico";
+      String id = deviceData.getString("id");
+
+      if (deviceData.has("title")) {
+        title = deviceData.getString("title");
+      }
+      if (deviceData.has("url")) {
+        url = deviceData.getString("url");
+      }
+      if (deviceData.has("description")) {
+        description = deviceData.getString("description");
+      }
+      if (deviceData.has("icon")) {
+        iconUrl = deviceData.getString("icon");
+      }
+
+      DeviceMetadata deviceMetadata = new DeviceMetadata();
+      deviceMetadata.title = title;
+      deviceMetadata.description = description;
+      deviceMetadata.siteUrl = url;
+      deviceMetadata.iconUrl = resolveIconUrl(url, iconUrl);
+      listener.onMetadataParsed(id, deviceMetadata);
+    }
+  }
+
+  private static String resolveIconUrl(String url, String iconUrl) {
+    if (!iconUrl.startsWith("http")) {
+      Uri fullUri = Uri.parse(url);
+      Uri.Builder builder = fullUri.buildUpon();
+      builder.path(iconUrl);
+      iconUrl = builder.toString();
+    }
+    return iconUrl;
+  }
+}
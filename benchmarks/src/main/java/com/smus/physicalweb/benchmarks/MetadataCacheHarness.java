@@ -0,0 +1,313 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.DeviceMetadata;
+import com.smus.physicalweb.MetadataCache;
+import com.smus.physicalweb.Metrics;
+import com.smus.physicalweb.ResolveScanCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Visits to a crowd of beacons, resolved the way MetadataResolver does:
+ * MetadataCache first, and only the misses sent to a ReferenceResolverServer.
+ * Checks MetadataCache's hit, negative hit and miss counters and the
+ * server's request count against what each visit should cost:
+ *
+ * - the first visit misses everything;
+ * - coming back hits memory, and after a restart the disk;
+ * - URLs with no metadata are asked about again once their negative entry
+ *   expires, and everything once the positive ones do;
+ * - expired metadata is there to fall back on, until STALE_TTL past that;
+ * - the disk store stays within its limit, keeping the entries used last;
+ * - by default, what goes to disk is dated by the wall clock, so it means
+ *   the same after a reboot.
+ *
+ * Time is virtual, so TTLs pass straight away. Run it with:
+ *
+ *   gradle :benchmarks:metadataCache
+ *
+ * Exits with status 1 if any check fails.
+ */
+public class MetadataCacheHarness {
+  private static final int BEACON_COUNT = 200;
+  // Every tenth URL has no metadata on the server.
+  private static final int MISSING_EVERY = 10;
+  private static final int CALL_SIZE = 20;
+  private static final int DISK_LIMIT = 100;
+
+  // The TTLs MetadataCache uses (ms).
+  private static final long NEGATIVE_TTL = 10 * 60 * 1000;
+  private static final long POSITIVE_TTL = 24 * 60 * 60 * 1000;
+  private static final long STALE_TTL = 30L * 24 * 60 * 60 * 1000;
+
+  private static boolean mIsPassing = true;
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      System.out.println("FAIL: " + message);
+      mIsPassing = false;
+    }
+  }
+
+  private final ReferenceResolverServer mServer;
+  private final Fakes.VirtualClock mClock = new Fakes.VirtualClock();
+
+  MetadataCacheHarness(ReferenceResolverServer server) {
+    mServer = server;
+    // File times are taken from this clock, so keep them believable.
+    mClock.time = System.currentTimeMillis();
+  }
+
+  private static ArrayList<String> createUrls(String prefix, int count) {
+    ArrayList<String> urls = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      urls.add("http://example.com/" + prefix + i + (i % MISSING_EVERY == 0 ? "/missing" : ""));
+    }
+    return urls;
+  }
+
+  private String post(byte[] body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(mServer.getUrl()).openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+    OutputStream out = connection.getOutputStream();
+    out.write(body);
+    out.close();
+    return new String(ReferenceResolverServer.readFully(connection.getInputStream()), "UTF-8");
+  }
+
+  // What getBatchMetadata does: serve what the cache has, resolve the rest
+  // and cache the answers, negative ones included.
+  private void resolve(final MetadataCache cache, List<String> urls) throws IOException {
+    ArrayList<Fakes.Device> misses = new ArrayList<Fakes.Device>();
+    for (String url : urls) {
+      if (cache.get(url) == null) {
+        misses.add(new Fakes.Device(Fakes.address(misses.size()), url, -70));
+      }
+    }
+    for (int start = 0; start < misses.size(); start += CALL_SIZE) {
+      List<Fakes.Device> call = misses.subList(start, Math.min(misses.size(), start + CALL_SIZE));
+      final HashSet<String> answered = new HashSet<String>();
+      ResolveScanCodec.readResponse(post(ResolveScanCodec.createRequestBody(call)),
+          new ResolveScanCodec.OnMetadataParsedListener() {
+            @Override
+            public void onMetadataParsed(String id, DeviceMetadata metadata) {
+              cache.put(id, metadata);
+              answered.add(id);
+            }
+          });
+      for (Fakes.Device device : call) {
+        if (!answered.contains(device.url)) {
+          cache.putNegative(device.url);
+        }
+      }
+    }
+  }
+
+  // One visit, checked against the counts it should come to.
+  private void visit(String name, MetadataCache cache, List<String> urls, long hits,
+                     long negativeHits, long misses, long requests) throws IOException {
+    long hitsBefore = Metrics.METADATA_CACHE_HITS.get();
+    long negativeHitsBefore = Metrics.METADATA_CACHE_NEGATIVE_HITS.get();
+    long missesBefore = Metrics.METADATA_CACHE_MISSES.get();
+    long requestsBefore = mServer.getRequestCount();
+    resolve(cache, urls);
+    long actualHits = Metrics.METADATA_CACHE_HITS.get() - hitsBefore;
+    long actualNegativeHits = Metrics.METADATA_CACHE_NEGATIVE_HITS.get() - negativeHitsBefore;
+    long actualMisses = Metrics.METADATA_CACHE_MISSES.get() - missesBefore;
+    long actualRequests = mServer.getRequestCount() - requestsBefore;
+    System.out.println(String.format(
+        "  %-34s hits %4d  negative hits %3d  misses %4d  requests %3d",
+        name, actualHits, actualNegativeHits, actualMisses, actualRequests));
+    check(actualHits == hits, name + ": " + actualHits + " hits, expected " + hits);
+    check(actualNegativeHits == negativeHits, name + ": " + actualNegativeHits
+        + " negative hits, expected " + negativeHits);
+    check(actualMisses == misses, name + ": " + actualMisses + " misses, expected " + misses);
+    check(actualRequests == requests, name + ": " + actualRequests + " requests, expected "
+        + requests);
+  }
+
+  void runVisits(File directory) throws IOException {
+    ArrayList<String> urls = createUrls("b", BEACON_COUNT);
+    int missing = BEACON_COUNT / MISSING_EVERY;
+    int found = BEACON_COUNT - missing;
+    int calls = (BEACON_COUNT + CALL_SIZE - 1) / CALL_SIZE;
+    int missingCalls = (missing + CALL_SIZE - 1) / CALL_SIZE;
+
+    MetadataCache cache = new MetadataCache(directory, mClock, Integer.MAX_VALUE);
+    System.out.println(BEACON_COUNT + " beacons, " + missing + " with no metadata:");
+    visit("first visit", cache, urls, 0, 0, BEACON_COUNT, calls);
+    mClock.time += 60 * 1000;
+    visit("back a minute later", cache, urls, found, missing, 0, 0);
+
+    cache = new MetadataCache(directory, mClock, Integer.MAX_VALUE);
+    visit("after a restart", cache, urls, found, missing, 0, 0);
+
+    mClock.time += NEGATIVE_TTL;
+    visit("negative entries expired", cache, urls, found, 0, missing, missingCalls);
+
+    mClock.time += POSITIVE_TTL;
+    int staleCount = 0;
+    for (String url : urls) {
+      if (cache.getStale(url) != null) {
+        staleCount++;
+      }
+    }
+    check(staleCount == found, staleCount + " stale entries to fall back on, expected " + found);
+    visit("everything expired", cache, urls, 0, 0, BEACON_COUNT, calls);
+
+    mClock.time += POSITIVE_TTL + STALE_TTL + 1;
+    cache = new MetadataCache(directory, mClock, Integer.MAX_VALUE);
+    staleCount = 0;
+    for (String url : urls) {
+      if (cache.getStale(url) != null) {
+        staleCount++;
+      }
+    }
+    check(staleCount == 0, staleCount + " entries kept past STALE_TTL");
+    check(cache.getDiskEntryCount() == 0,
+        cache.getDiskEntryCount() + " files left after every entry went stale");
+  }
+
+  void runDiskLimit(File directory) {
+    System.out.println("Disk store limited to " + DISK_LIMIT + " entries:");
+    ArrayList<String> urls = createUrls("d", 3 * DISK_LIMIT);
+    DeviceMetadata metadata = new DeviceMetadata();
+    metadata.title = "Title";
+    metadata.siteUrl = "http://example.com/";
+    metadata.description = "Description";
+    metadata.iconUrl = "http://example.com/favicon.ico";
+
+    MetadataCache cache = new MetadataCache(directory, mClock, DISK_LIMIT);
+    for (int i = 0; i < DISK_LIMIT; i++) {
+      mClock.time += 1000;
+      cache.put(urls.get(i), metadata);
+    }
+    // After a restart, the first few are used again, so their files are the
+    // most recently used; memory is empty.
+    int hotCount = 10;
+    cache = new MetadataCache(directory, mClock, DISK_LIMIT);
+    for (int i = 0; i < hotCount; i++) {
+      mClock.time += 1000;
+      check(cache.get(urls.get(i)) != null, "entry " + i + " missing before pruning");
+    }
+    // Enough new entries to prune once: the oldest unused ones go.
+    int newCount = DISK_LIMIT / 2;
+    int maxFiles = write(cache, directory, metadata, urls.subList(DISK_LIMIT,
+        DISK_LIMIT + newCount));
+    int left = directory.list().length;
+    int prunedCount = DISK_LIMIT + newCount - left;
+    System.out.println(String.format("  %d entries written, at most %d files, %d left",
+        DISK_LIMIT + newCount, maxFiles, left));
+    check(maxFiles <= DISK_LIMIT, maxFiles + " files on disk");
+    // Read back without the memory tier.
+    cache = new MetadataCache(directory, mClock, DISK_LIMIT);
+    for (int i = 0; i < DISK_LIMIT + newCount; i++) {
+      boolean isOld = i >= hotCount && i < hotCount + prunedCount;
+      boolean isPresent = cache.getStale(urls.get(i)) != null;
+      if (isOld) {
+        check(!isPresent, "entry " + i + " outlived entries used after it");
+      } else {
+        check(isPresent, "entry " + i + " was pruned before older ones");
+      }
+    }
+
+    // And over time.
+    maxFiles = Math.max(maxFiles, write(cache, directory, metadata,
+        urls.subList(DISK_LIMIT + newCount, urls.size())));
+    System.out.println(String.format("  %d entries written, at most %d files, %d left",
+        urls.size(), maxFiles, directory.list().length));
+    check(maxFiles <= DISK_LIMIT, maxFiles + " files on disk");
+    check(cache.getStale(urls.get(urls.size() - 1)) != null, "newest entry was pruned");
+  }
+
+  void runDefaultClock(File directory) {
+    long before = System.currentTimeMillis();
+    MetadataCache cache = new MetadataCache(directory);
+    cache.putNegative("http://example.com/now");
+    long after = System.currentTimeMillis();
+    File[] files = directory.listFiles();
+    check(files.length == 1, files.length + " files for one entry");
+    // File times may be rounded down to the second.
+    long modified = files[0].lastModified();
+    check(modified >= before - 1000 && modified <= after, "file dated " + modified
+        + ", written between " + before + " and " + after);
+  }
+
+  // Returns the most files there were on disk.
+  private int write(MetadataCache cache, File directory, DeviceMetadata metadata,
+                    List<String> urls) {
+    int maxFiles = 0;
+    for (String url : urls) {
+      mClock.time += 1000;
+      cache.put(url, metadata);
+      String[] files = directory.list();
+      maxFiles = Math.max(maxFiles, files.length);
+      check(files.length == cache.getDiskEntryCount(), "counted " + cache.getDiskEntryCount()
+          + " entries with " + files.length + " files");
+    }
+    return maxFiles;
+  }
+
+  private static File createTempDirectory() throws IOException {
+    File directory = File.createTempFile("metadata-cache", "");
+    if (!directory.delete() || !directory.mkdir()) {
+      throw new IOException("Could not create " + directory);
+    }
+    return directory;
+  }
+
+  private static void deleteDirectory(File directory) {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  public static void main(String[] args) throws IOException {
+    ReferenceResolverServer server = new ReferenceResolverServer(0);
+    server.start();
+    File visitDirectory = createTempDirectory();
+    File limitDirectory = createTempDirectory();
+    File clockDirectory = createTempDirectory();
+    try {
+      MetadataCacheHarness harness = new MetadataCacheHarness(server);
+      harness.runVisits(visitDirectory);
+      harness.runDiskLimit(limitDirectory);
+      harness.runDefaultClock(clockDirectory);
+    } finally {
+      server.stop();
+      deleteDirectory(visitDirectory);
+      deleteDirectory(limitDirectory);
+      deleteDirectory(clockDirectory);
+    }
+    System.out.println(mIsPassing ? "PASS" : "FAIL");
+    System.exit(mIsPassing ? 0 : 1);
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.Clock;
+import com.smus.physicalweb.PagePrefetcher;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Click-to-content time for beacon pages, cold and prefetched by
+ * PagePrefetcher, against a local stand-in for the web.
+ *
+ * Each beacon URL is a short link that redirects twice before reaching its
+ * page, the way shortened and tracking links do, and every request to the
+ * stand-in takes a round trip's worth of latency. A tap is timed from the
+ * browser sending its first request to it having the whole page. Run it
+ * with:
+ *
+ *   gradle :benchmarks:prefetch [-PharnessArgs="--beacons 30 --rtt 100"]
+ */
+public class PrefetchHarness {
+  private static final int PAGE_SIZE = 50 * 1024;
+  // Enough for about ten pages, going by what PagePrefetcher charges.
+  private static final int PREFETCH_BUDGET = 128 * 1024;
+  private static final long PREFETCH_BUDGET_PERIOD = 10 * 60 * 1000;
+
+  static {
+    // Otherwise small responses sit out the client's delayed ACK.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  private final HttpServer mServer;
+  private final String mBaseUrl;
+  private final long mRtt;
+  private final byte[] mPage;
+
+  PrefetchHarness(long rtt) throws IOException {
+    mRtt = rtt;
+    mPage = new byte[PAGE_SIZE];
+    Arrays.fill(mPage, (byte) 'x');
+    mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    mServer.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+    mServer.setExecutor(Executors.newCachedThreadPool());
+    mServer.start();
+    mBaseUrl = "http://127.0.0.1:" + mServer.getAddress().getPort();
+  }
+
+  // /b/N is a beacon's short link, which leads to /r/N and then to the
+  // page, /p/N.
+  private void serve(HttpExchange exchange) throws IOException {
+    try {
+      Thread.sleep(mRtt);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    String path = exchange.getRequestURI().getPath();
+    String id = path.substring(path.lastIndexOf('/') + 1);
+    if (path.startsWith("/b/")) {
+      redirect(exchange, 302, "/r/" + id);
+    } else if (path.startsWith("/r/")) {
+      redirect(exchange, 301, "/p/" + id);
+    } else {
+      exchange.getResponseHeaders().set("Content-Type", "text/html");
+      exchange.sendResponseHeaders(200, mPage.length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+        out.write(mPage);
+      } catch (IOException e) {
+        // A prefetch hung up after the headers.
+      }
+    }
+    exchange.close();
+  }
+
+  private static void redirect(HttpExchange exchange, int status, String location)
+      throws IOException {
+    exchange.getResponseHeaders().set("Location", location);
+    exchange.sendResponseHeaders(status, -1);
+  }
+
+  void stop() {
+    mServer.stop(0);
+    ((ExecutorService) mServer.getExecutor()).shutdownNow();
+  }
+
+  String getBeaconUrl(int i) {
+    return mBaseUrl + "/b/" + i;
+  }
+
+  // What the browser does with a tap: follow the redirects and load the
+  // page. Returns the time (ms) that took.
+  private long tap(String url) throws IOException {
+    long start = System.nanoTime();
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    InputStream in = connection.getInputStream();
+    ReferenceResolverServer.readFully(in);
+    in.close();
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  private void report(String name, long[] times) {
+    Arrays.sort(times);
+    System.out.println(String.format("  %-28s p50 %5dms  p95 %5dms", name,
+        times[times.length / 2], times[(int) Math.ceil(0.95 * times.length) - 1]));
+  }
+
+  void runCold(int beaconCount) throws IOException {
+    long[] times = new long[beaconCount];
+    for (int i = 0; i < beaconCount; i++) {
+      times[i] = tap(getBeaconUrl(i));
+    }
+    report("cold", times);
+  }
+
+  // Prefetch every beacon, as if they had all stayed close, then tap them.
+  // Past 32 beacons PagePrefetcher forgets the oldest.
+  void runPrefetched(String name, int beaconCount, final boolean isMetered, long budgetBytes)
+      throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    PagePrefetcher prefetcher = new PagePrefetcher(Clock.SYSTEM, executor,
+        new PagePrefetcher.Network() {
+          @Override
+          public boolean isMetered() {
+            return isMetered;
+          }
+        }, budgetBytes, PREFETCH_BUDGET_PERIOD);
+    for (int i = 0; i < beaconCount; i++) {
+      prefetcher.prefetch(getBeaconUrl(i));
+    }
+    executor.shutdown();
+    executor.awaitTermination(5, TimeUnit.MINUTES);
+
+    long[] times = new long[beaconCount];
+    int prefetchedCount = 0;
+    for (int i = 0; i < beaconCount; i++) {
+      String pageUrl = prefetcher.getPageUrl(getBeaconUrl(i));
+      if (pageUrl != null) {
+        prefetchedCount++;
+      }
+      times[i] = tap(pageUrl != null ? pageUrl : getBeaconUrl(i));
+    }
+    report(name + " (" + prefetchedCount + "/" + beaconCount + ")", times);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int beaconCount = 30;
+    long rtt = 100;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--beacons") && i + 1 < args.length) {
+        beaconCount = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--rtt") && i + 1 < args.length) {
+        rtt = Long.parseLong(args[++i]);
+      }
+    }
+    PrefetchHarness harness = new PrefetchHarness(rtt);
+    try {
+      System.out.println(beaconCount + " beacons, two redirects each, " + rtt + "ms per request");
+      harness.runCold(beaconCount);
+      harness.runPrefetched("prefetched", beaconCount, false, Long.MAX_VALUE / 2);
+      harness.runPrefetched("prefetched, budget", beaconCount, false, PREFETCH_BUDGET);
+      harness.runPrefetched("metered", beaconCount, true, PREFETCH_BUDGET);
+    } finally {
+      harness.stop();
+    }
+  }
+}
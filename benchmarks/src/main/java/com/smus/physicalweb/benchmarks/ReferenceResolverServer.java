@@ -0,0 +1,540 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.BinaryResolveCodec;
+import com.smus.physicalweb.DeviceMetadata;
+import com.smus.physicalweb.SyntheticScanSource;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for the resolve-scan service, speaking both the JSON and
+ * the binary protocol the way the app expects a real server to.
+ *
+ * Every URL resolves to made up metadata, except URLs containing "missing",
+ * which get no entry. The server can pretend to be JSON only, can slow
+ * itself down to the speed of a congested link, and can answer resolves
+ * late or fail them outright, the way an overloaded backend does. Big
+ * requests can be made to take longer than small ones, and the server can
+ * be limited to working on a few at once.
+ *
+ * It also serves sync-region (see RegionSyncCodec). Every region holds the
+ * same URLs SyntheticScanSource's beacons advertise, so replayed beacons
+ * resolve offline once their region is synced. editRegion() and
+ * deleteFromRegion() make changes for delta syncs to pick up. Run it with:
+ *
+ *   gradle :benchmarks:resolverServer [-PserverArgs="--port 8080 --json-only --kbps 500
+ *       --region-size 1000 --latency 30,0.03,2000 --beacon-latency 2
+ *       --capacity 2 --failure-rate 0.1"]
+ *
+ * and point the app at it with MetadataResolver.setMetadataUrl() and
+ * setSyncUrl().
+ */
+public class ReferenceResolverServer {
+  public static final String PATH = "/resolve-scan";
+  public static final String SYNC_PATH = "/sync-region";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String JSON_CONTENT_TYPE = "application/json";
+  private static final String GZIP = "gzip";
+
+  static {
+    // Otherwise small responses sit out the client's delayed ACK, which adds
+    // a flat 40ms to every round trip.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  private final HttpServer mServer;
+  private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+  private volatile boolean mIsBinaryEnabled = true;
+  private volatile int mLinkKbps = 0;
+  // Injected resolve latency (ms): most requests take around mTypicalLatency,
+  // and mSlowFraction of them take mSlowLatency instead.
+  private volatile long mTypicalLatency = 0;
+  private volatile double mSlowFraction = 0;
+  private volatile long mSlowLatency = 0;
+  // Time (ms) spent on each beacon in a request, one after another, as a
+  // resolver that looks at every page would.
+  private volatile long mBeaconLatency = 0;
+  private volatile double mFailureRate = 0;
+  // Resolves worked on at once; the rest wait their turn. Null if there is
+  // no limit.
+  private volatile Semaphore mCapacity;
+
+  // Regions by name, created on first use. Guarded by mRegions.
+  private final HashMap<String, Region> mRegions = new HashMap<String, Region>();
+  private int mRegionSize = 1000;
+  private long mRegionVersion = 0;
+
+  private final AtomicLong mRequestCount = new AtomicLong();
+  private final AtomicLong mBytesIn = new AtomicLong();
+  private final AtomicLong mBytesOut = new AtomicLong();
+
+  public ReferenceResolverServer(int port) throws IOException {
+    mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+    mServer.createContext(PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        Semaphore capacity = mCapacity;
+        try {
+          if (capacity != null) {
+            capacity.acquireUninterruptibly();
+          }
+          handleResolve(exchange);
+        } finally {
+          if (capacity != null) {
+            capacity.release();
+          }
+          exchange.close();
+        }
+      }
+    });
+    mServer.createContext(SYNC_PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          handleSync(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    mServer.setExecutor(mExecutor);
+  }
+
+  public void start() {
+    mServer.start();
+  }
+
+  public void stop() {
+    mServer.stop(0);
+    mExecutor.shutdown();
+  }
+
+  public String getUrl() {
+    return "http://127.0.0.1:" + mServer.getAddress().getPort() + PATH;
+  }
+
+  public String getSyncUrl() {
+    return "http://127.0.0.1:" + mServer.getAddress().getPort() + SYNC_PATH;
+  }
+
+  // How many beacons regions created from now on hold.
+  public void setRegionSize(int size) {
+    synchronized (mRegions) {
+      mRegionSize = size;
+    }
+  }
+
+  /**
+   * Change the metadata of the region's first count beacons.
+   */
+  public void editRegion(String region, int count) {
+    synchronized (mRegions) {
+      Region r = getRegion(region);
+      for (int i = 0; i < count && i < mRegionSize; i++) {
+        r.put(SyntheticScanSource.getUrl(i), ++mRegionVersion, false);
+      }
+    }
+  }
+
+  public void deleteFromRegion(String region, String url) {
+    synchronized (mRegions) {
+      getRegion(region).put(url, ++mRegionVersion, true);
+    }
+  }
+
+  // When off, binary requests are refused and responses are always JSON.
+  public void setBinaryEnabled(boolean isEnabled) {
+    mIsBinaryEnabled = isEnabled;
+  }
+
+  // Hold each exchange for as long as its bytes would take at this speed;
+  // 0 for no limit.
+  public void setLinkKbps(int kbps) {
+    mLinkKbps = kbps;
+  }
+
+  /**
+   * Hold each resolve for typical ms, give or take half, except for a
+   * slowFraction of them which take slow ms.
+   */
+  public void setLatency(long typical, double slowFraction, long slow) {
+    mTypicalLatency = typical;
+    mSlowFraction = slowFraction;
+    mSlowLatency = slow;
+  }
+
+  // Fail this fraction of resolves with a 503.
+  public void setBeaconLatency(long beaconLatency) {
+    mBeaconLatency = beaconLatency;
+  }
+
+  // How many resolves the server works on at once, or 0 for no limit.
+  public void setCapacity(int capacity) {
+    mCapacity = capacity > 0 ? new Semaphore(capacity, true) : null;
+  }
+
+  public void setFailureRate(double failureRate) {
+    mFailureRate = failureRate;
+  }
+
+  public long getRequestCount() { return mRequestCount.get(); }
+
+  public long getBytesIn() { return mBytesIn.get(); }
+
+  public long getBytesOut() { return mBytesOut.get(); }
+
+  private void handleResolve(HttpExchange exchange) throws IOException {
+    if (!exchange.getRequestMethod().equals("POST")) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    mRequestCount.incrementAndGet();
+    byte[] body = readFully(exchange.getRequestBody());
+    int bytesIn = body.length;
+    simulateLatency();
+    if (ThreadLocalRandom.current().nextDouble() < mFailureRate) {
+      exchange.sendResponseHeaders(503, -1);
+      return;
+    }
+    if (GZIP.equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+      body = BinaryResolveCodec.gunzip(body);
+    }
+
+    final ArrayList<String> urls = new ArrayList<String>();
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    try {
+      if (contentType != null && contentType.startsWith(BinaryResolveCodec.CONTENT_TYPE)) {
+        if (!mIsBinaryEnabled) {
+          exchange.sendResponseHeaders(415, -1);
+          return;
+        }
+        BinaryResolveCodec.readRequest(body, new BinaryResolveCodec.OnBeaconParsedListener() {
+          @Override
+          public void onBeaconParsed(String url, int rssi) {
+            urls.add(url);
+          }
+        });
+      } else if (contentType != null && contentType.startsWith(JSON_CONTENT_TYPE)) {
+        JSONArray objects = new JSONObject(new String(body, UTF_8)).getJSONArray("objects");
+        for (int i = 0; i < objects.length(); i++) {
+          urls.add(objects.getJSONObject(i).getString("url"));
+        }
+      } else {
+        exchange.sendResponseHeaders(415, -1);
+        return;
+      }
+    } catch (JSONException e) {
+      exchange.sendResponseHeaders(400, -1);
+      return;
+    } catch (IOException e) {
+      exchange.sendResponseHeaders(400, -1);
+      return;
+    }
+
+    sleep(mBeaconLatency * urls.size());
+    ArrayList<String> ids = new ArrayList<String>();
+    ArrayList<DeviceMetadata> metadata = new ArrayList<DeviceMetadata>();
+    for (String url : urls) {
+      if (!url.contains("missing")) {
+        ids.add(url);
+        metadata.add(createMetadata(url));
+      }
+    }
+
+    String accept = exchange.getRequestHeaders().getFirst("Accept");
+    byte[] response;
+    if (mIsBinaryEnabled && accept != null && accept.contains(BinaryResolveCodec.CONTENT_TYPE)) {
+      exchange.getResponseHeaders().set("Content-Type", BinaryResolveCodec.CONTENT_TYPE);
+      response = BinaryResolveCodec.createResponseBody(ids, metadata);
+    } else {
+      exchange.getResponseHeaders().set("Content-Type", JSON_CONTENT_TYPE + "; charset=utf-8");
+      response = createJsonResponse(ids, metadata).getBytes(UTF_8);
+    }
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (acceptEncoding != null && acceptEncoding.contains(GZIP)) {
+      exchange.getResponseHeaders().set("Content-Encoding", GZIP);
+      response = BinaryResolveCodec.gzip(response);
+    }
+
+    simulateLink(bytesIn + response.length);
+    mBytesIn.addAndGet(bytesIn);
+    mBytesOut.addAndGet(response.length);
+    exchange.sendResponseHeaders(200, response.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(response);
+    out.close();
+  }
+
+  /**
+   * Every beacon in a region, with the version of its latest change. The
+   * versions come from one server-wide counter, so they only go up.
+   */
+  private static class Region {
+    final HashMap<String, Long> versions = new HashMap<String, Long>();
+    // The beacon URL for each version, so changes come out in order.
+    final TreeMap<Long, String> changes = new TreeMap<Long, String>();
+    final HashMap<String, Boolean> isDeleted = new HashMap<String, Boolean>();
+
+    void put(String url, long version, boolean isDeletion) {
+      Long previous = versions.put(url, version);
+      if (previous != null) {
+        changes.remove(previous);
+      }
+      changes.put(version, url);
+      isDeleted.put(url, isDeletion);
+    }
+  }
+
+  private Region getRegion(String name) {
+    Region region = mRegions.get(name);
+    if (region == null) {
+      region = new Region();
+      for (int i = 0; i < mRegionSize; i++) {
+        region.put(SyntheticScanSource.getUrl(i), ++mRegionVersion, false);
+      }
+      mRegions.put(name, region);
+    }
+    return region;
+  }
+
+  private void handleSync(HttpExchange exchange) throws IOException {
+    if (!exchange.getRequestMethod().equals("GET")) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    mRequestCount.incrementAndGet();
+    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+    String regionName = query.get("region");
+    long since;
+    int limit;
+    try {
+      since = Long.parseLong(query.containsKey("since") ? query.get("since") : "0");
+      limit = Integer.parseInt(query.containsKey("limit") ? query.get("limit") : "500");
+    } catch (NumberFormatException e) {
+      exchange.sendResponseHeaders(400, -1);
+      return;
+    }
+    if (regionName == null || limit <= 0) {
+      exchange.sendResponseHeaders(400, -1);
+      return;
+    }
+
+    JSONObject json = new JSONObject();
+    try {
+      JSONArray entries = new JSONArray();
+      JSONArray deleted = new JSONArray();
+      long version = since;
+      boolean hasMore;
+      synchronized (mRegions) {
+        Region region = getRegion(regionName);
+        Iterator<Map.Entry<Long, String>> changes =
+            region.changes.tailMap(since, false).entrySet().iterator();
+        int count = 0;
+        while (count < limit && changes.hasNext()) {
+          Map.Entry<Long, String> change = changes.next();
+          String url = change.getValue();
+          if (region.isDeleted.get(url)) {
+            deleted.put(url);
+          } else {
+            DeviceMetadata metadata = createMetadata(url);
+            metadata.title += " (v" + change.getKey() + ")";
+            entries.put(createJsonEntry(url, metadata));
+          }
+          version = change.getKey();
+          count++;
+        }
+        hasMore = changes.hasNext();
+      }
+      json.put("region", regionName);
+      json.put("version", version);
+      json.put("more", hasMore);
+      json.put("metadata", entries);
+      json.put("deleted", deleted);
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+
+    byte[] response = json.toString().getBytes(UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", JSON_CONTENT_TYPE + "; charset=utf-8");
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (acceptEncoding != null && acceptEncoding.contains(GZIP)) {
+      exchange.getResponseHeaders().set("Content-Encoding", GZIP);
+      response = BinaryResolveCodec.gzip(response);
+    }
+    simulateLink(response.length);
+    mBytesOut.addAndGet(response.length);
+    exchange.sendResponseHeaders(200, response.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(response);
+    out.close();
+  }
+
+  private static Map<String, String> parseQuery(String query) throws IOException {
+    HashMap<String, String> parameters = new HashMap<String, String>();
+    if (query == null) {
+      return parameters;
+    }
+    for (String parameter : query.split("&")) {
+      String[] pair = parameter.split("=", 2);
+      parameters.put(URLDecoder.decode(pair[0], "UTF-8"),
+          pair.length == 2 ? URLDecoder.decode(pair[1], "UTF-8") : "");
+    }
+    return parameters;
+  }
+
+  private static DeviceMetadata createMetadata(String url) {
+    DeviceMetadata deviceMetadata = new DeviceMetadata();
+    deviceMetadata.title = "Title of " + url;
+    deviceMetadata.siteUrl = url;
+    deviceMetadata.description = "A made up description of the page at " + url;
+    deviceMetadata.iconUrl = "/favicon.ico";
+    return deviceMetadata;
+  }
+
+  private static String createJsonResponse(ArrayList<String> ids,
+                                           ArrayList<DeviceMetadata> metadata) {
+    try {
+      JSONArray entries = new JSONArray();
+      for (int i = 0; i < ids.size(); i++) {
+        entries.put(createJsonEntry(ids.get(i), metadata.get(i)));
+      }
+      return new JSONObject().put("metadata", entries).toString();
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static JSONObject createJsonEntry(String id, DeviceMetadata deviceMetadata)
+      throws JSONException {
+    JSONObject entry = new JSONObject();
+    entry.put("id", id);
+    entry.put("title", deviceMetadata.title);
+    entry.put("url", deviceMetadata.siteUrl);
+    entry.put("description", deviceMetadata.description);
+    entry.put("icon", deviceMetadata.iconUrl);
+    return entry;
+  }
+
+  private void simulateLatency() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long latency = random.nextDouble() < mSlowFraction
+        ? mSlowLatency
+        : (long) (mTypicalLatency * (0.5 + random.nextDouble()));
+    sleep(latency);
+  }
+
+  private void simulateLink(int bytes) {
+    int kbps = mLinkKbps;
+    if (kbps <= 0) {
+      return;
+    }
+    sleep(bytes * 8L / kbps);
+  }
+
+  private static void sleep(long time) {
+    if (time <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(time);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      bytes.write(buffer, 0, count);
+    }
+    in.close();
+    return bytes.toByteArray();
+  }
+
+  public static void main(String[] args) throws IOException {
+    int port = 8080;
+    ReferenceResolverServer server;
+    boolean isBinaryEnabled = true;
+    int kbps = 0;
+    int regionSize = 1000;
+    String[] latency = null;
+    double failureRate = 0;
+    long beaconLatency = 0;
+    int capacity = 0;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--port") && i + 1 < args.length) {
+        port = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--json-only")) {
+        isBinaryEnabled = false;
+      } else if (args[i].equals("--kbps") && i + 1 < args.length) {
+        kbps = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--region-size") && i + 1 < args.length) {
+        regionSize = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--latency") && i + 1 < args.length) {
+        latency = args[++i].split(",");
+      } else if (args[i].equals("--failure-rate") && i + 1 < args.length) {
+        failureRate = Double.parseDouble(args[++i]);
+      } else if (args[i].equals("--beacon-latency") && i + 1 < args.length) {
+        beaconLatency = Long.parseLong(args[++i]);
+      } else if (args[i].equals("--capacity") && i + 1 < args.length) {
+        capacity = Integer.parseInt(args[++i]);
+      }
+    }
+    server = new ReferenceResolverServer(port);
+    server.setBinaryEnabled(isBinaryEnabled);
+    server.setLinkKbps(kbps);
+    server.setRegionSize(regionSize);
+    if (latency != null) {
+      server.setLatency(Long.parseLong(latency[0]),
+          latency.length > 1 ? Double.parseDouble(latency[1]) : 0,
+          latency.length > 2 ? Long.parseLong(latency[2]) : 0);
+    }
+    server.setFailureRate(failureRate);
+    server.setBeaconLatency(beaconLatency);
+    server.setCapacity(capacity);
+    server.start();
+    System.out.println("Resolving at " + server.getUrl());
+    System.out.println("Syncing regions at " + server.getSyncUrl());
+  }
+}
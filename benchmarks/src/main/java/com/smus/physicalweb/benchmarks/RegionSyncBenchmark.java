@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.BinaryResolveCodec;
+import com.smus.physicalweb.DeviceMetadata;
+import com.smus.physicalweb.RegionSyncCodec;
+import com.smus.physicalweb.SyntheticScanSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Syncing a region from ReferenceResolverServer from scratch, and catching
+ * up on a few edits since the last sync, the way RegionSyncRequest pages
+ * through it. A HashMap stands in for RegionIndex, which needs SQLite. The
+ * page counts and bytes of each are printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionSyncBenchmark {
+  @Param({"1000", "10000"})
+  public int regionSize;
+
+  private static final String REGION = "benchmark";
+  private static final int PAGE_SIZE = 500;
+  private static final int EDIT_COUNT = 50;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private ReferenceResolverServer mServer;
+  private String mSyncUrl;
+  // The version a full sync leaves us at, before the edits.
+  private long mVersion;
+  private int mPageCount;
+
+  @Setup
+  public void setUp() throws IOException {
+    mServer = new ReferenceResolverServer(0);
+    mServer.setRegionSize(regionSize);
+    mServer.start();
+    mSyncUrl = mServer.getSyncUrl();
+
+    HashMap<String, DeviceMetadata> index = new HashMap<String, DeviceMetadata>();
+    mVersion = sync(index, 0);
+    System.out.println("\nfull sync of " + index.size() + " entries: " + mPageCount
+        + " pages, " + mServer.getBytesOut() + " bytes");
+
+    mServer.editRegion(REGION, EDIT_COUNT);
+    mServer.deleteFromRegion(REGION, SyntheticScanSource.getUrl(regionSize - 1));
+    long bytesOut = mServer.getBytesOut();
+    sync(index, mVersion);
+    System.out.println("delta sync after " + EDIT_COUNT + " edits and a deletion: "
+        + mPageCount + " pages, " + (mServer.getBytesOut() - bytesOut) + " bytes, "
+        + index.size() + " entries left");
+  }
+
+  @TearDown
+  public void tearDown() {
+    mServer.stop();
+  }
+
+  @Benchmark
+  public int fullSync() throws IOException {
+    HashMap<String, DeviceMetadata> index = new HashMap<String, DeviceMetadata>();
+    sync(index, 0);
+    return index.size();
+  }
+
+  @Benchmark
+  public int deltaSync() throws IOException {
+    HashMap<String, DeviceMetadata> index = new HashMap<String, DeviceMetadata>();
+    sync(index, mVersion);
+    return index.size();
+  }
+
+  // Page through the changes since the version, applying each page. Returns
+  // the version synced to.
+  private long sync(HashMap<String, DeviceMetadata> index, long since) throws IOException {
+    mPageCount = 0;
+    RegionSyncCodec.Delta delta;
+    do {
+      URL url = new URL(mSyncUrl + "?region=" + REGION + "&since=" + since
+          + "&limit=" + PAGE_SIZE);
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+      byte[] data = ReferenceResolverServer.readFully(connection.getInputStream());
+      if ("gzip".equals(connection.getHeaderField("Content-Encoding"))) {
+        data = BinaryResolveCodec.gunzip(data);
+      }
+      delta = RegionSyncCodec.readDelta(new String(data, UTF_8));
+      for (int i = 0; i < delta.ids.size(); i++) {
+        index.put(delta.ids.get(i), delta.metadata.get(i));
+      }
+      for (String deleted : delta.deleted) {
+        index.remove(deleted);
+      }
+      since = delta.version;
+      mPageCount++;
+    } while (delta.hasMore);
+    return since;
+  }
+}
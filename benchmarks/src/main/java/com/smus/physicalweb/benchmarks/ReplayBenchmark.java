@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.BatchScheduler;
+import com.smus.physicalweb.ExpiryWheel;
+import com.smus.physicalweb.ScanLog;
+import com.smus.physicalweb.ScanRecordParser;
+import com.smus.physicalweb.ScanSource;
+import com.smus.physicalweb.SyntheticScanSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a minute of recorded synthetic traffic through the ingestion,
+ * batching and expiry steps NearbyDeviceManager takes, on virtual time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplayBenchmark {
+  @Param({"100", "1000"})
+  public int beaconCount;
+
+  private static final long ADVERTISING_INTERVAL = 1000;
+  private static final long DURATION = 60000;
+  private static final long MAX_INACTIVE_TIME = 10000;
+
+  private byte[] mLog;
+
+  @Setup
+  public void setUp() throws IOException {
+    ScanSource source = new SyntheticScanSource(beaconCount, ADVERTISING_INTERVAL, DURATION, 42);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ScanLog.Writer writer = new ScanLog.Writer(out);
+    ScanSource.ScanEvent event = new ScanSource.ScanEvent();
+    while (source.next(event)) {
+      writer.write(event.timestamp, event.address, event.rssi, event.scanRecord);
+    }
+    writer.close();
+    mLog = out.toByteArray();
+  }
+
+  @Benchmark
+  public int replay() throws IOException {
+    Fakes.VirtualClock clock = new Fakes.VirtualClock();
+    ConcurrentHashMap<String, Fakes.Device> registry =
+        new ConcurrentHashMap<String, Fakes.Device>();
+    ExpiryWheel<Fakes.Device> expiryWheel = new ExpiryWheel<Fakes.Device>(clock, 1000, 16);
+    BatchScheduler<Fakes.Device> batchScheduler =
+        new BatchScheduler<Fakes.Device>(clock, 20, 50, 500);
+    ScanRecordParser parser = new ScanRecordParser();
+
+    ScanLog.Reader reader = new ScanLog.Reader(new ByteArrayInputStream(mLog));
+    ScanSource.ScanEvent event = new ScanSource.ScanEvent();
+    long nextTick = expiryWheel.getTickDuration();
+    int batches = 0;
+    while (reader.next(event)) {
+      clock.time = event.timestamp;
+      while (clock.time >= nextTick) {
+        for (Fakes.Device device : expiryWheel.advance()) {
+          registry.remove(device.address);
+        }
+        nextTick += expiryWheel.getTickDuration();
+      }
+
+      Fakes.Device device = registry.get(event.address);
+      if (device == null) {
+        if (!parser.parse(event.scanRecord)) {
+          continue;
+        }
+        device = new Fakes.Device(event.address, parser.decodeUrl(), event.rssi);
+        registry.put(event.address, device);
+        if (batchScheduler.add(device)) {
+          batches++;
+          batchScheduler.drain();
+        }
+      } else {
+        device.rssiHistory.add(event.rssi);
+      }
+      expiryWheel.schedule(device, clock.time + MAX_INACTIVE_TIME);
+    }
+    reader.close();
+    return batches + registry.size();
+  }
+}
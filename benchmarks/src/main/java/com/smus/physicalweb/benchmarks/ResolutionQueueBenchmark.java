@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.ResolutionQueue;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of queueing a crowd of beacons and taking them out a call's worth at
+ * a time, nearest first, against sending them in the order they were found.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolutionQueueBenchmark {
+  @Param({"20", "200", "2000"})
+  public int deviceCount;
+
+  private static int CALL_SIZE = 20;
+
+  private ArrayList<Fakes.Device> mDevices;
+
+  private static ResolutionQueue.Prioritizer<Fakes.Device> PROXIMITY =
+      new ResolutionQueue.Prioritizer<Fakes.Device>() {
+    @Override
+    public int getPriority(Fakes.Device device) {
+      return device.rssiHistory.getSmoothed();
+    }
+  };
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    mDevices = new ArrayList<Fakes.Device>();
+    for (int i = 0; i < deviceCount; i++) {
+      mDevices.add(new Fakes.Device(Fakes.address(i), Fakes.url(i), -50 - random.nextInt(50)));
+    }
+  }
+
+  // What getBatchMetadata used to do: whatever was found first goes first.
+  @Benchmark
+  public int discoveryOrder() {
+    ArrayList<Fakes.Device> pending = new ArrayList<Fakes.Device>(mDevices);
+    int calls = 0;
+    while (!pending.isEmpty()) {
+      pending.subList(0, Math.min(CALL_SIZE, pending.size())).clear();
+      calls++;
+    }
+    return calls;
+  }
+
+  @Benchmark
+  public int proximityOrder() {
+    ResolutionQueue<Fakes.Device> queue = new ResolutionQueue<Fakes.Device>(PROXIMITY);
+    for (Fakes.Device device : mDevices) {
+      queue.add(device);
+    }
+    int calls = 0;
+    while (!queue.isEmpty()) {
+      queue.poll(CALL_SIZE);
+      calls++;
+    }
+    return calls;
+  }
+}
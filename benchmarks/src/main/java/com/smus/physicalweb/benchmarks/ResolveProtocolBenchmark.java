@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.BinaryResolveCodec;
+import com.smus.physicalweb.DeviceMetadata;
+import com.smus.physicalweb.ResolveScanCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips of one resolve batch against ReferenceResolverServer over
+ * loopback, in JSON and in gzipped binary, on an unlimited and on a slow
+ * link. Payload sizes are printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolveProtocolBenchmark {
+  @Param({"json", "binary"})
+  public String protocol;
+
+  @Param({"20", "100"})
+  public int entryCount;
+
+  // 0 means no limit.
+  @Param({"0", "1000"})
+  public int linkKbps;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private ReferenceResolverServer mServer;
+  private URL mUrl;
+  private boolean mIsBinary;
+  private byte[] mBody;
+
+  @Setup
+  public void setUp() throws IOException {
+    mServer = new ReferenceResolverServer(0);
+    mServer.setLinkKbps(linkKbps);
+    mServer.start();
+    mUrl = new URL(mServer.getUrl());
+    mIsBinary = protocol.equals("binary");
+
+    ArrayList<Fakes.Device> beacons = new ArrayList<Fakes.Device>();
+    for (int i = 0; i < entryCount; i++) {
+      beacons.add(new Fakes.Device(Fakes.address(i), Fakes.url(i), -70));
+    }
+    mBody = mIsBinary
+        ? BinaryResolveCodec.gzip(BinaryResolveCodec.createRequestBody(beacons))
+        : ResolveScanCodec.createRequestBody(beacons);
+
+    resolve();
+    System.out.println("\n" + protocol + ", " + entryCount + " entries: request "
+        + mServer.getBytesIn() + " bytes, response " + mServer.getBytesOut() + " bytes");
+  }
+
+  @TearDown
+  public void tearDown() {
+    mServer.stop();
+  }
+
+  // What ResolveScanRequest does, over HttpURLConnection.
+  @Benchmark
+  public int resolve() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    if (mIsBinary) {
+      connection.setRequestProperty("Content-Type", BinaryResolveCodec.CONTENT_TYPE);
+      connection.setRequestProperty("Content-Encoding", "gzip");
+      connection.setRequestProperty("Accept", BinaryResolveCodec.CONTENT_TYPE);
+    } else {
+      connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+      connection.setRequestProperty("Accept", "application/json");
+    }
+    OutputStream out = connection.getOutputStream();
+    out.write(mBody);
+    out.close();
+
+    byte[] data = ReferenceResolverServer.readFully(connection.getInputStream());
+    if ("gzip".equals(connection.getHeaderField("Content-Encoding"))) {
+      data = BinaryResolveCodec.gunzip(data);
+    }
+    final int[] count = new int[1];
+    ResolveScanCodec.OnMetadataParsedListener listener =
+        new ResolveScanCodec.OnMetadataParsedListener() {
+      @Override
+      public void onMetadataParsed(String id, DeviceMetadata deviceMetadata) {
+        count[0]++;
+      }
+    };
+    if (mIsBinary) {
+      BinaryResolveCodec.readResponse(data, listener);
+    } else {
+      ResolveScanCodec.readResponse(new String(data, UTF_8), listener);
+    }
+    return count[0];
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.DeviceMetadata;
+import com.smus.physicalweb.ResolveScanCodec;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building resolve-scan requests and decoding their responses, with
+ * the streaming codec and with the org.json tree it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolveScanCodecBenchmark {
+  @Param({"10", "100", "500"})
+  public int entryCount;
+
+  private ArrayList<Fakes.Device> mBeacons;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private String mResponse;
+  private byte[] mResponseBytes;
+
+  @Setup
+  public void setUp() {
+    mBeacons = new ArrayList<Fakes.Device>();
+    for (int i = 0; i < entryCount; i++) {
+      mBeacons.add(new Fakes.Device(Fakes.address(i), Fakes.url(i), -70));
+    }
+    mResponse = Fakes.resolveResponse(entryCount);
+    mResponseBytes = mResponse.getBytes(UTF_8);
+  }
+
+  // The org.json tree path the app used to take.
+  @Benchmark
+  public String serializeRequestTree() {
+    return JsonTreeCodec.createRequestObject(mBeacons).toString();
+  }
+
+  @Benchmark
+  public void parseResponseTree(final Blackhole blackhole) throws JSONException {
+    JsonTreeCodec.parseResponse(new JSONObject(mResponse),
+        new ResolveScanCodec.OnMetadataParsedListener() {
+      @Override
+      public void onMetadataParsed(String id, DeviceMetadata deviceMetadata) {
+        blackhole.consume(deviceMetadata);
+      }
+    });
+  }
+
+  // The streaming codec, working from the bytes Volley hands us.
+  @Benchmark
+  public byte[] serializeRequest() {
+    return ResolveScanCodec.createRequestBody(mBeacons);
+  }
+
+  @Benchmark
+  public int parseResponse(final Blackhole blackhole) throws IOException {
+    return ResolveScanCodec.readResponse(new String(mResponseBytes, UTF_8),
+        new ResolveScanCodec.OnMetadataParsedListener() {
+      @Override
+      public void onMetadataParsed(String id, DeviceMetadata deviceMetadata) {
+        blackhole.consume(deviceMetadata);
+      }
+    });
+  }
+}
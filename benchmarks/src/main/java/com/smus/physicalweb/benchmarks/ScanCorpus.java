@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+/**
+ * The sample advertisements in scan_records.txt: URI beacons, named
+ * beacons, other devices and malformed records, each zero padded to the 62
+ * bytes onLeScan hands over.
+ */
+public class ScanCorpus {
+  private static final String RESOURCE = "scan_records.txt";
+  private static final int SCAN_RECORD_LENGTH = 62;
+
+  public static ArrayList<byte[]> load() {
+    InputStream in = ScanCorpus.class.getResourceAsStream(RESOURCE);
+    if (in == null) {
+      throw new IllegalStateException("Missing " + RESOURCE);
+    }
+    ArrayList<byte[]> records = new ArrayList<byte[]>();
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (line.isEmpty() || line.startsWith("#")) {
+            continue;
+          }
+          records.add(parseHex(line));
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not read " + RESOURCE, e);
+    }
+    return records;
+  }
+
+  // The hex string as a scan record; "-" for an empty one.
+  private static byte[] parseHex(String hex) {
+    byte[] record = new byte[SCAN_RECORD_LENGTH];
+    if (hex.equals("-")) {
+      return record;
+    }
+    if (hex.length() % 2 != 0 || hex.length() / 2 > SCAN_RECORD_LENGTH) {
+      throw new IllegalArgumentException("Bad scan record: " + hex);
+    }
+    for (int i = 0; i < hex.length() / 2; i++) {
+      record[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return record;
+  }
+}
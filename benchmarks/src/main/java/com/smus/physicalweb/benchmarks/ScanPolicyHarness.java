@@ -0,0 +1,435 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.ScanPolicy;
+import com.smus.physicalweb.ScanScheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Discovery latency and radio energy of each ScanPolicy, driving a
+ * ScanScheduler through its seams: a virtual clock, a timer on that clock
+ * and a simulated radio. Beacons come and go at a scenario's rate and
+ * advertise every ADVERT_INTERVAL; one is discovered by its first
+ * advertisement while the radio is scanning. Latency is from a beacon
+ * turning up to that, and energy is the fraction of each minute the radio
+ * was on. Checks that:
+ *
+ * - an Adaptive policy keeps under its duty cycle, overall and (give or
+ *   take a window) in every minute, however often new beacons turn up;
+ * - it adapts: the radio is on less among a few beacons that stay than in a
+ *   crowd, and the app's policy finds beacons in a crowd within an
+ *   advertisement of fixed scanning, at the 95th percentile;
+ * - no beacon waits longer than the longest pause the policy takes, plus an
+ *   advertisement;
+ * - the scheduler's radio on time is the radio's, when starts fail as well.
+ *
+ * Run it with:
+ *
+ *   gradle :benchmarks:scanPolicy [-PharnessArgs="--runs 5 --minutes 60"]
+ *
+ * Exits with status 1 if any check fails.
+ */
+public class ScanPolicyHarness {
+  // What NearbyDeviceManager uses (ms).
+  private static final long SCAN_WINDOW = 4000;
+  private static final long MIN_SCAN_PAUSE = 500;
+  private static final long MAX_SCAN_PAUSE = 4000;
+  private static final double SCAN_DUTY_CYCLE = 0.8;
+  // How often beacons advertise (ms).
+  private static final long ADVERT_INTERVAL = 1000;
+  private static final long MINUTE = 60 * 1000;
+  // Windows Adaptive may scan back to back from a full budget.
+  private static final int BURST_WINDOWS = 2;
+  // The part of starts that fail in the failing radio run.
+  private static final double START_FAILURE_RATE = 0.2;
+
+  private static boolean mIsPassing = true;
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      System.out.println("FAIL: " + message);
+      mIsPassing = false;
+    }
+  }
+
+  // How beacons come and go: the mean time (ms) between arrivals, how many
+  // are around from the start, and how long each stays.
+  private static class Scenario {
+    final String name;
+    final long meanArrivalInterval;
+    final int initialCount;
+    final long minDwell;
+    final long maxDwell;
+
+    Scenario(String name, long meanArrivalInterval, int initialCount, long minDwell,
+             long maxDwell) {
+      this.name = name;
+      this.meanArrivalInterval = meanArrivalInterval;
+      this.initialCount = initialCount;
+      this.minDwell = minDwell;
+      this.maxDwell = maxDwell;
+    }
+  }
+
+  private static final Scenario[] SCENARIOS = {
+    new Scenario("quiet", 5 * MINUTE, 5, 2 * MINUTE, 20 * MINUTE),
+    new Scenario("street", 20 * 1000, 2, 30 * 1000, 2 * MINUTE),
+    // A new beacon in nearly every window, which used to keep the radio on.
+    new Scenario("crowd", 2 * 1000, 10, MINUTE, 3 * MINUTE),
+  };
+
+  private interface PolicyFactory {
+    public ScanPolicy create();
+  }
+
+  private static class Policy {
+    final String name;
+    final PolicyFactory factory;
+    // The duty cycle it has to keep to, or 0 for none.
+    final double dutyCycle;
+    // The longest pause it may take (ms).
+    final long maxPause;
+    // Whether it has to find beacons in a crowd about as fast as fixed
+    // scanning does.
+    final boolean isKeepingUp;
+
+    Policy(String name, PolicyFactory factory, double dutyCycle, long maxPause,
+           boolean isKeepingUp) {
+      this.name = name;
+      this.factory = factory;
+      this.dutyCycle = dutyCycle;
+      this.maxPause = maxPause;
+      this.isKeepingUp = isKeepingUp;
+    }
+  }
+
+  private static Policy adaptive(String name, final long window, final long minPause,
+                                 final long maxPause, final double dutyCycle,
+                                 boolean isKeepingUp) {
+    // Adaptive pays back going over its budget with pauses up to the one
+    // that keeps to its duty cycle, even if that is longer than maxPause.
+    long dutyPause = (long) Math.ceil(window * (1 - dutyCycle) / dutyCycle);
+    return new Policy(name, new PolicyFactory() {
+      @Override
+      public ScanPolicy create() {
+        return new ScanPolicy.Adaptive(window, minPause, maxPause, dutyCycle);
+      }
+    }, dutyCycle, Math.max(maxPause, dutyPause), isKeepingUp);
+  }
+
+  private static final Policy[] POLICIES = {
+    new Policy("fixed", new PolicyFactory() {
+      @Override
+      public ScanPolicy create() {
+        return new ScanPolicy.Fixed(SCAN_WINDOW);
+      }
+    }, 0, 0, true),
+    adaptive("adaptive", SCAN_WINDOW, MIN_SCAN_PAUSE, MAX_SCAN_PAUSE, SCAN_DUTY_CYCLE, true),
+    // A tight energy budget, which a crowd runs into.
+    adaptive("adaptive 50%", SCAN_WINDOW, MIN_SCAN_PAUSE, 3 * SCAN_WINDOW, 0.5, false),
+  };
+
+  private static class Task implements Comparable<Task> {
+    final long time;
+    final long sequence;
+    final Runnable runnable;
+
+    Task(long time, long sequence, Runnable runnable) {
+      this.time = time;
+      this.sequence = sequence;
+      this.runnable = runnable;
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      if (time != other.time) {
+        return time < other.time ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+  }
+
+  // Runs tasks in time order on the virtual clock.
+  private static class VirtualTimer implements ScanScheduler.Timer {
+    private final Fakes.VirtualClock mClock;
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<Task>();
+    private long mSequence = 0;
+
+    VirtualTimer(Fakes.VirtualClock clock) {
+      mClock = clock;
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delay) {
+      mTasks.add(new Task(mClock.time + delay, mSequence++, runnable));
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+      for (Iterator<Task> tasks = mTasks.iterator(); tasks.hasNext(); ) {
+        if (tasks.next().runnable == runnable) {
+          tasks.remove();
+        }
+      }
+    }
+
+    void runUntil(long end) {
+      while (!mTasks.isEmpty() && mTasks.peek().time <= end) {
+        Task task = mTasks.poll();
+        mClock.time = task.time;
+        task.runnable.run();
+      }
+      mClock.time = end;
+    }
+  }
+
+  // Keeps track of when it is on, minute by minute; starts fail at random
+  // if asked to.
+  private static class SimulatedRadio implements ScanScheduler.Radio {
+    private final Fakes.VirtualClock mClock;
+    private final Random mRandom;
+    private final double mFailureRate;
+    private final long[] mOnTimePerMinute;
+    private boolean mIsOn = false;
+    private long mOnSince;
+    private long mOnTime = 0;
+
+    SimulatedRadio(Fakes.VirtualClock clock, Random random, double failureRate, int minutes) {
+      mClock = clock;
+      mRandom = random;
+      mFailureRate = failureRate;
+      mOnTimePerMinute = new long[minutes];
+    }
+
+    @Override
+    public boolean startScan() {
+      if (mIsOn || mRandom.nextDouble() < mFailureRate) {
+        return false;
+      }
+      mIsOn = true;
+      mOnSince = mClock.time;
+      return true;
+    }
+
+    @Override
+    public void stopScan() {
+      if (!mIsOn) {
+        return;
+      }
+      mIsOn = false;
+      mOnTime += mClock.time - mOnSince;
+      for (long start = mOnSince; start < mClock.time; ) {
+        int minute = (int) (start / MINUTE);
+        long end = Math.min(mClock.time, (minute + 1) * MINUTE);
+        if (minute < mOnTimePerMinute.length) {
+          mOnTimePerMinute[minute] += end - start;
+        }
+        start = end;
+      }
+    }
+
+    boolean isOn() {
+      return mIsOn;
+    }
+  }
+
+  // Latencies and minute duty cycles from every run of a policy.
+  private static class Results {
+    final ArrayList<Long> latencies = new ArrayList<Long>();
+    final ArrayList<Double> dutyCycles = new ArrayList<Double>();
+    long onTime = 0;
+    long elapsed = 0;
+    int arrivedCount = 0;
+    int missedCount = 0;
+  }
+
+  private final int mRunCount;
+  private final int mMinutes;
+
+  ScanPolicyHarness(int runCount, int minutes) {
+    mRunCount = runCount;
+    mMinutes = minutes;
+  }
+
+  // One run: beacons arrive and advertise, and the scheduler scans for them.
+  private void run(Scenario scenario, Policy policy, long seed, double failureRate,
+                   final Results results) {
+    final Fakes.VirtualClock clock = new Fakes.VirtualClock();
+    final VirtualTimer timer = new VirtualTimer(clock);
+    Random random = new Random(seed);
+    final SimulatedRadio radio = new SimulatedRadio(clock, new Random(seed + 1), failureRate,
+        mMinutes);
+    final ScanScheduler scheduler = new ScanScheduler(policy.factory.create(), radio, timer,
+        clock);
+    long duration = mMinutes * MINUTE;
+
+    long arrival = 0;
+    for (int i = 0; ; i++) {
+      if (i >= scenario.initialCount) {
+        arrival += (long) (-Math.log(1 - random.nextDouble()) * scenario.meanArrivalInterval);
+      }
+      if (arrival >= duration) {
+        break;
+      }
+      final long arrivedAt = arrival;
+      final long leavesAt = arrival + scenario.minDwell
+          + (long) (random.nextDouble() * (scenario.maxDwell - scenario.minDwell));
+      results.arrivedCount++;
+      timer.postDelayed(new Runnable() {
+        private boolean mIsFound = false;
+
+        @Override
+        public void run() {
+          if (radio.isOn()) {
+            scheduler.onDeviceDiscovered(!mIsFound);
+            if (!mIsFound) {
+              mIsFound = true;
+              results.latencies.add(clock.time - arrivedAt);
+            }
+          }
+          if (clock.time + ADVERT_INTERVAL < leavesAt) {
+            timer.postDelayed(this, ADVERT_INTERVAL);
+          } else if (!mIsFound && leavesAt < duration) {
+            results.missedCount++;
+          }
+        }
+      }, arrival + (long) (random.nextDouble() * ADVERT_INTERVAL));
+    }
+
+    scheduler.start();
+    timer.runUntil(duration);
+    scheduler.stop();
+
+    check(scheduler.getRadioOnTime() == radio.mOnTime, scenario.name + ", " + policy.name
+        + ": the scheduler counted " + scheduler.getRadioOnTime() + "ms on, the radio was on "
+        + radio.mOnTime + "ms");
+    results.onTime += radio.mOnTime;
+    results.elapsed += duration;
+    for (long onTime : radio.mOnTimePerMinute) {
+      results.dutyCycles.add((double) onTime / MINUTE);
+    }
+  }
+
+  private static <T extends Comparable<T>> T percentile(ArrayList<T> values, int percentile) {
+    ArrayList<T> sorted = new ArrayList<T>(values);
+    Collections.sort(sorted);
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+  }
+
+  // Returns the results of each of POLICIES.
+  Results[] run(Scenario scenario) {
+    Results[] allResults = new Results[POLICIES.length];
+    System.out.println(String.format("%s: a beacon every %ds, %d to start with, staying %d-%ds",
+        scenario.name, scenario.meanArrivalInterval / 1000, scenario.initialCount,
+        scenario.minDwell / 1000, scenario.maxDwell / 1000));
+    System.out.println(String.format("  %-14s %-25s %-25s %s", "", "latency p50/p95/max (ms)",
+        "radio on p50/p95/max", "overall  missed"));
+    for (int i = 0; i < POLICIES.length; i++) {
+      Policy policy = POLICIES[i];
+      Results results = new Results();
+      for (int run = 0; run < mRunCount; run++) {
+        run(scenario, policy, run, 0, results);
+      }
+      allResults[i] = results;
+      double dutyCycle = (double) results.onTime / results.elapsed;
+      System.out.println(String.format(
+          "  %-14s %6d %6d %8d      %5.1f%% %5.1f%% %6.1f%%     %5.1f%%  %d/%d",
+          policy.name, percentile(results.latencies, 50), percentile(results.latencies, 95),
+          percentile(results.latencies, 100), 100 * percentile(results.dutyCycles, 50),
+          100 * percentile(results.dutyCycles, 95), 100 * percentile(results.dutyCycles, 100),
+          100 * dutyCycle, results.missedCount, results.arrivedCount));
+
+      String name = scenario.name + ", " + policy.name;
+      if (policy.dutyCycle > 0) {
+        // Each run may start on a burst.
+        double burst = (double) BURST_WINDOWS * SCAN_WINDOW / MINUTE;
+        check(dutyCycle <= policy.dutyCycle + burst / mMinutes,
+            name + ": radio on " + dutyCycle + " of the time");
+        // A minute can take in a burst and a window more than its share.
+        double maxDutyCycle = percentile(results.dutyCycles, 100);
+        check(maxDutyCycle <= policy.dutyCycle + burst + (double) SCAN_WINDOW / MINUTE,
+            name + ": radio on " + maxDutyCycle + " of a minute");
+      }
+      check(percentile(results.latencies, 100) <= policy.maxPause + ADVERT_INTERVAL,
+          name + ": a beacon waited " + percentile(results.latencies, 100) + "ms");
+    }
+    return allResults;
+  }
+
+  // Adaptive policies scan less when little changes than when a lot does,
+  // and those that have to keep up in a crowd do.
+  void checkAdapting(Results[] quiet, Results[] crowd) {
+    long fixedLatency = percentile(crowd[0].latencies, 95);
+    for (int i = 0; i < POLICIES.length; i++) {
+      Policy policy = POLICIES[i];
+      if (policy.dutyCycle > 0) {
+        double quietDutyCycle = (double) quiet[i].onTime / quiet[i].elapsed;
+        double crowdDutyCycle = (double) crowd[i].onTime / crowd[i].elapsed;
+        check(quietDutyCycle < crowdDutyCycle, policy.name + ": radio on " + quietDutyCycle
+            + " of the time when quiet, " + crowdDutyCycle + " in a crowd");
+      }
+      long latency = percentile(crowd[i].latencies, 95);
+      check(!policy.isKeepingUp || latency <= fixedLatency + ADVERT_INTERVAL, policy.name
+          + ": latency p95 " + latency + "ms in a crowd, " + fixedLatency + "ms scanning fixed");
+    }
+  }
+
+  // Starts that fail must not count as time on.
+  void runFailingRadio() {
+    System.out.println(String.format("Failing radio, %d%% of starts:",
+        (int) (100 * START_FAILURE_RATE)));
+    for (Policy policy : POLICIES) {
+      Results results = new Results();
+      for (int run = 0; run < mRunCount; run++) {
+        run(SCENARIOS[1], policy, run, START_FAILURE_RATE, results);
+      }
+      System.out.println(String.format("  %-14s radio on %5.1f%%, latency p95 %dms",
+          policy.name, 100.0 * results.onTime / results.elapsed,
+          percentile(results.latencies, 95)));
+    }
+  }
+
+  public static void main(String[] args) {
+    int runCount = 5;
+    int minutes = 60;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--runs") && i + 1 < args.length) {
+        runCount = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--minutes") && i + 1 < args.length) {
+        minutes = Integer.parseInt(args[++i]);
+      }
+    }
+    ScanPolicyHarness harness = new ScanPolicyHarness(runCount, minutes);
+    System.out.println(runCount + " runs of " + minutes + " minutes, window "
+        + SCAN_WINDOW + "ms, advertising every " + ADVERT_INTERVAL + "ms");
+    Results[][] results = new Results[SCENARIOS.length][];
+    for (int i = 0; i < SCENARIOS.length; i++) {
+      results[i] = harness.run(SCENARIOS[i]);
+    }
+    harness.checkAdapting(results[0], results[SCENARIOS.length - 1]);
+    harness.runFailingRadio();
+    System.out.println(mIsPassing ? "PASS" : "FAIL");
+    System.exit(mIsPassing ? 0 : 1);
+  }
+}
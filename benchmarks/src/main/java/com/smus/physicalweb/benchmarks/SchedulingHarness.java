@@ -0,0 +1,548 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.Clock;
+import com.smus.physicalweb.ExpiryWheel;
+import com.smus.physicalweb.FrameCoalescer;
+import com.smus.physicalweb.ScanPolicy;
+import com.smus.physicalweb.ScanScheduler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Threads and wakeups spent on scanning, device expiry and list updates,
+ * the way NearbyDeviceManager used to schedule them and the way it does now.
+ *
+ * Before: a java.util.Timer thread restarting the scan every SEARCH_PERIOD,
+ * another checking every device for expiry every EXPIRE_PERIOD, and a new
+ * Timer thread for every deferred list notification. Now: everything posted
+ * to the one event loop, the scan following ScanScheduler, expiry ticking
+ * an ExpiryWheel only while it holds devices, and updates coalesced by a
+ * FrameCoalescer.
+ *
+ * Both run for real, on real threads, with time sped up SPEEDUP times.
+ * Beacons come and go for a while, then nothing is nearby. A wakeup is a
+ * timer or handler task running. Checks that:
+ *
+ * - the event loop is the only thread started, and no other is ever alive;
+ * - nothing wakes up for expiry while nothing is nearby;
+ * - every beacon still expires within MAX_INACTIVE_TIME and a few ticks.
+ *
+ * Run it with:
+ *
+ *   gradle :benchmarks:scheduling [-PharnessArgs="--minutes 5"]
+ *
+ * Exits with status 1 if any check fails.
+ */
+public class SchedulingHarness {
+  // Virtual ms per real ms.
+  private static final long SPEEDUP = 100;
+  // The old NearbyDeviceManager's and NearbyDeviceAdapter's (ms).
+  private static final long SEARCH_PERIOD = 5000;
+  private static final long EXPIRE_PERIOD = 3000;
+  private static final long NOTIFY_DELAY = 300;
+  // NearbyDeviceManager's and NearbyDeviceAdapter's now (ms).
+  private static final long MAX_INACTIVE_TIME = 10000;
+  private static final long SCAN_WINDOW = 4000;
+  private static final long MIN_SCAN_PAUSE = 500;
+  private static final long MAX_SCAN_PAUSE = 4000;
+  private static final double SCAN_DUTY_CYCLE = 0.5;
+  private static final long EXPIRE_TICK = 1000;
+  private static final int EXPIRE_SLOTS = 16;
+  private static final long ROUTINE_UPDATE_INTERVAL = 300;
+  private static final long FRAME = 16;
+  // How often beacons advertise, a beacon turns up and how long it stays (ms).
+  private static final long ADVERT_INTERVAL = 1000;
+  private static final long MEAN_ARRIVAL_INTERVAL = 20 * 1000;
+  private static final long MIN_DWELL = 30 * 1000;
+  private static final long MAX_DWELL = 2 * 60 * 1000;
+  private static final long MINUTE = 60 * 1000;
+  // Long enough after the last beacon is seen for it to expire (ms).
+  private static final long SETTLE_TIME = MAX_INACTIVE_TIME + 5 * EXPIRE_TICK;
+
+  private static boolean mIsPassing = true;
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      System.out.println("FAIL: " + message);
+      mIsPassing = false;
+    }
+  }
+
+  private static final long mStartNanos = System.nanoTime();
+
+  // Sped up time.
+  private static final Clock SPED_UP = new Clock() {
+    @Override
+    public long currentTimeMillis() {
+      return (System.nanoTime() - mStartNanos) * SPEEDUP / 1000000;
+    }
+  };
+
+  private static long toRealMicros(long delay) {
+    return delay * 1000 / SPEEDUP;
+  }
+
+  // Wakeups by cause, and when each beacon went; shared with the harness.
+  private static class Counts {
+    final AtomicLong scan = new AtomicLong();
+    final AtomicLong expiry = new AtomicLong();
+    final AtomicLong update = new AtomicLong();
+    // When each beacon was last seen, and expired (virtual ms).
+    final AtomicLongArray lastSeen;
+    final AtomicLongArray expiredAt;
+
+    Counts(int beaconCount) {
+      lastSeen = new AtomicLongArray(beaconCount);
+      expiredAt = new AtomicLongArray(beaconCount);
+    }
+
+    long[] get() {
+      return new long[] {scan.get(), expiry.get(), update.get()};
+    }
+  }
+
+  private interface Scheme {
+    public void start();
+    // A beacon's advertisement, on the radio's thread.
+    public void onSighting(int beacon);
+    public void stop();
+  }
+
+  /**
+   * What NearbyDeviceManager and NearbyDeviceAdapter used to do. The UI
+   * thread is given, as it already exists.
+   */
+  private static class TimerScheme implements Scheme {
+    private final ExecutorService mUiThread;
+    private final Counts mCounts;
+    private final HashMap<Integer, Long> mLastSeen = new HashMap<Integer, Long>();
+    private Timer mSearchTimer;
+    private Timer mExpireTimer;
+    // Only touched on the UI thread.
+    private Timer mNotificationTimer;
+    private long mLastChangeRequestTime;
+
+    TimerScheme(ExecutorService uiThread, Counts counts) {
+      mUiThread = uiThread;
+      mCounts = counts;
+    }
+
+    @Override
+    public void start() {
+      mSearchTimer = new Timer();
+      mExpireTimer = new Timer();
+      mSearchTimer.scheduleAtFixedRate(new TimerTask() {
+        @Override
+        public void run() {
+          mCounts.scan.incrementAndGet();
+        }
+      }, 0, SEARCH_PERIOD / SPEEDUP);
+      mExpireTimer.scheduleAtFixedRate(new TimerTask() {
+        @Override
+        public void run() {
+          mCounts.expiry.incrementAndGet();
+          removeExpiredDevices();
+        }
+      }, 0, EXPIRE_PERIOD / SPEEDUP);
+    }
+
+    private void removeExpiredDevices() {
+      long now = SPED_UP.currentTimeMillis();
+      boolean isChanged = false;
+      synchronized (mLastSeen) {
+        for (Iterator<Integer> beacons = mLastSeen.keySet().iterator(); beacons.hasNext(); ) {
+          int beacon = beacons.next();
+          if (now - mLastSeen.get(beacon) > MAX_INACTIVE_TIME) {
+            beacons.remove();
+            mCounts.expiredAt.set(beacon, now);
+            isChanged = true;
+          }
+        }
+      }
+      if (isChanged) {
+        queueChangedNotificationOnUiThread();
+      }
+    }
+
+    @Override
+    public void onSighting(int beacon) {
+      synchronized (mLastSeen) {
+        mLastSeen.put(beacon, SPED_UP.currentTimeMillis());
+      }
+      queueChangedNotificationOnUiThread();
+    }
+
+    private void queueChangedNotificationOnUiThread() {
+      mUiThread.execute(new Runnable() {
+        @Override
+        public void run() {
+          queueChangedNotification();
+        }
+      });
+    }
+
+    private void queueChangedNotification() {
+      long now = SPED_UP.currentTimeMillis();
+      if (now - mLastChangeRequestTime < NOTIFY_DELAY) {
+        if (mNotificationTimer != null) {
+          return;
+        }
+        mNotificationTimer = new Timer();
+        mNotificationTimer.schedule(new TimerTask() {
+          @Override
+          public void run() {
+            mCounts.update.incrementAndGet();
+            mUiThread.execute(new Runnable() {
+              @Override
+              public void run() {
+                notifyDataSetChanged();
+              }
+            });
+          }
+        }, NOTIFY_DELAY / SPEEDUP);
+      } else {
+        notifyDataSetChanged();
+      }
+    }
+
+    private void notifyDataSetChanged() {
+      if (mNotificationTimer != null) {
+        mNotificationTimer.cancel();
+        mNotificationTimer = null;
+      }
+      mLastChangeRequestTime = SPED_UP.currentTimeMillis();
+    }
+
+    @Override
+    public void stop() {
+      mSearchTimer.cancel();
+      mExpireTimer.cancel();
+      mUiThread.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (mNotificationTimer != null) {
+            mNotificationTimer.cancel();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * What NearbyDeviceManager does now, with a scheduled executor for the
+   * EventLoop's Handler. List updates are coalesced here too; on the device
+   * the frames they wait for are the UI thread's, which is drawing anyway.
+   */
+  private static class LoopScheme implements Scheme {
+    private final Counts mCounts;
+    private ScheduledExecutorService mLoop;
+    // The rest is only touched on the loop.
+    private final HashMap<Runnable, ArrayList<ScheduledFuture<?>>> mPosted =
+        new HashMap<Runnable, ArrayList<ScheduledFuture<?>>>();
+    private final HashSet<Integer> mDevices = new HashSet<Integer>();
+    private ExpiryWheel<Integer> mExpiryWheel;
+    private ScanScheduler mScanScheduler;
+    private FrameCoalescer mFrameCoalescer;
+    private boolean mIsExpiring = false;
+
+    LoopScheme(Counts counts) {
+      mCounts = counts;
+    }
+
+    // Handler.postDelayed() and removeCallbacks(), counting what runs.
+    private void postDelayed(final Runnable runnable, final AtomicLong wakeups, long delay) {
+      final ScheduledFuture<?>[] future = new ScheduledFuture<?>[1];
+      future[0] = mLoop.schedule(new Runnable() {
+        @Override
+        public void run() {
+          ArrayList<ScheduledFuture<?>> futures = mPosted.get(runnable);
+          if (futures != null && futures.remove(future[0]) && futures.isEmpty()) {
+            mPosted.remove(runnable);
+          }
+          wakeups.incrementAndGet();
+          runnable.run();
+        }
+      }, toRealMicros(delay), TimeUnit.MICROSECONDS);
+      ArrayList<ScheduledFuture<?>> futures = mPosted.get(runnable);
+      if (futures == null) {
+        futures = new ArrayList<ScheduledFuture<?>>();
+        mPosted.put(runnable, futures);
+      }
+      futures.add(future[0]);
+    }
+
+    private void removeCallbacks(Runnable runnable) {
+      ArrayList<ScheduledFuture<?>> futures = mPosted.remove(runnable);
+      if (futures != null) {
+        for (ScheduledFuture<?> future : futures) {
+          future.cancel(false);
+        }
+      }
+    }
+
+    @Override
+    public void start() {
+      mLoop = Executors.newSingleThreadScheduledExecutor();
+      mLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          mExpiryWheel = new ExpiryWheel<Integer>(SPED_UP, EXPIRE_TICK, EXPIRE_SLOTS);
+          mFrameCoalescer = new FrameCoalescer(new FrameCoalescer.FrameClock() {
+            @Override
+            public void scheduleFrame(final FrameCoalescer coalescer, long delay) {
+              // Called on the loop, as the harness requests updates there.
+              removeCallbacks(mFrameTask);
+              postDelayed(mFrameTask, mCounts.update, Math.max(delay, FRAME));
+            }
+          }, ROUTINE_UPDATE_INTERVAL, new FrameCoalescer.OnUpdateListener() {
+            @Override
+            public void onUpdate() {
+            }
+          });
+          mScanScheduler = new ScanScheduler(
+              new ScanPolicy.Adaptive(SCAN_WINDOW, MIN_SCAN_PAUSE, MAX_SCAN_PAUSE,
+                  SCAN_DUTY_CYCLE),
+              new ScanScheduler.Radio() {
+                @Override
+                public boolean startScan() {
+                  return true;
+                }
+
+                @Override
+                public void stopScan() {
+                }
+              },
+              new ScanScheduler.Timer() {
+                @Override
+                public void postDelayed(Runnable runnable, long delay) {
+                  LoopScheme.this.postDelayed(runnable, mCounts.scan, delay);
+                }
+
+                @Override
+                public void removeCallbacks(Runnable runnable) {
+                  LoopScheme.this.removeCallbacks(runnable);
+                }
+              }, SPED_UP);
+          mScanScheduler.start();
+        }
+      });
+    }
+
+    private final Runnable mFrameTask = new Runnable() {
+      @Override
+      public void run() {
+        mFrameCoalescer.doFrame(System.nanoTime());
+      }
+    };
+
+    private final Runnable mExpireTask = new Runnable() {
+      @Override
+      public void run() {
+        ArrayList<Integer> removed = mExpiryWheel.advance();
+        mIsExpiring = !mExpiryWheel.isEmpty();
+        if (mIsExpiring) {
+          postDelayed(this, mCounts.expiry, mExpiryWheel.getTickDuration());
+        }
+        long now = SPED_UP.currentTimeMillis();
+        for (int beacon : removed) {
+          mDevices.remove(beacon);
+          mCounts.expiredAt.set(beacon, now);
+        }
+        if (!removed.isEmpty()) {
+          mFrameCoalescer.requestUpdate(true);
+        }
+      }
+    };
+
+    @Override
+    public void onSighting(final int beacon) {
+      mLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          mExpiryWheel.schedule(beacon, SPED_UP.currentTimeMillis() + MAX_INACTIVE_TIME);
+          if (!mIsExpiring) {
+            mIsExpiring = true;
+            postDelayed(mExpireTask, mCounts.expiry, mExpiryWheel.getTickDuration());
+          }
+          boolean isNew = mDevices.add(beacon);
+          mScanScheduler.onDeviceDiscovered(isNew);
+          mFrameCoalescer.requestUpdate(isNew);
+        }
+      });
+    }
+
+    @Override
+    public void stop() {
+      mLoop.shutdownNow();
+      try {
+        mLoop.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // When each beacon turns up and leaves (virtual ms from the start).
+  private final long[] mArrivals;
+  private final long[] mDepartures;
+  private final long mBusyTime;
+  private final long mIdleTime;
+
+  SchedulingHarness(long busyTime, long idleTime) {
+    mBusyTime = busyTime;
+    mIdleTime = idleTime;
+    Random random = new Random(42);
+    ArrayList<long[]> beacons = new ArrayList<long[]>();
+    long arrival = 0;
+    while (true) {
+      arrival += (long) (-Math.log(1 - random.nextDouble()) * MEAN_ARRIVAL_INTERVAL);
+      if (arrival >= busyTime) {
+        break;
+      }
+      long dwell = MIN_DWELL + (long) (random.nextDouble() * (MAX_DWELL - MIN_DWELL));
+      beacons.add(new long[] {arrival, Math.min(arrival + dwell, busyTime)});
+    }
+    mArrivals = new long[beacons.size()];
+    mDepartures = new long[beacons.size()];
+    for (int i = 0; i < beacons.size(); i++) {
+      mArrivals[i] = beacons.get(i)[0];
+      mDepartures[i] = beacons.get(i)[1];
+    }
+  }
+
+  private static void sleepUntil(long virtualTime) throws InterruptedException {
+    long delay = virtualTime - SPED_UP.currentTimeMillis();
+    if (delay > 0) {
+      TimeUnit.MICROSECONDS.sleep(toRealMicros(delay));
+    }
+  }
+
+  private static String perMinute(long count, long time) {
+    return String.format("%7.1f", (double) count * MINUTE / time);
+  }
+
+  // What a run came to, for the checks.
+  private static class Result {
+    long startedThreads;
+    int peakThreads;
+    long idleExpiryWakeups;
+    long maxLateness;
+  }
+
+  // Plays the beacons to the scheme, advertising every ADVERT_INTERVAL, and
+  // reports what that cost.
+  Result run(String name, Scheme scheme, Counts counts) throws InterruptedException {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long threadsBefore = threads.getTotalStartedThreadCount();
+    int liveBefore = threads.getThreadCount();
+    threads.resetPeakThreadCount();
+
+    long start = SPED_UP.currentTimeMillis();
+    scheme.start();
+    for (long time = 0; time < mBusyTime; time += ADVERT_INTERVAL) {
+      sleepUntil(start + time);
+      for (int i = 0; i < mArrivals.length; i++) {
+        if (mArrivals[i] <= time && time < mDepartures[i]) {
+          counts.lastSeen.set(i, SPED_UP.currentTimeMillis());
+          scheme.onSighting(i);
+        }
+      }
+    }
+    sleepUntil(start + mBusyTime);
+    long[] busy = counts.get();
+    // The last beacons take a while to expire.
+    sleepUntil(start + mBusyTime + SETTLE_TIME);
+    long[] settled = counts.get();
+    sleepUntil(start + mBusyTime + SETTLE_TIME + mIdleTime);
+    long[] all = counts.get();
+    scheme.stop();
+
+    Result result = new Result();
+    result.startedThreads = threads.getTotalStartedThreadCount() - threadsBefore;
+    result.peakThreads = threads.getPeakThreadCount() - liveBefore;
+    result.idleExpiryWakeups = all[1] - settled[1];
+    System.out.println(String.format("  %-8s %7d %7d   %s %s %s   %s %s %s", name,
+        result.startedThreads, result.peakThreads,
+        perMinute(busy[0], mBusyTime), perMinute(busy[1], mBusyTime),
+        perMinute(busy[2], mBusyTime),
+        perMinute(all[0] - settled[0], mIdleTime), perMinute(all[1] - settled[1], mIdleTime),
+        perMinute(all[2] - settled[2], mIdleTime)));
+
+    for (int i = 0; i < mArrivals.length; i++) {
+      long expiredAt = counts.expiredAt.get(i);
+      check(expiredAt != 0, name + ": beacon " + i + " never expired");
+      result.maxLateness = Math.max(result.maxLateness, expiredAt - counts.lastSeen.get(i));
+    }
+    System.out.println(String.format("           beacons expired at most %dms after last seen",
+        result.maxLateness));
+    return result;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    long minutes = 5;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--minutes") && i + 1 < args.length) {
+        minutes = Long.parseLong(args[++i]);
+      }
+    }
+    SchedulingHarness harness = new SchedulingHarness(minutes * MINUTE, minutes * MINUTE);
+    int beaconCount = harness.mArrivals.length;
+    ExecutorService uiThread = Executors.newSingleThreadExecutor();
+
+    System.out.println(String.format("%d beacons over %d minutes, then %d minutes with none;"
+        + " time sped up %dx", beaconCount, minutes, minutes, SPEEDUP));
+    System.out.println("                       threads   wakeups per minute, beacons around"
+        + "   and with none");
+    System.out.println("           started    peak      scan  expiry  update"
+        + "      scan  expiry  update");
+    Counts timerCounts = new Counts(beaconCount);
+    harness.run("timers", new TimerScheme(uiThread, timerCounts), timerCounts);
+    Counts loopCounts = new Counts(beaconCount);
+    Result loop = harness.run("loop", new LoopScheme(loopCounts), loopCounts);
+    uiThread.shutdown();
+
+    check(loop.startedThreads <= 1, "the loop scheme started " + loop.startedThreads
+        + " threads");
+    check(loop.peakThreads <= 1, "the loop scheme had " + loop.peakThreads
+        + " threads alive at once");
+    check(loop.idleExpiryWakeups == 0, "the loop scheme woke up " + loop.idleExpiryWakeups
+        + " times for expiry with nothing nearby");
+    // A device expires on the first tick past its deadline; allow a couple
+    // more for the sped up clock's jitter.
+    check(loop.maxLateness <= MAX_INACTIVE_TIME + 3 * EXPIRE_TICK,
+        "the loop scheme expired a beacon " + loop.maxLateness + "ms after it was last seen");
+    System.out.println(mIsPassing ? "PASS" : "FAIL");
+    System.exit(mIsPassing ? 0 : 1);
+  }
+}
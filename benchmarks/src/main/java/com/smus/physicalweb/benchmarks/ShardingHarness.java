@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.ResolveScanCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves a burst of beacons, like a crowded venue's, split into shards of
+ * different sizes that go out a few at a time, the way MetadataResolver's
+ * calls do. Reports how long the first results and all of them take, and
+ * how many beacons are left unresolved when some requests fail.
+ *
+ * The stand-in resolvers take a round trip per request and some time per
+ * beacon in it, and each works on only a couple of requests at once. With
+ * more than one endpoint, shards take turns between them. Run it with:
+ *
+ *   gradle :benchmarks:sharding [-PharnessArgs="--beacons 300 --rtt 80 --beacon-latency 3
+ *       --capacity 2"]
+ */
+public class ShardingHarness {
+  private static final int[] SHARD_SIZES = {1, 5, 10, 20, 50, 100, 300, 500};
+  private static final double FAILURE_RATE = 0.05;
+
+  private final ReferenceResolverServer[] mServers;
+  private final int mBeaconCount;
+
+  ShardingHarness(ReferenceResolverServer[] servers, int beaconCount) {
+    mServers = servers;
+    mBeaconCount = beaconCount;
+  }
+
+  private static boolean post(String url, byte[] body) {
+    try {
+      HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+      OutputStream out = connection.getOutputStream();
+      out.write(body);
+      out.close();
+      if (connection.getResponseCode() != 200) {
+        connection.disconnect();
+        return false;
+      }
+      ReferenceResolverServer.readFully(connection.getInputStream());
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  void run(int shardSize, int concurrency, int endpointCount, double failureRate)
+      throws InterruptedException {
+    for (ReferenceResolverServer server : mServers) {
+      server.setFailureRate(failureRate);
+    }
+    ArrayList<Fakes.Device> beacons = new ArrayList<Fakes.Device>();
+    for (int i = 0; i < mBeaconCount; i++) {
+      beacons.add(new Fakes.Device(Fakes.address(i), Fakes.url(i), -70));
+    }
+
+    ExecutorService calls = Executors.newFixedThreadPool(concurrency);
+    final long startTime = System.nanoTime();
+    final AtomicLong firstResultTime = new AtomicLong(-1);
+    final AtomicInteger resolvedCount = new AtomicInteger();
+    final AtomicInteger requestCount = new AtomicInteger();
+    for (int start = 0; start < beacons.size(); start += shardSize) {
+      final List<Fakes.Device> shard =
+          beacons.subList(start, Math.min(beacons.size(), start + shardSize));
+      final String url = mServers[requestCount.getAndIncrement() % endpointCount].getUrl();
+      final byte[] body = ResolveScanCodec.createRequestBody(shard);
+      calls.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (post(url, body)) {
+            firstResultTime.compareAndSet(-1, System.nanoTime());
+            resolvedCount.addAndGet(shard.size());
+          }
+        }
+      });
+    }
+    calls.shutdown();
+    calls.awaitTermination(10, TimeUnit.MINUTES);
+    long totalTime = (System.nanoTime() - startTime) / 1000000;
+    long firstTime = firstResultTime.get() < 0
+        ? -1 : (firstResultTime.get() - startTime) / 1000000;
+
+    System.out.println(String.format(
+        "  %4d per shard  %4d requests  first %5dms  all %6dms  %6.0f beacons/s"
+            + "  unresolved %3d",
+        shardSize, requestCount.get(), firstTime, totalTime,
+        resolvedCount.get() * 1000.0 / Math.max(1, totalTime),
+        mBeaconCount - resolvedCount.get()));
+  }
+
+  private void compare(int concurrency, int endpointCount, double failureRate)
+      throws InterruptedException {
+    System.out.println(concurrency + " at a time, " + endpointCount + " endpoint"
+        + (endpointCount > 1 ? "s" : "")
+        + (failureRate > 0 ? ", " + (int) (failureRate * 100) + "% of requests fail" : ""));
+    for (int shardSize : SHARD_SIZES) {
+      run(shardSize, concurrency, endpointCount, failureRate);
+    }
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int beaconCount = 300;
+    long rtt = 80;
+    long beaconLatency = 3;
+    int capacity = 2;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--beacons") && i + 1 < args.length) {
+        beaconCount = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--rtt") && i + 1 < args.length) {
+        rtt = Long.parseLong(args[++i]);
+      } else if (args[i].equals("--beacon-latency") && i + 1 < args.length) {
+        beaconLatency = Long.parseLong(args[++i]);
+      } else if (args[i].equals("--capacity") && i + 1 < args.length) {
+        capacity = Integer.parseInt(args[++i]);
+      }
+    }
+    ReferenceResolverServer[] servers = new ReferenceResolverServer[2];
+    for (int i = 0; i < servers.length; i++) {
+      servers[i] = new ReferenceResolverServer(0);
+      servers[i].setLatency(rtt, 0, 0);
+      servers[i].setBeaconLatency(beaconLatency);
+      servers[i].setCapacity(capacity);
+      servers[i].start();
+    }
+    System.out.println(beaconCount + " beacons, " + rtt + "ms per request, " + beaconLatency
+        + "ms per beacon, " + capacity + " requests at once per endpoint");
+    ShardingHarness harness = new ShardingHarness(servers, beaconCount);
+    try {
+      harness.compare(1, 1, 0);
+      harness.compare(2, 1, 0);
+      harness.compare(4, 1, 0);
+      harness.compare(4, 2, 0);
+      harness.compare(2, 1, FAILURE_RATE);
+    } finally {
+      for (ReferenceResolverServer server : servers) {
+        server.stop();
+      }
+    }
+  }
+}
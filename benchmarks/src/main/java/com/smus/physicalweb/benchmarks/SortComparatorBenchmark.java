@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.RssiHistory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorting the same devices by RSSI with the adapter's old comparator and its
+ * current one.
+ *
+ * The old one called getAverageRSSI on both devices for every comparison,
+ * which logged and then summed a list of boxed samples. The current one reads
+ * each device's smoothed estimate from its RssiHistory. Log.i can't run off
+ * the device, so the old path here only builds the message; on a device it
+ * also went to logcat, so this understates the old cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SortComparatorBenchmark {
+  @Param("500")
+  public int deviceCount;
+
+  private static int HISTORY_LENGTH = 3;
+
+  // Keeps the log messages from being optimized away.
+  private static int mLoggedLength = 0;
+
+  // A device with its samples kept both ways.
+  private static class Device {
+    final ArrayList<Integer> rssiSamples = new ArrayList<Integer>();
+    final RssiHistory rssiHistory = new RssiHistory(HISTORY_LENGTH, RssiHistory.Filter.EWMA);
+
+    void add(int rssi) {
+      if (rssiSamples.size() >= HISTORY_LENGTH) {
+        rssiSamples.remove(0);
+      }
+      rssiSamples.add(rssi);
+      rssiHistory.add(rssi);
+    }
+
+    // What NearbyDevice.getAverageRSSI did.
+    int getAverageRSSI() {
+      mLoggedLength += ("getAverageRSSI. Elements: " + rssiSamples.size()).length();
+      int sum = 0;
+      for (int rssi : rssiSamples) {
+        sum += rssi;
+      }
+      return sum / rssiSamples.size();
+    }
+  }
+
+  private static Comparator<Device> AVERAGE_COMPARATOR = new Comparator<Device>() {
+    @Override
+    public int compare(Device lhs, Device rhs) {
+      return rhs.getAverageRSSI() - lhs.getAverageRSSI();
+    }
+  };
+
+  private static Comparator<Device> SMOOTHED_COMPARATOR = new Comparator<Device>() {
+    @Override
+    public int compare(Device lhs, Device rhs) {
+      return rhs.rssiHistory.getSmoothed() - lhs.rssiHistory.getSmoothed();
+    }
+  };
+
+  private ArrayList<Device> mDevices;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    mDevices = new ArrayList<Device>();
+    for (int i = 0; i < deviceCount; i++) {
+      int mean = -50 - random.nextInt(50);
+      Device device = new Device();
+      for (int j = 0; j < HISTORY_LENGTH; j++) {
+        device.add(Fakes.noisyRssi(random, mean));
+      }
+      mDevices.add(device);
+    }
+  }
+
+  // The adapter's old comparator.
+  @Benchmark
+  public ArrayList<Device> averageSort() {
+    ArrayList<Device> devices = new ArrayList<Device>(mDevices);
+    Collections.sort(devices, AVERAGE_COMPARATOR);
+    return devices;
+  }
+
+  // The adapter's comparator now.
+  @Benchmark
+  public ArrayList<Device> smoothedSort() {
+    ArrayList<Device> devices = new ArrayList<Device>(mDevices);
+    Collections.sort(devices, SMOOTHED_COMPARATOR);
+    return devices;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.ExpiryWheel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of ordering devices by smoothed RSSI, and of one expiry pass, as the
+ * number of nearby devices grows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SortExpiryBenchmark {
+  @Param({"100", "1000", "10000"})
+  public int deviceCount;
+
+  private static int MAX_INACTIVE_TIME = 10000;
+
+  private ArrayList<Fakes.Device> mDevices;
+  private long[] mLastSeen;
+  private ExpiryWheel<Fakes.Device> mExpiryWheel;
+  private Fakes.VirtualClock mClock;
+
+  private static Comparator<Fakes.Device> RSSI_COMPARATOR = new Comparator<Fakes.Device>() {
+    @Override
+    public int compare(Fakes.Device lhs, Fakes.Device rhs) {
+      return rhs.rssiHistory.getSmoothed() - lhs.rssiHistory.getSmoothed();
+    }
+  };
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    mClock = new Fakes.VirtualClock();
+    mExpiryWheel = new ExpiryWheel<Fakes.Device>(mClock, 1000, 16);
+    mDevices = new ArrayList<Fakes.Device>();
+    mLastSeen = new long[deviceCount];
+    for (int i = 0; i < deviceCount; i++) {
+      int mean = -50 - random.nextInt(50);
+      Fakes.Device device = new Fakes.Device(Fakes.address(i), Fakes.url(i), mean);
+      device.rssiHistory.add(Fakes.noisyRssi(random, mean));
+      device.rssiHistory.add(Fakes.noisyRssi(random, mean));
+      mDevices.add(device);
+      // Everyone is still around, which is the common case.
+      mExpiryWheel.schedule(device, Long.MAX_VALUE / 2);
+    }
+  }
+
+  // What the adapter used to do on every notify. SortComparatorBenchmark
+  // compares its old comparator with this one.
+  @Benchmark
+  public ArrayList<Fakes.Device> fullSort() {
+    ArrayList<Fakes.Device> devices = new ArrayList<Fakes.Device>(mDevices);
+    Collections.sort(devices, RSSI_COMPARATOR);
+    return devices;
+  }
+
+  // The old expiry pass: check every device.
+  @Benchmark
+  public int linearExpiryScan() {
+    int expired = 0;
+    long now = mClock.time;
+    for (int i = 0; i < deviceCount; i++) {
+      if (now - mLastSeen[i] > MAX_INACTIVE_TIME) {
+        expired++;
+      }
+    }
+    return expired;
+  }
+
+  // One tick of the expiry wheel.
+  @Benchmark
+  public int expiryWheelTick() {
+    mClock.time += mExpiryWheel.getTickDuration();
+    return mExpiryWheel.advance().size();
+  }
+}
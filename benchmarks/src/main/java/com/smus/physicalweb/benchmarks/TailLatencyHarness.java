@@ -0,0 +1,299 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.smus.physicalweb.benchmarks;
+
+import com.smus.physicalweb.Clock;
+import com.smus.physicalweb.ResolvePolicy;
+import com.smus.physicalweb.ResolveScanCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time-to-card against a ReferenceResolverServer that answers late or not
+ * at all, resolving the way MetadataResolver does: with a fixed timeout and
+ * no retries as it used to, and under a ResolvePolicy. Batches arrive at a
+ * steady rate; a card's time is from its batch going out to its metadata,
+ * stale or made up metadata included, arriving. Cards left blank count as
+ * slower than everything. Run it with:
+ *
+ *   gradle :benchmarks:tailLatency [-PharnessArgs="--batches 500"]
+ *
+ * Like MetadataResolver, calls are coordinated on one thread and requests
+ * block a small pool of network threads; a request that lost to its hedge
+ * keeps its thread until it finishes, as Volley's do.
+ */
+public class TailLatencyHarness {
+  private static final int BATCH_SIZE = 5;
+  // Time (ms) between batches.
+  private static final long ARRIVAL_INTERVAL = 50;
+  private static final int NETWORK_THREAD_COUNT = 4;
+  // Volley's default, which MetadataResolver used to use.
+  private static final int FIXED_TIMEOUT = 2500;
+
+  private final ReferenceResolverServer mServer;
+  private final String mUrl;
+  private final int mBatchCount;
+
+  // One run's state, only touched on mLoop.
+  private ScheduledExecutorService mLoop;
+  private ExecutorService mNetwork;
+  private ResolvePolicy mPolicy;
+  private long[] mTimesToCard;
+  private int mResolvedCount;
+  private int mDegradedCount;
+  private int mBlankCount;
+  private int mHedgeCount;
+  private int mRetryCount;
+  private CountDownLatch mRemaining;
+
+  TailLatencyHarness(ReferenceResolverServer server, int batchCount) {
+    mServer = server;
+    mUrl = server.getUrl();
+    mBatchCount = batchCount;
+  }
+
+  private class Call {
+    final int index;
+    final byte[] body;
+    final long startTime = System.nanoTime();
+    int inFlight = 0;
+    int failedAttempts = 0;
+    boolean isDone = false;
+    ScheduledFuture<?> hedge;
+
+    Call(int index, byte[] body) {
+      this.index = index;
+      this.body = body;
+    }
+  }
+
+  private void submit(Call call) {
+    if (mPolicy != null && !mPolicy.allowRequest()) {
+      degrade(call);
+      return;
+    }
+    startCall(call);
+  }
+
+  private void startCall(final Call call) {
+    sendAttempt(call);
+    long hedgeDelay = mPolicy != null ? mPolicy.getHedgeDelay() : -1;
+    if (hedgeDelay >= 0) {
+      call.hedge = mLoop.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (!call.isDone && call.inFlight == 1 && mPolicy.tryHedge()) {
+            mHedgeCount++;
+            sendAttempt(call);
+          }
+        }
+      }, hedgeDelay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void sendAttempt(final Call call) {
+    call.inFlight++;
+    final int timeout = mPolicy != null ? (int) mPolicy.getTimeout() : FIXED_TIMEOUT;
+    final long attemptStartTime = System.nanoTime();
+    mNetwork.execute(new Runnable() {
+      @Override
+      public void run() {
+        final boolean isSuccess = post(call.body, timeout);
+        final long rtt = (System.nanoTime() - attemptStartTime) / 1000000;
+        mLoop.execute(new Runnable() {
+          @Override
+          public void run() {
+            onAttemptDone(call, isSuccess, rtt);
+          }
+        });
+      }
+    });
+  }
+
+  private void onAttemptDone(final Call call, boolean isSuccess, long rtt) {
+    call.inFlight--;
+    if (call.isDone) {
+      return;
+    }
+    if (isSuccess) {
+      finish(call);
+      if (mPolicy != null) {
+        mPolicy.onSuccess(rtt);
+      }
+      mResolvedCount++;
+      return;
+    }
+    if (call.inFlight > 0) {
+      return;
+    }
+    if (call.hedge != null) {
+      call.hedge.cancel(false);
+    }
+    if (mPolicy == null) {
+      // The card stays blank.
+      call.isDone = true;
+      mTimesToCard[call.index] = Long.MAX_VALUE;
+      mBlankCount++;
+      mRemaining.countDown();
+      return;
+    }
+    mPolicy.onFailure();
+    long retryDelay = mPolicy.getRetryDelay(++call.failedAttempts);
+    if (retryDelay < 0) {
+      degrade(call);
+      return;
+    }
+    mLoop.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (!mPolicy.allowRequest()) {
+          degrade(call);
+          return;
+        }
+        mRetryCount++;
+        startCall(call);
+      }
+    }, retryDelay, TimeUnit.MILLISECONDS);
+  }
+
+  // Cards for the call are shown from the cache or the URL alone.
+  private void degrade(Call call) {
+    finish(call);
+    mDegradedCount++;
+  }
+
+  private void finish(Call call) {
+    call.isDone = true;
+    if (call.hedge != null) {
+      call.hedge.cancel(false);
+    }
+    long time = (System.nanoTime() - call.startTime) / 1000000;
+    mTimesToCard[call.index] = time;
+    mRemaining.countDown();
+  }
+
+  private boolean post(byte[] body, int timeout) {
+    try {
+      HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+      connection.setConnectTimeout(timeout);
+      connection.setReadTimeout(timeout);
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+      OutputStream out = connection.getOutputStream();
+      out.write(body);
+      out.close();
+      if (connection.getResponseCode() != 200) {
+        connection.disconnect();
+        return false;
+      }
+      ReferenceResolverServer.readFully(connection.getInputStream());
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  void run(String name, boolean isPolicyEnabled) throws InterruptedException {
+    mLoop = Executors.newSingleThreadScheduledExecutor();
+    mNetwork = Executors.newFixedThreadPool(NETWORK_THREAD_COUNT);
+    mPolicy = isPolicyEnabled ? new ResolvePolicy(Clock.SYSTEM, new Random(42)) : null;
+    mTimesToCard = new long[mBatchCount];
+    mResolvedCount = mDegradedCount = mBlankCount = mHedgeCount = mRetryCount = 0;
+    mRemaining = new CountDownLatch(mBatchCount);
+    long requestCount = mServer.getRequestCount();
+
+    for (int i = 0; i < mBatchCount; i++) {
+      ArrayList<Fakes.Device> beacons = new ArrayList<Fakes.Device>();
+      for (int j = 0; j < BATCH_SIZE; j++) {
+        beacons.add(new Fakes.Device(Fakes.address(j), Fakes.url(i * BATCH_SIZE + j), -70));
+      }
+      final Call call = new Call(i, ResolveScanCodec.createRequestBody(beacons));
+      mLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          submit(call);
+        }
+      });
+      Thread.sleep(ARRIVAL_INTERVAL);
+    }
+    if (!mRemaining.await(120, TimeUnit.SECONDS)) {
+      System.out.println("  " + name + ": " + mRemaining.getCount() + " batches never finished");
+    }
+    // Requests that lost to their hedge may still be running.
+    mNetwork.shutdown();
+    mNetwork.awaitTermination(30, TimeUnit.SECONDS);
+    mLoop.shutdownNow();
+
+    long[] times = mTimesToCard.clone();
+    Arrays.sort(times);
+    System.out.println(String.format(
+        "  %-14s p50 %6s  p95 %6s  p99 %6s  resolved %4d  degraded %4d  blank %4d"
+            + "  requests %4d  hedges %3d  retries %3d",
+        name, format(times, 0.5), format(times, 0.95), format(times, 0.99),
+        mResolvedCount, mDegradedCount, mBlankCount,
+        mServer.getRequestCount() - requestCount, mHedgeCount, mRetryCount));
+  }
+
+  private static String format(long[] sorted, double fraction) {
+    long time = sorted[(int) Math.ceil(fraction * sorted.length) - 1];
+    return time == Long.MAX_VALUE ? "blank" : time + "ms";
+  }
+
+  private void compare(String scenario) throws InterruptedException {
+    System.out.println(scenario);
+    run("fixed timeout", false);
+    run("policy", true);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int batchCount = 500;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--batches") && i + 1 < args.length) {
+        batchCount = Integer.parseInt(args[++i]);
+      }
+    }
+    ReferenceResolverServer server = new ReferenceResolverServer(0);
+    server.start();
+    TailLatencyHarness harness = new TailLatencyHarness(server, batchCount);
+    try {
+      server.setLatency(30, 0.03, 3000);
+      harness.compare("Slow tail: 3% of resolves take 3s");
+
+      server.setLatency(30, 0.01, 3000);
+      server.setFailureRate(0.1);
+      harness.compare("Flaky: 10% of resolves fail, 1% take 3s");
+
+      server.setLatency(30, 0, 0);
+      server.setFailureRate(1);
+      harness.compare("Outage: every resolve fails");
+    } finally {
+      server.stop();
+    }
+  }
+}